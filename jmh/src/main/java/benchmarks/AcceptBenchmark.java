@@ -0,0 +1,30 @@
+package benchmarks;
+
+import java.util.concurrent.*;
+import java.util.function.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Задержка от подключения до первого байта ответа службы Time и до EOF,
+ * в классическом режиме сервера и в режиме NIO.
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AcceptBenchmark {
+    @Param({ "classic", "nio" })
+    public String engine;
+
+    LongSupplier fixture;
+
+    @Setup
+    public void setup() throws Exception { fixture = Fixtures.open("accept", engine); }
+    @TearDown
+    public void tearDown() throws Exception { Fixtures.close(fixture); }
+
+    @Benchmark
+    public long accept() { return fixture.getAsLong(); }
+}
@@ -0,0 +1,16 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Счетчик байтов для измерений пропускной способности: JMH выводит его
+ * как дополнительный результат "bytes" в байтах в секунду.
+ **/
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Bytes {
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() { bytes = 0; }
+}
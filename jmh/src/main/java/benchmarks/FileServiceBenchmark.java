@@ -0,0 +1,44 @@
+package benchmarks;
+
+import java.util.function.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Отдача файлов службой FileService по постоянному подключению: файл
+ * 4 КБ из кэша (запросов в секунду) и файл 16 МБ мимо кэша (запросов
+ * и, как результат "bytes", байтов в секунду).
+ **/
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileServiceBenchmark {
+    @State(Scope.Thread)
+    public static class Small {
+        @Param({ "classic", "nio" })
+        public String engine;
+        LongSupplier fixture;
+
+        @Setup
+        public void setup() throws Exception { fixture = Fixtures.open("files", engine, false); }
+        @TearDown
+        public void tearDown() throws Exception { Fixtures.close(fixture); }
+    }
+    @State(Scope.Thread)
+    public static class Large {
+        @Param({ "classic", "nio" })
+        public String engine;
+        LongSupplier fixture;
+
+        @Setup
+        public void setup() throws Exception { fixture = Fixtures.open("files", engine, true); }
+        @TearDown
+        public void tearDown() throws Exception { Fixtures.close(fixture); }
+    }
+
+    @Benchmark
+    public long small(Small s) { return s.fixture.getAsLong(); }
+
+    @Benchmark
+    public void large(Large l, Bytes b) { b.bytes += l.fixture.getAsLong(); }
+}
@@ -0,0 +1,37 @@
+package benchmarks;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.function.*;
+
+/**
+ * Мост к измерениям ServerBenchmark. Классы сервера лежат в пакете по
+ * умолчанию, из другого пакета к ним не обратиться, а JMH требует, чтобы
+ * измерения были в пакете. Поэтому объект ServerBenchmark.Fixture создается
+ * отражением при подготовке (@Setup), а в измеряемом цикле вызывается через
+ * интерфейс LongSupplier, без отражения.
+ **/
+final class Fixtures {
+    private Fixtures() {}
+
+    /** Вызываем ServerBenchmark.name(args) и возвращаем подготовленное измерение */
+    static LongSupplier open(String name, Object... args) throws Exception {
+        Method[] methods = Class.forName("ServerBenchmark").getMethods();
+        for(int i = 0; i < methods.length; i++) {
+            Method m = methods[i];
+            if (!m.getName().equals(name) || (m.getParameterCount() != args.length))
+                continue;
+            try { return (LongSupplier) m.invoke(null, args); }
+            catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) throw (Exception) cause;
+                throw e;
+            }
+        }
+        throw new NoSuchMethodException("ServerBenchmark." + name);
+    }
+    /** Останавливаем службу и закрываем подключения измерения */
+    static void close(LongSupplier fixture) throws IOException {
+        if (fixture != null) ((Closeable) fixture).close();
+    }
+}
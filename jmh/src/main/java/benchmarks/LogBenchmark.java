@@ -0,0 +1,30 @@
+package benchmarks;
+
+import java.util.concurrent.*;
+import java.util.function.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Стоимость вызова Server.log() с выключенным журналом и с журналом,
+ * который пишет в пустой поток.
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogBenchmark {
+    @Param({ "disabled", "null-stream" })
+    public String output;
+
+    LongSupplier fixture;
+
+    @Setup
+    public void setup() throws Exception {
+        fixture = Fixtures.open("log", output.equals("null-stream"));
+    }
+
+    @Benchmark
+    public long log() { return fixture.getAsLong(); }
+}
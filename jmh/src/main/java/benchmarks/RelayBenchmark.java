@@ -0,0 +1,62 @@
+package benchmarks;
+
+import java.util.function.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Пропускная способность ProxyServer.Proxy при разных размерах буфера
+ * (классический режим) и в режиме NIO, а также копирование между
+ * подключениями прежним циклом и классом StreamCopier. Операция – одно
+ * чтение клиента; байты в секунду JMH выводит как результат "bytes".
+ **/
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RelayBenchmark {
+    @State(Scope.Thread)
+    public static class ClassicProxy {
+        @Param({ "2048", "8192", "65536" })
+        public int buffer;
+        LongSupplier fixture;
+
+        @Setup
+        public void setup() throws Exception {
+            fixture = Fixtures.open("proxy", "classic", buffer);
+        }
+        @TearDown
+        public void tearDown() throws Exception { Fixtures.close(fixture); }
+    }
+    @State(Scope.Thread)
+    public static class NioProxy {
+        LongSupplier fixture;
+
+        /** В режиме NIO данные идут через общий буфер цикла выборки */
+        @Setup
+        public void setup() throws Exception { fixture = Fixtures.open("proxy", "nio", 0); }
+        @TearDown
+        public void tearDown() throws Exception { Fixtures.close(fixture); }
+    }
+    @State(Scope.Thread)
+    public static class Copy {
+        @Param({ "loop", "copier" })
+        public String impl;
+        @Param({ "64", "65536" })       // Интерактивный обмен и поток данных
+        public int chunk;
+        LongSupplier fixture;
+
+        @Setup
+        public void setup() throws Exception { fixture = Fixtures.open("copy", impl, chunk); }
+        @TearDown
+        public void tearDown() throws Exception { Fixtures.close(fixture); }
+    }
+
+    @Benchmark
+    public void proxyClassic(ClassicProxy p, Bytes b) { b.bytes += p.fixture.getAsLong(); }
+
+    @Benchmark
+    public void proxyNio(NioProxy p, Bytes b) { b.bytes += p.fixture.getAsLong(); }
+
+    @Benchmark
+    public void copy(Copy c, Bytes b) { b.bytes += c.fixture.getAsLong(); }
+}
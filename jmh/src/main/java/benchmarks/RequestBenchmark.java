@@ -0,0 +1,80 @@
+package benchmarks;
+
+import java.util.concurrent.*;
+import java.util.function.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Обработка запросов службами Reverse и HTTPMirror: Reverse и HTTPMirror
+ * по постоянному подключению (по одному запросу и конвейером по 32),
+ * а также HTTPMirror с новым подключением на каждый запрос HTTP/1.0.
+ **/
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestBenchmark {
+    static final int PIPELINE = 32;
+
+    @State(Scope.Thread)
+    public static class Reverse {
+        @Param({ "classic", "nio" })
+        public String engine;
+        LongSupplier fixture;
+
+        @Setup
+        public void setup() throws Exception { fixture = Fixtures.open("reverse", engine); }
+        @TearDown
+        public void tearDown() throws Exception { Fixtures.close(fixture); }
+    }
+    @State(Scope.Thread)
+    public static class MirrorPerConnection {
+        LongSupplier fixture;
+
+        @Setup
+        public void setup() throws Exception { fixture = Fixtures.open("httpMirror"); }
+        @TearDown
+        public void tearDown() throws Exception { Fixtures.close(fixture); }
+    }
+    @State(Scope.Thread)
+    public static class MirrorKeepAlive {
+        @Param({ "classic", "nio" })
+        public String engine;
+        LongSupplier fixture;
+
+        @Setup
+        public void setup() throws Exception {
+            fixture = Fixtures.open("httpKeepAlive", engine, 1);
+        }
+        @TearDown
+        public void tearDown() throws Exception { Fixtures.close(fixture); }
+    }
+    @State(Scope.Thread)
+    public static class MirrorPipeline {
+        @Param({ "classic", "nio" })
+        public String engine;
+        LongSupplier fixture;
+
+        @Setup
+        public void setup() throws Exception {
+            fixture = Fixtures.open("httpKeepAlive", engine, PIPELINE);
+        }
+        @TearDown
+        public void tearDown() throws Exception { Fixtures.close(fixture); }
+    }
+
+    @Benchmark
+    public long reverse(Reverse r) { return r.fixture.getAsLong(); }
+
+    @Benchmark
+    public long httpMirror(MirrorPerConnection m) { return m.fixture.getAsLong(); }
+
+    @Benchmark
+    public long httpMirrorKeepAlive(MirrorKeepAlive m) { return m.fixture.getAsLong(); }
+
+    /** Время на один запрос пачки из PIPELINE запросов */
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE)
+    public long httpMirrorPipelined(MirrorPipeline m) { return m.fixture.getAsLong(); }
+}
@@ -0,0 +1,32 @@
+package benchmarks;
+
+import java.util.function.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Рукопожатия TLS в секунду со службой Time: полные и с возобновлением
+ * сеанса, в классическом режиме и в режиме NIO.
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsBenchmark {
+    @Param({ "classic", "nio" })
+    public String engine;
+    @Param({ "full", "resumed" })
+    public String session;
+
+    LongSupplier fixture;
+
+    @Setup
+    public void setup() throws Exception {
+        fixture = Fixtures.open("tls", engine, session.equals("resumed"));
+    }
+    @TearDown
+    public void tearDown() throws Exception { Fixtures.close(fixture); }
+
+    @Benchmark
+    public long handshake() { return fixture.getAsLong(); }
+}
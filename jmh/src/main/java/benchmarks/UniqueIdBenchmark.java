@@ -0,0 +1,25 @@
+package benchmarks;
+
+import java.util.function.*;
+import org.openjdk.jmh.annotations.*;
+
+/** UniqueID.nextId() из одного потока исполнения и из четырех сразу */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UniqueIdBenchmark {
+    LongSupplier fixture;
+
+    @Setup
+    public void setup() throws Exception { fixture = Fixtures.open("uniqueId"); }
+
+    @Benchmark
+    @Threads(1)
+    public long nextId() { return fixture.getAsLong(); }
+
+    @Benchmark
+    @Threads(4)
+    public long nextIdContended() { return fixture.getAsLong(); }
+}
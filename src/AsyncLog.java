@@ -0,0 +1,245 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+/**
+ * Этот класс реализует асинхронный регистрационный журнал. Потоки исполнения,
+ * делающие записи, только помещают текст и время в кольцевой буфер
+ * фиксированного размера, не захватывая никаких блокировок. Единственный
+ * поток-писатель забирает записи пачками, добавляет к ним время и выводит
+ * их в поток (stream), проталкивая его, когда накопилось достаточно записей
+ * или прошло достаточно времени с прошлого проталкивания.
+ *
+ * Время записи в формате Date.toString() имеет точность в одну секунду,
+ * поэтому писатель форматирует его не чаще раза в секунду и повторно
+ * использует готовую строку (кэшированные часы).
+ *
+ * Если буфер заполнен, запись либо теряется (режим DROP, число потерянных
+ * записей учитывается и периодически сообщается в самом журнале), либо
+ * вызывающий поток ждет освобождения места (режим BLOCK).
+ *
+ * Кольцевой буфер – это ограниченная очередь с номерами последовательности
+ * в каждой ячейке: производитель занимает ячейку сравнением с обменом
+ * указателя хвоста, заполняет ее и публикует, записывая новый номер.
+ *
+ * Метод close() выводит остаток записей, останавливает писателя и снимает
+ * обработчик завершения JVM; после него записи не принимаются.
+ **/
+public class AsyncLog {
+    public static final int DROP = 0;   // Терять записи при переполнении
+    public static final int BLOCK = 1;  // Ждать места при переполнении
+
+    final int capacity;                  // Размер кольца (степень двойки)
+    final int mask;                      // capacity - 1
+    final AtomicReferenceArray texts;    // Тексты записей
+    final long[] times;                  // Время каждой записи, мс
+    final AtomicLongArray sequences;     // Номера последовательности ячеек
+    final AtomicLong tail = new AtomicLong(); // Следующая ячейка для записи
+    volatile long head;                  // Следующая ячейка для чтения (писатель)
+
+    final int flushEntries;              // Проталкивать после стольких записей
+    final long flushMillis;              // ... или по прошествии стольких мс
+    volatile int overflow;               // DROP или BLOCK
+    volatile PrintWriter out;            // Куда выводим (null – журнал отключен)
+
+    final AtomicLong written = new AtomicLong(); // Выведено записей
+    final AtomicLong dropped = new AtomicLong(); // Потеряно записей
+    long reportedDrops;                  // Сколько потерь уже сообщено в журнале
+    final Thread writer;                 // Поток-писатель
+    final Thread exitHook;               // Выводит остаток при завершении JVM
+    volatile boolean sleeping;           // Писатель ждет новых записей
+    volatile boolean closed;             // Журнал закрыт методом close()
+
+    long cachedSecond = -1;              // Секунда, для которой отформатировано время
+    String cachedStamp;                  // "[<время>] " для этой секунды
+
+    /**
+     * Создаем журнал с кольцом заданного размера (округляется вверх до степени
+     * двойки), порогами проталкивания и режимом переполнения, и запускаем
+     * поток-писатель в заданной группе.
+     **/
+    public AsyncLog(int capacity, int flushEntries, long flushMillis,
+                    int overflow, ThreadGroup group, String name) {
+        int size = 1;
+        while(size < capacity) size <<= 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.texts = new AtomicReferenceArray(size);
+        this.times = new long[size];
+        this.sequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++) sequences.set(i, i);
+        this.flushEntries = flushEntries;
+        this.flushMillis = flushMillis;
+        this.overflow = overflow;
+        writer = new Thread(group, new Runnable() {
+            public void run() { writeLoop(); }
+        }, name);
+        writer.setDaemon(true);
+        writer.start();
+        // При завершении JVM выводим то, что еще осталось в кольце
+        exitHook = new Thread(new Runnable() {
+            public void run() { drainAtExit(); }
+        }, name + ":shutdown");
+        Runtime.getRuntime().addShutdownHook(exitHook);
+    }
+    /**
+     * Закрываем журнал: писатель выводит все опубликованные записи,
+     * проталкивает поток вывода и завершается (ждем его до секунды),
+     * а обработчик завершения JVM снимается. Повторные вызовы ничего не делают.
+     **/
+    public void close() {
+        synchronized(this) {
+            if (closed) return;
+            closed = true;
+        }
+        LockSupport.unpark(writer);
+        try { writer.join(1000); }
+        catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        try { Runtime.getRuntime().removeShutdownHook(exitHook); }
+        catch (IllegalStateException e) {}   // JVM уже завершается
+    }
+    /**
+     * Задаем поток вывода журнала; null отключает журнал. Писатель протолкнет
+     * прежний поток, прежде чем переключиться на новый.
+     **/
+    public void setOutput(OutputStream stream) {
+        out = (stream == null) ? null : new PrintWriter(
+                new BufferedWriter(new OutputStreamWriter(stream), 8192));
+    }
+    /** Выбираем поведение при переполнении: DROP или BLOCK */
+    public void setOverflow(int overflow) { this.overflow = overflow; }
+    public int getOverflow() { return overflow; }
+    /** Включен ли журнал? */
+    public boolean enabled() { return out != null; }
+
+    /**
+     * Делаем запись. Метод не захватывает блокировок и не выполняет ввода-
+     * вывода; при переполнении он теряет запись или ждет, в зависимости
+     * от режима.
+     **/
+    public void log(String text) {
+        if ((out == null) || closed) return;
+        long now = System.currentTimeMillis();
+        for(;;) {
+            long pos = tail.get();
+            int slot = (int) pos & mask;
+            long diff = sequences.get(slot) - pos;
+            if (diff == 0) {                     // Ячейка свободна
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    times[slot] = now;
+                    texts.lazySet(slot, text);
+                    sequences.set(slot, pos + 1); // Публикуем запись
+                    if (sleeping) LockSupport.unpark(writer);
+                    return;
+                }
+            }
+            else if (diff < 0) {                 // Кольцо заполнено
+                if ((overflow == DROP) || closed) { dropped.incrementAndGet(); return; }
+                if (sleeping) LockSupport.unpark(writer);
+                LockSupport.parkNanos(100000);
+            }
+            // Иначе другой производитель успел занять ячейку; повторяем
+        }
+    }
+
+    /** Тело потока-писателя */
+    void writeLoop() {
+        PrintWriter current = null;   // Поток, в который мы сейчас пишем
+        int unflushed = 0;            // Записей с прошлого проталкивания
+        long lastFlush = System.currentTimeMillis();
+        for(;;) {
+            PrintWriter target = out;
+            if ((target != current) && (current != null)) current.flush();
+            current = target;
+            int n = drain(current);
+            unflushed += n;
+            long now = System.currentTimeMillis();
+            if ((unflushed > 0) && ((unflushed >= flushEntries) ||
+                    (now - lastFlush >= flushMillis) || (n == 0))) {
+                if (current != null) current.flush();
+                unflushed = 0;
+                lastFlush = now;
+            }
+            if ((n == 0) && closed) {
+                if (current != null) current.flush();
+                return;                          // Журнал закрыт и выведен
+            }
+            if (n == 0) {
+                // Кольцо пусто: засыпаем, но сначала объявляем об этом и еще раз
+                // проверяем кольцо, чтобы не пропустить запись, сделанную
+                // как раз в этот момент.
+                sleeping = true;
+                if (!ready() && !closed) LockSupport.parkNanos(flushMillis * 1000000L);
+                sleeping = false;
+            }
+        }
+    }
+    /** Есть ли в кольце опубликованная, но не прочитанная запись? */
+    boolean ready() {
+        return sequences.get((int) head & mask) == head + 1;
+    }
+    /**
+     * Забираем из кольца все опубликованные записи (но не больше одного
+     * кольца за раз) и выводим их. Возвращаем число выведенных записей.
+     **/
+    int drain(PrintWriter target) {
+        int n = 0;
+        while((n < capacity) && ready()) {
+            int slot = (int) head & mask;
+            String text = (String) texts.get(slot);
+            long time = times[slot];
+            texts.lazySet(slot, null);
+            sequences.set(slot, head + capacity); // Ячейка снова свободна
+            head++;
+            n++;
+            if (target != null) {
+                target.print(stamp(time));
+                target.println(text);
+            }
+        }
+        long lost = dropped.get();
+        if ((lost != reportedDrops) && (target != null)) {
+            target.print(stamp(System.currentTimeMillis()));
+            target.println("Журнал переполнен, потеряно записей: " +
+                    (lost - reportedDrops));
+            reportedDrops = lost;
+            n++;
+        }
+        written.addAndGet(n);
+        return n;
+    }
+    /** Префикс записи со временем; форматируется не чаще раза в секунду */
+    String stamp(long time) {
+        long second = time / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedStamp = "[" + new Date(time) + "] ";
+        }
+        return cachedStamp;
+    }
+    /**
+     * Вызывается при завершении JVM. Читать кольцо может только писатель,
+     * поэтому мы будим его, даем ему до 200 мс вывести остаток записей
+     * и проталкиваем поток вывода.
+     **/
+    void drainAtExit() {
+        PrintWriter target = out;
+        if (target == null) return;
+        long deadline = System.currentTimeMillis() + 200;
+        while(ready() && (System.currentTimeMillis() < deadline)) {
+            if (sleeping) LockSupport.unpark(writer);
+            try { Thread.sleep(5); } catch (InterruptedException e) { break; }
+        }
+        target.flush();
+    }
+    /** Выводим сводку о работе журнала для отображения состояния сервера */
+    public String status() {
+        long queued = tail.get() - head;
+        return "ЖУРНАЛ: ВЫВЕДЕНО " + written.get() + ", В ОЧЕРЕДИ " +
+                Math.max(0, queued) + " ИЗ " + capacity + ", ПОТЕРЯНО " +
+                dropped.get() + ", ПРИ ПЕРЕПОЛНЕНИИ " +
+                ((overflow == DROP) ? "ТЕРЯТЬ" : "ЖДАТЬ");
+    }
+    /** Число потерянных записей */
+    public long dropped() { return dropped.get(); }
+}
@@ -0,0 +1,51 @@
+import java.nio.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+/**
+ * Этот класс хранит пул прямых (direct) буферов одного размера. Прямые
+ * буферы дороги в создании и освобождаются только сборщиком мусора, зато
+ * каналы читают и пишут их без лишнего копирования, поэтому их выгодно
+ * выделять заранее и использовать повторно. Пул не захватывает блокировок:
+ * свободные буферы лежат в неблокирующей очереди, и брать и возвращать их
+ * можно из любых потоков исполнения. Если пул пуст, создается новый буфер;
+ * если в нем уже лежит maxPooled буферов, возвращенный буфер просто
+ * отдается сборщику мусора.
+ **/
+public class BufferPool {
+    final int bufferSize;               // Размер каждого буфера
+    final int maxPooled;                // Сколько свободных буферов хранить
+    final ConcurrentLinkedQueue free = new ConcurrentLinkedQueue(); // Свободные буферы
+    final AtomicInteger pooled = new AtomicInteger(); // Их число
+    final AtomicLong allocated = new AtomicLong();    // Всего создано буферов
+    final AtomicInteger inUse = new AtomicInteger();  // Выдано и не возвращено
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+    /** Берем очищенный буфер из пула или создаем новый */
+    public ByteBuffer get() {
+        inUse.incrementAndGet();
+        ByteBuffer b = (ByteBuffer) free.poll();
+        if (b == null) {
+            allocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        b.clear();
+        return b;
+    }
+    /** Возвращаем буфер в пул; после этого пользоваться им нельзя */
+    public void put(ByteBuffer b) {
+        if ((b == null) || (b.capacity() != bufferSize) || !b.isDirect()) return;
+        inUse.decrementAndGet();
+        if (pooled.incrementAndGet() > maxPooled) { pooled.decrementAndGet(); return; }
+        free.add(b);
+    }
+    public int bufferSize() { return bufferSize; }
+    /** Сводка о пуле для отображения состояния сервера */
+    public String status() {
+        return "БУФЕРОВ ПО " + bufferSize + " БАЙТ: ВЫДАНО " + inUse.get() +
+                ", СВОБОДНО " + pooled.get() + ", СОЗДАНО " + allocated.get();
+    }
+}
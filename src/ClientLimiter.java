@@ -0,0 +1,252 @@
+import java.net.*;
+import java.util.concurrent.atomic.*;
+/**
+ * Этот класс ограничивает подключения с отдельных адресов клиентов: частоту
+ * новых подключений (по алгоритму «ведра с жетонами») и число одновременных
+ * подключений с одного адреса. Сервер спрашивает его до того, как создать
+ * объект Connection, и сообщает ему о закрытии каждого допущенного подключения.
+ *
+ * Состояние клиентов хранится в компактной таблице с открытой адресацией
+ * из трех массивов: ключ адреса, упакованное в одно число состояние ведра
+ * (жетоны и время последнего пополнения) и число подключений. Таблица не
+ * захватывает блокировок: ячейки занимаются и изменяются сравнением с обменом.
+ * Записи не удаляются, а устаревают: ячейку, у которой нет подключений
+ * и чье ведро уже успело бы наполниться заново, может занять другой адрес,
+ * так что таблица фиксированного размера обслуживает сколько угодно клиентов,
+ * лишь бы одновременно активных было не больше ее размера. Если для адреса
+ * не нашлось ячейки, подключение допускается без учета (отказ в обслуживании
+ * из-за переполнения таблицы был бы хуже).
+ *
+ * Таблица создается при первом включении какого-либо ограничения; пока все
+ * ограничения выключены, проверка подключения ничего не стоит.
+ **/
+public class ClientLimiter {
+    public static final int UNTRACKED = -1;     // Допущено без учета
+    public static final int RATE_EXCEEDED = -2; // Отказ: слишком часто
+    public static final int TOO_MANY = -3;      // Отказ: слишком много подключений
+
+    static final int PROBES = 32;               // Длина поиска ячейки
+    static final int TIME_BITS = 40;            // Биты времени в состоянии ведра
+    static final long TIME_MASK = (1L << TIME_BITS) - 1;
+    static final int MAX_BURST = 16000;         // Жетоны (в тысячных) занимают 24 бита
+
+    final int capacity;                 // Размер таблицы (степень двойки)
+    volatile Table table;               // Таблица клиентов (null – еще не нужна)
+    final long epoch = System.currentTimeMillis() - 1; // Начало отсчета времени
+
+    volatile double rate;               // Новых подключений в секунду (0 – без ограничения)
+    volatile int burst;                 // Емкость ведра
+    volatile int maxPerClient;          // Подключений с адреса (0 – без ограничения)
+
+    final AtomicLong rateRejects = new AtomicLong();  // Отказано по частоте
+    final AtomicLong countRejects = new AtomicLong(); // Отказано по числу
+    final AtomicLong untracked = new AtomicLong();    // Не нашлось ячейки
+
+    /** Три параллельных массива таблицы клиентов */
+    static class Table {
+        final int mask;
+        final AtomicLongArray keys;      // Ключ адреса; 0 – ячейка свободна
+        final AtomicLongArray buckets;   // Жетоны << TIME_BITS | время; 0 – ведро полно
+        final AtomicIntegerArray counts; // Подключений; -1 – ячейка переходит к другому
+        Table(int size) {
+            mask = size - 1;
+            keys = new AtomicLongArray(size);
+            buckets = new AtomicLongArray(size);
+            counts = new AtomicIntegerArray(size);
+        }
+    }
+
+    /** Создаем ограничитель с таблицей заданного размера (округляется вверх) */
+    public ClientLimiter(int capacity) {
+        int size = 1;
+        while(size < capacity) size <<= 1;
+        this.capacity = size;
+    }
+    /** Создаем ограничитель с теми же ограничениями, что и у заданного */
+    public ClientLimiter(ClientLimiter model) {
+        this(model.capacity);
+        setRate(model.rate, model.burst);
+        setMaxPerClient(model.maxPerClient);
+    }
+    /**
+     * Задаем допустимую частоту новых подключений с одного адреса и запас
+     * (емкость ведра), позволяющий кратковременно ее превышать.
+     * Нулевая частота снимает ограничение.
+     **/
+    public synchronized void setRate(double perSecond, int burst) {
+        if (perSecond < 0) throw new IllegalArgumentException("Частота: " + perSecond);
+        if ((perSecond > 0) && ((burst < 1) || (burst > MAX_BURST)))
+            throw new IllegalArgumentException("Запас должен быть от 1 до " + MAX_BURST);
+        if (perSecond > 0) allocate();
+        this.burst = burst;
+        this.rate = perSecond;
+    }
+    /** Задаем число одновременных подключений с адреса; 0 снимает ограничение */
+    public synchronized void setMaxPerClient(int max) {
+        if (max < 0) throw new IllegalArgumentException("Число подключений: " + max);
+        if (max > 0) allocate();
+        maxPerClient = max;
+    }
+    void allocate() { if (table == null) table = new Table(capacity); }
+    /** Включено ли какое-либо ограничение? */
+    public boolean enabled() { return (rate > 0) || (maxPerClient > 0); }
+
+    /**
+     * Решаем, допустить ли подключение с заданного адреса. Неотрицательный
+     * результат – номер ячейки, который надо передать release() при закрытии
+     * подключения; UNTRACKED означает, что подключение допущено без учета
+     * (release() для него ничего не делает); RATE_EXCEEDED и TOO_MANY – отказ.
+     **/
+    public int admit(InetAddress address) {
+        double r = rate;
+        int max = maxPerClient;
+        Table t = table;
+        if (((r <= 0) && (max <= 0)) || (t == null)) return UNTRACKED;
+        long key = key(address);
+        long now = System.currentTimeMillis() - epoch;
+        int slot = pin(t, key, now, r);
+        if (slot < 0) { untracked.incrementAndGet(); return UNTRACKED; }
+        if ((max > 0) && (t.counts.get(slot) > max)) {
+            t.counts.decrementAndGet(slot);
+            countRejects.incrementAndGet();
+            return TOO_MANY;
+        }
+        if ((r > 0) && !take(t, slot, now, r)) {
+            t.counts.decrementAndGet(slot);
+            rateRejects.incrementAndGet();
+            return RATE_EXCEEDED;
+        }
+        return slot;
+    }
+    /** Подключение, допущенное admit(), закрыто */
+    public void release(int slot) {
+        if (slot >= 0) table.counts.decrementAndGet(slot);
+    }
+
+    /**
+     * Находим (или занимаем) ячейку адреса и увеличиваем ее счетчик
+     * подключений, чтобы ячейку не отдали другому адресу, пока мы ее
+     * используем. Возвращаем номер ячейки или -1, если места нет.
+     **/
+    int pin(Table t, long key, long now, double r) {
+        int start = (int) mix(key) & t.mask;
+        retry:
+        for(;;) {
+            int stale = -1;              // Первая устаревшая ячейка на пути
+            for(int i = 0; i < PROBES; i++) {
+                int slot = (start + i) & t.mask;
+                long k = t.keys.get(slot);
+                if (k == key) {
+                    if (increment(t, slot, key)) return slot;
+                    continue retry;      // Ячейку как раз отдали другому адресу
+                }
+                if (k == 0) {            // Дальше этого адреса нет
+                    if (stale < 0) {
+                        if (!t.keys.compareAndSet(slot, 0, key)) continue retry;
+                        if (increment(t, slot, key)) return slot;
+                        continue retry;
+                    }
+                    break;
+                }
+                if ((stale < 0) && expired(t, slot, now, r)) stale = slot;
+            }
+            if (stale < 0) return -1;    // Все ячейки на пути заняты
+            if (reclaim(t, stale, key, now, r) && increment(t, stale, key)) return stale;
+        }
+    }
+    /** Увеличиваем счетчик ячейки, если она все еще принадлежит адресу */
+    boolean increment(Table t, int slot, long key) {
+        for(;;) {
+            int c = t.counts.get(slot);
+            if (c < 0) return false;     // Ячейка переходит к другому адресу
+            if (t.counts.compareAndSet(slot, c, c + 1)) break;
+        }
+        if (t.keys.get(slot) == key) return true;
+        t.counts.decrementAndGet(slot);  // Опоздали: ячейка уже чужая
+        return false;
+    }
+    /**
+     * Можно ли отдать ячейку другому адресу? Да, если у нее нет подключений
+     * и ее ведро уже наполнилось бы заново, то есть запись ничего не помнит.
+     **/
+    boolean expired(Table t, int slot, long now, double r) {
+        return (t.counts.get(slot) == 0) && refilled(t, slot, now, r);
+    }
+    /** Передаем устаревшую ячейку новому адресу */
+    boolean reclaim(Table t, int slot, long key, long now, double r) {
+        if (!t.counts.compareAndSet(slot, 0, -1)) return false;
+        if (!refilled(t, slot, now, r)) { t.counts.set(slot, 0); return false; }
+        t.keys.set(slot, key);
+        t.buckets.set(slot, 0);
+        t.counts.set(slot, 0);
+        return true;
+    }
+    /** Наполнилось бы ведро ячейки к моменту now? */
+    boolean refilled(Table t, int slot, long now, double r) {
+        long b = t.buckets.get(slot);
+        if ((b == 0) || (r <= 0)) return true;
+        return (now - (b & TIME_MASK)) * r >= burst * 1000.0;
+    }
+    /**
+     * Берем жетон из ведра ячейки. Ведро пополняется со скоростью rate жетонов
+     * в секунду, но не сверх burst; жетоны хранятся в тысячных долях.
+     **/
+    boolean take(Table t, int slot, long now, double r) {
+        long full = (long) burst * 1000;
+        for(;;) {
+            long b = t.buckets.get(slot);
+            long tokens;
+            if (b == 0) tokens = full;
+            else {
+                long elapsed = now - (b & TIME_MASK);
+                tokens = b >>> TIME_BITS;
+                if (elapsed > 0) tokens = Math.min(full, tokens + (long) (elapsed * r));
+            }
+            if (tokens < 1000) return false;
+            long next = ((tokens - 1000) << TIME_BITS) | (now & TIME_MASK);
+            if (t.buckets.compareAndSet(slot, b, next)) return true;
+        }
+    }
+    /**
+     * Ключ адреса: адрес IPv4 целиком, а для IPv6 – 64-битная свертка адреса
+     * со старшим битом, установленным, чтобы ключи не совпадали с IPv4 и нулем.
+     **/
+    static long key(InetAddress address) {
+        byte[] b = address.getAddress();
+        if (b.length == 4)
+            return (1L << 32) | ((b[0] & 0xffL) << 24) | ((b[1] & 0xffL) << 16) |
+                    ((b[2] & 0xffL) << 8) | (b[3] & 0xffL);
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < b.length; i++) h = (h ^ (b[i] & 0xff)) * 0x100000001b3L;
+        return h | Long.MIN_VALUE;
+    }
+    /** Перемешиваем биты ключа, чтобы соседние адреса не попадали в соседние ячейки */
+    static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+    /** Число адресов, у которых сейчас есть подключения или неполное ведро */
+    public int clients() {
+        Table t = table;
+        if (t == null) return 0;
+        long now = System.currentTimeMillis() - epoch;
+        double r = rate;
+        int n = 0;
+        for(int i = 0; i <= t.mask; i++)
+            if ((t.keys.get(i) != 0) && !expired(t, i, now, r)) n++;
+        return n;
+    }
+    /** Сводка об ограничениях для отображения состояния сервера */
+    public String status() {
+        return "НЕ БОЛЕЕ " + ((maxPerClient > 0) ? "" + maxPerClient : "∞") +
+                " ПОДКЛЮЧЕНИЙ С АДРЕСА, " + ((rate > 0) ?
+                rate + " В СЕКУНДУ (ЗАПАС " + burst + ")" : "ЧАСТОТА НЕ ОГРАНИЧЕНА") +
+                "; АДРЕСОВ " + clients() + ", ОТКАЗАНО ПО ЧАСТОТЕ " +
+                rateRejects.get() + ", ПО ЧИСЛУ " + countRejects.get() +
+                ", БЕЗ УЧЕТА " + untracked.get();
+    }
+}
@@ -0,0 +1,451 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+/**
+ * Эта служба сервера Server отдает по HTTP/1.1 файлы из заданного каталога
+ * (корня документов). Как и HttpMirror, она держит подключение открытым для
+ * следующих запросов и отвечает на запросы, посланные конвейером.
+ *
+ * Небольшие файлы (не больше maxCached байтов) отдаются из кэша в памяти,
+ * где вместе с содержимым хранятся и уже закодированные заголовки ответа,
+ * так что ответ на частый запрос – это запись двух готовых массивов. Кэш
+ * ограничен общим объемом и вытесняет давно не запрашивавшиеся файлы. Для
+ * больших файлов кэшируются только заголовки, а содержимое передается
+ * методом Server.sendFile(): в режиме NIO ядро отправляет его из кэша
+ * файловой системы прямо в сокет (sendfile), не копируя в память программы.
+ *
+ * Запись кэша проверяется не чаще раза в секунду: если у файла изменились
+ * время модификации или длина (или файл удален), запись выбрасывается
+ * и файл читается заново.
+ *
+ * Служба понимает методы GET и HEAD, заголовок Range (один диапазон байтов,
+ * ответ 206), условные запросы If-None-Match (по ETag) и If-Modified-Since
+ * (ответ 304), а также If-Range. Пути, выходящие за корень документов,
+ * не обслуживаются. Для каталога отдается его файл index.html.
+ *
+ * При запуске из командной строки (java Server FileService <port>) корень
+ * документов задается системным свойством docroot (по умолчанию текущий
+ * каталог).
+ **/
+public class FileService implements Server.Service, Server.StatusReporter {
+    static final long CHECK_MILLIS = 1000;  // Как часто сверять запись кэша с файлом
+
+    final File root;                // Корень документов
+    final String rootPrefix;        // Его канонический путь с разделителем в конце
+    final long cacheBytes;          // Предельный объем кэша
+    final int maxCached;            // Содержимое файлов не больше этого кэшируется
+    final int maxRequests;          // Запросов на одно подключение
+    final LinkedHashMap cache = new LinkedHashMap(256, 0.75f, true); // Путь -> Entry
+    long cachedBytes;               // Объем кэша (под монитором cache)
+    final LongAdder hits = new LongAdder();          // Ответы по записи кэша
+    final LongAdder misses = new LongAdder();        // Файл пришлось искать
+    final LongAdder invalidated = new LongAdder();   // Записи устарели
+    final LongAdder notModified = new LongAdder();   // Ответы 304
+    final LongAdder partial = new LongAdder();       // Ответы 206
+    final LongAdder notFound = new LongAdder();      // Ответы 404
+    final LongAdder fromMemory = new LongAdder();    // Байтов содержимого из кэша
+    final LongAdder fromFile = new LongAdder();      // Байтов через sendFile()
+
+    /**
+     * Корень из свойства docroot, кэш 32 МБ для файлов до 64 КБ, до 1000
+     * запросов на подключение
+     **/
+    public FileService() throws IOException {
+        this(new File(System.getProperty("docroot", ".")), 32 << 20, 64 << 10, 1000);
+    }
+    public FileService(File root, long cacheBytes, int maxCached, int maxRequests)
+            throws IOException {
+        this.root = root.getCanonicalFile();
+        if (!this.root.isDirectory())
+            throw new IllegalArgumentException("Нет каталога " + root);
+        String path = this.root.getPath();
+        this.rootPrefix = path.endsWith(File.separator) ? path : path + File.separator;
+        this.cacheBytes = cacheBytes;
+        this.maxCached = maxCached;
+        this.maxRequests = maxRequests;
+    }
+
+    /**
+     * Запись кэша: файл, его длина и время модификации, готовые заголовки
+     * ответа 200 (без Connection и завершающей пустой строки) и, для
+     * небольших файлов, содержимое.
+     **/
+    static class Entry {
+        final File file;
+        final long length, lastModified;
+        final String etag, modified, type;
+        final byte[] head;          // Строка статуса и заголовки ответа 200
+        final byte[] body;          // Содержимое (или null – отдавать из файла)
+        volatile long checkedAt;    // Когда запись сверялась с файлом
+        Entry(File file, long length, long lastModified, byte[] body) {
+            this.file = file;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.body = body;
+            etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+            modified = HTTP_DATE.format(Instant.ofEpochMilli(lastModified));
+            type = contentType(file.getName());
+            head = HttpMirror.ascii("HTTP/1.1 200 OK\r\n" + headers(length));
+            checkedAt = System.currentTimeMillis();
+        }
+        /** Заголовки содержимого для ответа заданной длины */
+        String headers(long contentLength) {
+            return "Content-Type: " + type + "\r\nContent-Length: " + contentLength +
+                    "\r\nLast-Modified: " + modified + "\r\nETag: " + etag +
+                    "\r\nAccept-Ranges: bytes\r\n";
+        }
+        /** Объем, учитываемый в кэше */
+        long size() { return 128 + head.length + ((body != null) ? body.length : 0); }
+    }
+
+    static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+            .withZone(ZoneOffset.UTC);
+    static final HashMap TYPES = new HashMap();
+    static {
+        String[] types = {
+            "html", "text/html", "htm", "text/html", "txt", "text/plain",
+            "css", "text/css", "js", "text/javascript", "json", "application/json",
+            "xml", "application/xml", "svg", "image/svg+xml", "png", "image/png",
+            "jpg", "image/jpeg", "jpeg", "image/jpeg", "gif", "image/gif",
+            "ico", "image/x-icon", "webp", "image/webp", "pdf", "application/pdf",
+            "wasm", "application/wasm", "woff2", "font/woff2", "zip", "application/zip",
+            "gz", "application/gzip", "mp4", "video/mp4" };
+        for(int i = 0; i < types.length; i += 2) TYPES.put(types[i], types[i + 1]);
+    }
+    static String contentType(String name) {
+        int dot = name.lastIndexOf('.');
+        String type = (dot < 0) ? null :
+                (String) TYPES.get(name.substring(dot + 1).toLowerCase());
+        return (type != null) ? type : "application/octet-stream";
+    }
+    /** Отметка для каталога, запрошенного без "/" в конце */
+    static final Entry DIRECTORY = new Entry(new File("/"), 0, 0, null);
+
+    /** Поток, отбрасывающий записанное: так пропускается тело запроса */
+    static final OutputStream DISCARD = new OutputStream() {
+        public void write(int b) {}
+        public void write(byte[] b, int off, int len) {}
+    };
+
+    /**
+     * Обслуживаем запросы подключения. Заголовки ответов копятся в буфере
+     * и отправляются, когда прочитаны все уже пришедшие запросы; содержимое
+     * больших файлов идет мимо буфера прямо в поток o.
+     **/
+    public void serve(InputStream i, OutputStream o) throws IOException {
+        HttpMirror.Input in = new HttpMirror.Input(i, 16384);
+        BufferedOutputStream out = new BufferedOutputStream(o, 16384);
+        Request r = new Request();
+        try {
+            for(int served = 1; served <= maxRequests; served++) {
+                if (!r.read(in)) break;                 // Клиент закрыл подключение
+                if (r.error == null) r.parseTarget();
+                if (r.error != null) {
+                    simple(out, r, "400 Bad Request", r.error, null, false);
+                    break;
+                }
+                // Тело запроса нам не нужно, но его надо пропустить
+                if (r.expectContinue && (r.chunked || (r.contentLength > 0))) {
+                    out.write(HttpMirror.CONTINUE);
+                    out.flush();
+                }
+                if (r.chunked) HttpMirror.copyChunks(in, DISCARD, r.head);
+                else HttpMirror.copy(in, DISCARD, r.contentLength);
+                boolean keepAlive = r.keepAlive && (served < maxRequests);
+                respond(r, out, o, keepAlive);
+                if (!keepAlive) break;
+                if (in.available() == 0) out.flush();
+            }
+            out.flush();
+        }
+        finally {
+            o.close();
+            i.close();
+        }
+    }
+
+    /** Отвечаем на один запрос */
+    void respond(Request r, BufferedOutputStream out, OutputStream raw,
+                 boolean keepAlive) throws IOException {
+        boolean head = r.method.equals("HEAD");
+        if (!head && !r.method.equals("GET")) {
+            simple(out, r, "405 Method Not Allowed", "Метод " + r.method + " не поддерживается",
+                    "Allow: GET, HEAD\r\n", keepAlive);
+            return;
+        }
+        Entry e = find(r.path);
+        if (e == null) {
+            notFound.increment();
+            simple(out, r, "404 Not Found", "Нет файла " + r.path, null, keepAlive);
+            return;
+        }
+        if (e == DIRECTORY) {
+            simple(out, r, "301 Moved Permanently", "Каталог: " + r.path + "/",
+                    "Location: " + r.target + "/\r\n", keepAlive);
+            return;
+        }
+        // Условный запрос: у клиента уже есть эта версия файла?
+        if ((r.ifNoneMatch != null) ? matches(r.ifNoneMatch, e.etag) :
+                ((r.ifModifiedSince >= 0) && (e.lastModified / 1000 <= r.ifModifiedSince / 1000))) {
+            notModified.increment();
+            out.write(HttpMirror.ascii("HTTP/1.1 304 Not Modified\r\nLast-Modified: " +
+                    e.modified + "\r\nETag: " + e.etag + "\r\n"));
+            endHeaders(out, r, keepAlive);
+            return;
+        }
+        // Диапазон учитываем, только если If-Range (если есть) совпадает
+        long[] range = null;
+        if ((r.range != null) && ((r.ifRange == null) || r.ifRange.equals(e.etag) ||
+                r.ifRange.equals(e.modified))) {
+            range = parseRange(r.range, e.length);
+            if ((range != null) && (range.length == 0)) {
+                simple(out, r, "416 Range Not Satisfiable", "Диапазон вне файла",
+                        "Content-Range: bytes */" + e.length + "\r\n", keepAlive);
+                return;
+            }
+        }
+        long start = 0, count = e.length;
+        if (range != null) {
+            partial.increment();
+            start = range[0];
+            count = range[1] - range[0] + 1;
+            out.write(HttpMirror.ascii("HTTP/1.1 206 Partial Content\r\nContent-Range: bytes " +
+                    range[0] + "-" + range[1] + "/" + e.length + "\r\n" + e.headers(count)));
+        }
+        else out.write(e.head);
+        endHeaders(out, r, keepAlive);
+        if (head || (count == 0)) return;
+        if (e.body != null) {                       // Содержимое из кэша
+            out.write(e.body, (int) start, (int) count);
+            fromMemory.add(count);
+            return;
+        }
+        // Большой файл: сначала отправляем заголовки, затем файл мимо буфера
+        out.flush();
+        FileChannel file = new RandomAccessFile(e.file, "r").getChannel();
+        try { Server.sendFile(file, start, count, raw); }
+        finally { file.close(); }
+        fromFile.add(count);
+    }
+    /** Заголовок Connection, если он нужен, и пустая строка */
+    static void endHeaders(OutputStream out, Request r, boolean keepAlive) throws IOException {
+        if (!keepAlive) out.write(HttpMirror.CLOSE);
+        else if (!r.http11) out.write(HttpMirror.KEEP_ALIVE);
+        out.write(HttpMirror.CRLF);
+    }
+    /** Короткий ответ с текстовым сообщением */
+    static void simple(OutputStream out, Request r, String status, String message,
+                       String headers, boolean keepAlive) throws IOException {
+        byte[] body = (message + "\n").getBytes("UTF-8");
+        out.write(HttpMirror.ascii("HTTP/1.1 " + status +
+                "\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Length: " +
+                body.length + "\r\n" + ((headers != null) ? headers : "")));
+        endHeaders(out, r, keepAlive);
+        out.write(body);
+    }
+    /** Есть ли заданный ETag в списке заголовка If-None-Match? */
+    static boolean matches(String list, String etag) {
+        StringTokenizer t = new StringTokenizer(list, ",");
+        while(t.hasMoreTokens()) {
+            String tag = t.nextToken().trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);   // Слабое сравнение
+            if (tag.equals("*") || tag.equals(etag)) return true;
+        }
+        return false;
+    }
+    /**
+     * Разбираем заголовок Range для файла заданной длины. Возвращает
+     * первый и последний байты диапазона, пустой массив, если диапазон
+     * вне файла, или null, если заголовок не понят или задает несколько
+     * диапазонов (тогда отдается весь файл, что допускает RFC 7233).
+     **/
+    static long[] parseRange(String value, long length) {
+        if (!value.startsWith("bytes=") || (value.indexOf(',') >= 0)) return null;
+        String spec = value.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        try {
+            long first, last;
+            if (dash == 0) {                        // Последние n байтов
+                long n = Long.parseLong(spec.substring(1));
+                if (n <= 0) return new long[0];
+                first = Math.max(0, length - n);
+                last = length - 1;
+            }
+            else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = (dash == spec.length() - 1) ? length - 1 :
+                        Math.min(Long.parseLong(spec.substring(dash + 1)), length - 1);
+                if (last < first) return (first < length) ? null : new long[0];
+            }
+            if (first >= length) return new long[0];
+            return new long[] { first, last };
+        }
+        catch (NumberFormatException e) { return null; }
+    }
+
+    /**
+     * Ищем файл по пути запроса: сначала в кэше (сверяя запись с файлом
+     * не чаще раза в CHECK_MILLIS), затем на диске. Возвращает null, если
+     * файла нет или путь выходит за корень документов.
+     **/
+    Entry find(String path) throws IOException {
+        Entry e;
+        synchronized(cache) { e = (Entry) cache.get(path); }
+        if (e != null) {
+            long now = System.currentTimeMillis();
+            if ((now - e.checkedAt < CHECK_MILLIS) ||
+                    ((e.file.lastModified() == e.lastModified) && (e.file.length() == e.length))) {
+                e.checkedAt = now;
+                hits.increment();
+                return e;
+            }
+            invalidated.increment();            // Файл изменился или удален
+            synchronized(cache) {
+                if (cache.get(path) == e) {
+                    cache.remove(path);
+                    cachedBytes -= e.size();
+                }
+            }
+        }
+        misses.increment();
+        File f = new File(root, path).getCanonicalFile();
+        if (!(f.getPath() + File.separator).startsWith(rootPrefix)) return null;
+        if (f.isDirectory()) {
+            if (!path.endsWith("/")) return DIRECTORY;
+            f = new File(f, "index.html");
+        }
+        e = load(f);
+        if (e == null) return null;
+        synchronized(cache) {
+            Entry old = (Entry) cache.put(path, e);
+            if (old != null) cachedBytes -= old.size();
+            cachedBytes += e.size();
+            // Вытесняем записи, к которым дольше всего не обращались
+            Iterator i = cache.values().iterator();
+            while((cachedBytes > cacheBytes) && i.hasNext()) {
+                cachedBytes -= ((Entry) i.next()).size();
+                i.remove();
+            }
+        }
+        return e;
+    }
+    /**
+     * Создаем запись для файла. Небольшой файл читаем целиком; если он
+     * изменился во время чтения, читаем заново.
+     **/
+    Entry load(File f) throws IOException {
+        for(int attempt = 0; attempt < 3; attempt++) {
+            if (!f.isFile() || !f.canRead()) return null;
+            long modified = f.lastModified();
+            long length = f.length();
+            if (length > maxCached) return new Entry(f, length, modified, null);
+            byte[] body = new byte[(int) length];
+            DataInputStream in;
+            try { in = new DataInputStream(new FileInputStream(f)); }
+            catch (FileNotFoundException e) { return null; }
+            try {
+                in.readFully(body);
+                if ((in.read() == -1) && (f.lastModified() == modified))
+                    return new Entry(f, length, modified, body);
+            }
+            catch (EOFException e) {}               // Файл укоротился
+            finally { in.close(); }
+        }
+        throw new IOException("Файл " + f + " постоянно меняется");
+    }
+
+    /** Сводка для отображения состояния сервера */
+    public String status() {
+        int entries;
+        long bytes;
+        synchronized(cache) {
+            entries = cache.size();
+            bytes = cachedBytes;
+        }
+        return "ФАЙЛЫ ИЗ " + root + ": В КЭШЕ " + entries + " (" + bytes + " БАЙТ); " +
+                "ИЗ КЭША " + hits.sum() + ", ПОИСКОВ " + misses.sum() + ", УСТАРЕЛО " +
+                invalidated.sum() + "; ОТВЕТОВ 304 " + notModified.sum() + ", 206 " +
+                partial.sum() + ", 404 " + notFound.sum() + "; БАЙТОВ ИЗ ПАМЯТИ " +
+                fromMemory.sum() + ", ИЗ ФАЙЛОВ " + fromFile.sum();
+    }
+
+    /**
+     * Запрос к файлу: к разбору заголовков HttpMirror добавляются метод,
+     * путь и заголовки условных запросов и диапазонов.
+     **/
+    static class Request extends HttpMirror.Request {
+        String method, target, path;    // Метод, цель запроса и путь файла
+        String range, ifRange, ifNoneMatch;
+        long ifModifiedSince;           // Мс от 1970 г. или -1
+
+        boolean read(HttpMirror.Input in) throws IOException {
+            range = ifRange = ifNoneMatch = null;
+            ifModifiedSince = -1;
+            return super.read(in);
+        }
+        void header(int from, int to) {
+            super.header(from, to);
+            int colon = from;
+            while((colon < to) && (head.data[colon] != ':')) colon++;
+            if (colon == to) return;
+            int nameEnd = colon;
+            while((nameEnd > from) && (head.data[nameEnd - 1] == ' ')) nameEnd--;
+            if (head.equalsIgnoreCase(from, nameEnd, "range"))
+                range = head.toString(colon + 1, to).trim();
+            else if (head.equalsIgnoreCase(from, nameEnd, "if-range"))
+                ifRange = head.toString(colon + 1, to).trim();
+            else if (head.equalsIgnoreCase(from, nameEnd, "if-none-match"))
+                ifNoneMatch = head.toString(colon + 1, to).trim();
+            else if (head.equalsIgnoreCase(from, nameEnd, "if-modified-since")) {
+                try {
+                    ifModifiedSince = ZonedDateTime.parse(head.toString(colon + 1, to).trim(),
+                            DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                }
+                catch (DateTimeParseException e) {}     // Неверная дата не учитывается
+            }
+        }
+        /** Разбираем строку запроса: метод, цель и путь без параметров */
+        void parseTarget() {
+            int end = 0;
+            while(head.data[end] != '\n') end++;
+            StringTokenizer t = new StringTokenizer(head.toString(0, end), " ");
+            if (t.countTokens() < 2) {
+                error = "Неверная строка запроса";
+                return;
+            }
+            method = t.nextToken();
+            target = t.nextToken();
+            int query = target.indexOf('?');
+            if (query >= 0) target = target.substring(0, query);
+            if (!target.startsWith("/")) {
+                error = "Цель запроса должна начинаться с /";
+                return;
+            }
+            path = decode(target);
+            if ((path == null) || (path.indexOf('\0') >= 0)) error = "Неверный путь " + target;
+        }
+        /** Раскодируем %XX (в UTF-8); null, если запись неверна */
+        static String decode(String s) {
+            if (s.indexOf('%') < 0) return s;
+            ByteArrayOutputStream b = new ByteArrayOutputStream(s.length());
+            for(int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c != '%') {
+                    b.write(c);
+                    continue;
+                }
+                if (i + 2 >= s.length()) return null;
+                try { b.write(Integer.parseInt(s.substring(i + 1, i + 3), 16)); }
+                catch (NumberFormatException e) { return null; }
+                i += 2;
+            }
+            try { return b.toString("UTF-8"); }
+            catch (UnsupportedEncodingException e) { return null; }
+        }
+    }
+}
@@ -1,12 +1,47 @@
 import java.io.*;
 import java.net.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 /**
  * Эта программа соединяется с сервером на заданном узле и порте.
  * Она считывает текст с консоли и отправляет его серверу.
  * Она считывает текст от сервера и выводит его на консоль.
+ *
+ * Если первый аргумент – load, программа работает как генератор нагрузки:
+ * она открывает заданное число одновременных подключений и в каждом
+ * повторяет запросы из сценария (по одному запросу на строку файла),
+ * а в конце печатает пропускную способность и распределение задержек.
+ * В открытом цикле (с параметром rate) запросы отправляются по расписанию
+ * с заданной суммарной частотой, и задержка отсчитывается от момента, когда
+ * запрос должен был уйти по расписанию, а не от фактической отправки. Так
+ * исправляется «координированное упущение» (coordinated omission): если
+ * сервер замедлился, запросы, которые ждали своей очереди, учитываются
+ * со всем временем ожидания, а не пропадают из статистики. Расписание
+ * начинается, только когда все сеансы запущены и подключены (или истекло
+ * время, отведенное на подключение), так что время установления
+ * подключений в задержку не попадает. В замкнутом
+ * цикле каждое подключение отправляет следующий запрос сразу после ответа
+ * на предыдущий, и измеряется только время обслуживания.
+ *
+ * Конец ответа определяется одним из способов: по подсказке (prompt,
+ * по умолчанию "> ", как у службы Reverse), по концу строки (line) или
+ * по закрытию подключения сервером (eof, как у служб Time, UniqueID
+ * и HTTPMirror; тогда для каждого запроса открывается новое подключение).
  **/
 public class GenericClient {
     public static void main(String[] args) throws IOException {
+        if ((args.length > 0) && args[0].equals("load")) {
+            try { load(args); }
+            catch (Exception e) {
+                System.err.println(e);
+                System.err.println("Формат: java GenericClient load <hostname> <port> " +
+                        "<connections> <seconds> [rate <requests/s>] " +
+                        "[script <file>] [prompt <text> | line | eof]");
+            }
+            return;
+        }
         try {
             // Проверяем число аргументов
             if (args.length != 2)
@@ -87,6 +122,252 @@ public class GenericClient {
         catch (Exception e) {
             System.err.println(e);
             System.err.println("Формат: java GenericClient <hostname> <port>");
+            System.err.println("        java GenericClient load <hostname> <port> " +
+                    "<connections> <seconds> [rate <requests/s>] " +
+                    "[script <file>] [prompt <text> | line | eof]");
+        }
+    }
+
+    // Способы определить конец ответа
+    static final int PROMPT = 0, LINE = 1, EOF = 2;
+
+    /** Режим генератора нагрузки: разбираем аргументы, запускаем сеансы, печатаем итоги */
+    static void load(String[] args) throws Exception {
+        if (args.length < 5)
+            throw new IllegalArgumentException("Неправильное число аргументов");
+        String host = args[1];
+        int port = Integer.parseInt(args[2]);
+        int connections = Integer.parseInt(args[3]);
+        int seconds = Integer.parseInt(args[4]);
+        double rate = 0;                 // 0 – замкнутый цикл
+        String scriptFile = null;
+        int mode = PROMPT;
+        String prompt = "> ";
+        for(int i = 5; i < args.length; i++) {
+            if (args[i].equals("rate")) rate = Double.parseDouble(args[++i]);
+            else if (args[i].equals("script")) scriptFile = args[++i];
+            else if (args[i].equals("prompt")) { mode = PROMPT; prompt = unescape(args[++i]); }
+            else if (args[i].equals("line")) mode = LINE;
+            else if (args[i].equals("eof")) mode = EOF;
+            else throw new IllegalArgumentException("Неизвестный параметр: " + args[i]);
+        }
+        if ((connections < 1) || (seconds < 1) || (rate < 0))
+            throw new IllegalArgumentException("Неправильные параметры нагрузки");
+        byte[][] requests = readScript(scriptFile, mode);
+
+        Histogram latency = new Histogram();   // От срока по расписанию до ответа, мкс
+        Histogram service = new Histogram();   // От отправки до ответа, мкс
+        Schedule schedule = new Schedule(connections);
+        // В открытом цикле каждое подключение отправляет запросы с интервалом
+        // connections/rate, а начала расписаний равномерно сдвинуты друг
+        // относительно друга, чтобы запросы не уходили пачками
+        long interval = (rate > 0) ? (long) (connections * 1e9 / rate) : 0;
+        LoadSession[] sessions = new LoadSession[connections];
+        for(int c = 0; c < connections; c++) {
+            sessions[c] = new LoadSession(host, port, mode, prompt.getBytes(),
+                    requests, c % requests.length, interval * c / connections,
+                    interval, schedule, latency, service);
+            sessions[c].start();
+        }
+        // Все сеансы подключились: начинаем расписание. Если сервер не
+        // принимает часть подключений (например, из-за своего лимита), ждем
+        // не дольше 10 с плюс 1 мс на подключение и начинаем без них
+        if (!schedule.connected.await(10000 + connections, TimeUnit.MILLISECONDS))
+            System.out.println("Не подключились к началу расписания: " +
+                    schedule.connected.getCount() + " из " + connections);
+        long start = schedule.start = System.nanoTime();
+        long end = schedule.end = start + seconds * 1000000000L;
+        schedule.go.countDown();
+        long completed = 0, errors = 0;
+        for(int c = 0; c < connections; c++) {
+            sessions[c].join();
+            completed += sessions[c].completed;
+            errors += sessions[c].errors;
+        }
+        double elapsed = (Math.max(System.nanoTime(), end) - start) / 1e9;
+
+        System.out.println("Подключений " + connections + ", " + ((rate > 0) ?
+                "открытый цикл, " + rate + " запросов/с" : "замкнутый цикл"));
+        System.out.println("Выполнено запросов: " + completed + " за " +
+                Math.round(elapsed * 10) / 10.0 + " с (" + Math.round(completed / elapsed) +
+                " в секунду), ошибок " + errors);
+        if (rate > 0)
+            System.out.println("Задержка с поправкой на координированное упущение, мкс: " +
+                    summary(latency));
+        System.out.println("Время обслуживания, мкс: " + summary(service));
+    }
+    static String summary(Histogram h) {
+        return "p50 " + h.percentile(0.50) + " p99 " + h.percentile(0.99) +
+                " p99.9 " + h.percentile(0.999) + " max " + h.max();
+    }
+    /**
+     * Считываем сценарий: каждая строка – один запрос. В строке допускаются
+     * escape-последовательности \r, \n, \t и \\; если запрос не оканчивается
+     * символом \n, он добавляется. Пустая строка означает, что ничего
+     * отправлять не надо (например, для службы Time). Без файла сценария
+     * по постоянному подключению отправляется "hello", а в режиме eof –
+     * ничего.
+     **/
+    static byte[][] readScript(String file, int mode) throws IOException {
+        ArrayList lines = new ArrayList();
+        if (file != null) {
+            BufferedReader in = new BufferedReader(new FileReader(file));
+            String line;
+            while((line = in.readLine()) != null) lines.add(line);
+            in.close();
+        }
+        else lines.add((mode == EOF) ? "" : "hello");
+        if (lines.isEmpty()) throw new IllegalArgumentException("Пустой сценарий");
+        byte[][] requests = new byte[lines.size()][];
+        for(int i = 0; i < requests.length; i++) {
+            String r = unescape((String) lines.get(i));
+            if ((r.length() > 0) && !r.endsWith("\n")) r += "\n";
+            requests[i] = r.getBytes();
+        }
+        return requests;
+    }
+    /** Заменяем escape-последовательности \r, \n, \t и \\ символами */
+    static String unescape(String s) {
+        StringBuffer b = new StringBuffer();
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c == '\\') && (i + 1 < s.length())) {
+                char e = s.charAt(++i);
+                if (e == 'n') c = '\n';
+                else if (e == 'r') c = '\r';
+                else if (e == 't') c = '\t';
+                else c = e;
+            }
+            b.append(c);
+        }
+        return b.toString();
+    }
+
+    /**
+     * Общее расписание сеансов нагрузки. Каждый сеанс, подключившись,
+     * отсчитывает connected, а затем ждет go; начало и конец расписания
+     * задаются перед go и поэтому видны всем сеансам.
+     **/
+    static class Schedule {
+        final CountDownLatch connected;
+        final CountDownLatch go = new CountDownLatch(1);
+        long start, end;                 // Начало и конец расписания, нс
+        Schedule(int sessions) { connected = new CountDownLatch(sessions); }
+    }
+
+    /**
+     * Один сеанс нагрузки: поток исполнения, который отправляет запросы
+     * сценария по одному подключению (или по новому подключению на каждый
+     * запрос в режиме eof) до истечения заданного времени.
+     **/
+    static class LoadSession extends Thread {
+        final String host;
+        final int port;
+        final int mode;
+        final byte[] prompt;
+        final byte[][] requests;
+        int next;                        // Номер следующего запроса сценария
+        final long offset;               // Сдвиг расписания сеанса от общего начала
+        long due;                        // Срок следующего запроса по расписанию
+        final long interval;             // Интервал расписания (0 – замкнутый цикл)
+        final Schedule schedule;         // Общее начало и конец расписания
+        final Histogram latency, service;
+        long completed, errors;
+        Socket socket;
+        InputStream in;
+        OutputStream out;
+        LoadSession(String host, int port, int mode, byte[] prompt, byte[][] requests,
+                    int first, long offset, long interval, Schedule schedule,
+                    Histogram latency, Histogram service) {
+            super("Load:" + first);
+            this.host = host;
+            this.port = port;
+            this.mode = mode;
+            this.prompt = prompt;
+            this.requests = requests;
+            this.next = first;
+            this.offset = offset;
+            this.interval = interval;
+            this.schedule = schedule;
+            this.latency = latency;
+            this.service = service;
+            setDaemon(true);
+        }
+        public void run() {
+            // Постоянное подключение открываем заранее, вне измерений
+            if (mode != EOF) {
+                try { connect(); }
+                catch (IOException e) { errors++; close(); }
+            }
+            schedule.connected.countDown();
+            try { schedule.go.await(); }
+            catch (InterruptedException e) { return; }
+            due = schedule.start + offset;
+            long end = schedule.end;
+            for(;;) {
+                if (interval > 0) {      // Открытый цикл: ждем срока по расписанию
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                }
+                long sent = System.nanoTime();
+                if (sent >= end) break;
+                // В открытом цикле задержка отсчитывается от срока по расписанию,
+                // даже если запрос ушел позже из-за медленного предыдущего ответа
+                long intended = (interval > 0) ? due : sent;
+                due += interval;
+                try {
+                    if (socket == null) connect();
+                    byte[] request = requests[next++ % requests.length];
+                    if (request.length > 0) {
+                        out.write(request);
+                        out.flush();
+                    }
+                    readResponse();
+                    if (mode == EOF) close();
+                }
+                catch (IOException e) {
+                    errors++;
+                    close();
+                    // В замкнутом цикле не долбим недоступный сервер без передышки
+                    if (interval == 0) LockSupport.parkNanos(1000000);
+                    continue;
+                }
+                long done = System.nanoTime();
+                latency.record((done - intended) / 1000);
+                service.record((done - sent) / 1000);
+                completed++;
+            }
+            close();
+        }
+        /** Подключаемся; в режиме prompt считываем приветствие до подсказки */
+        void connect() throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            // Закрываем с RST, чтобы частые подключения не оставались
+            // в TIME_WAIT и не исчерпывали локальные порты
+            if (mode == EOF) socket.setSoLinger(true, 0);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+            if (mode == PROMPT) readResponse();
+        }
+        /** Считываем ответ до подсказки, конца строки или EOF */
+        void readResponse() throws IOException {
+            int matched = 0, c;
+            while((c = in.read()) != -1) {
+                if (mode == LINE) { if (c == '\n') return; }
+                else if (mode == PROMPT) {
+                    if (c == (prompt[matched] & 0xff)) matched++;
+                    else matched = (c == (prompt[0] & 0xff)) ? 1 : 0;
+                    if (matched == prompt.length) return;
+                }
+            }
+            if (mode != EOF) throw new EOFException("Сервер закрыл подключение");
+        }
+        void close() {
+            if (socket != null) {
+                try { socket.close(); } catch (IOException e) {}
+            }
+            socket = null;
         }
     }
 }
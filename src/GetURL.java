@@ -19,10 +19,7 @@ public class GetURL {
                 out = new FileOutputStream(args[1]);
             else out = System.out;
 
-            byte[] buffer = new byte[4096];
-            int bytes_read;
-            while ((bytes_read = in.read(buffer)) != -1)
-                out.write(buffer, 0, bytes_read);
+            StreamCopier.copy(in, out);
         } catch (Exception e) {
             System.err.println(e);
             System.err.println("Формат: java GetURL <URL> [<filename>]");
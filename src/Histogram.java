@@ -0,0 +1,89 @@
+import java.util.concurrent.atomic.*;
+/**
+ * Этот класс накапливает распределение неотрицательных целых значений
+ * (например, длительностей в микросекундах) в лог-линейных корзинах: каждый
+ * интервал от 2^k до 2^(k+1) делится на 16 равных корзин, так что
+ * погрешность любого процентиля не превышает 1/16 его величины, а весь
+ * диапазон long помещается в 960 счетчиков. Запись значения не выделяет
+ * памяти и не захватывает блокировок: она лишь увеличивает атомарный счетчик
+ * корзины, поэтому гистограмму можно пополнять из любого числа потоков.
+ **/
+public class Histogram {
+    static final int SUB_BITS = 4;                  // 16 корзин на удвоение
+    static final int SUB_COUNT = 1 << SUB_BITS;
+    static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    final AtomicLong count = new AtomicLong();      // Число значений
+    final AtomicLong sum = new AtomicLong();        // Их сумма
+    final AtomicLong max = new AtomicLong();        // Наибольшее из них
+
+    /** Номер корзины для заданного значения */
+    static int index(long value) {
+        if (value < SUB_COUNT) return (int) value;  // Малые значения – точно
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int sub = (int) (value >>> shift) & (SUB_COUNT - 1);
+        return ((shift + 1) << SUB_BITS) + sub;
+    }
+    /** Наименьшее значение, попадающее в заданную корзину */
+    static long lowerBound(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = (index >>> SUB_BITS) - 1;
+        return (long) (SUB_COUNT + (index & (SUB_COUNT - 1))) << shift;
+    }
+    /** Наибольшее значение, попадающее в заданную корзину */
+    static long upperBound(int index) {
+        return (index + 1 < BUCKETS) ? lowerBound(index + 1) - 1 : Long.MAX_VALUE;
+    }
+
+    /** Учитываем значение; отрицательные считаются нулем */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while((value > (m = max.get())) && !max.compareAndSet(m, value));
+    }
+    public long count() { return count.get(); }
+    public long sum() { return sum.get(); }
+    public long max() { return max.get(); }
+    /**
+     * Значение, не превышаемое заданной долей (от 0 до 1) учтенных значений.
+     * Возвращается верхняя граница соответствующей корзины (но не больше
+     * наибольшего учтенного значения).
+     **/
+    public long percentile(double p) {
+        long total = count.get();
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(p * total);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+    /** Число учтенных значений, меньших заданной границы */
+    public long countBelow(long bound) {
+        long n = 0;
+        for(int i = 0; (i < BUCKETS) && (lowerBound(i) < bound); i++)
+            n += counts.get(i);
+        return n;
+    }
+    /**
+     * Число учтенных значений, не больших заданной границы. Оно точно,
+     * если bound + 1 – граница корзины (например, bound = 2^k - 1);
+     * иначе учитывается и вся корзина, в которую попадает bound.
+     **/
+    public long countAtMost(long bound) {
+        return (bound == Long.MAX_VALUE) ? count() : countBelow(bound + 1);
+    }
+    /** Краткая сводка: число значений и основные процентили */
+    public String toString() {
+        return "n " + count() + " p50 " + percentile(0.50) + " p90 " +
+                percentile(0.90) + " p99 " + percentile(0.99) + " p99.9 " +
+                percentile(0.999) + " max " + max();
+    }
+}
@@ -26,7 +26,7 @@ public class HttpClient {
             // стандартный порт HTTP
             String filename = url.getFile();
             // Открываем сетевое подключение с заданным узлом и портом
-            Socket socket = new Socket(host, port);
+            Socket socket = new Socket(Resolver.getDefault().resolve(host), port);
             // Получаем потоки ввода и вывода для соединения socket
             InputStream from_server = socket.getInputStream();
             PrintWriter to_server = new PrintWriter(socket.getOutputStream());
@@ -35,10 +35,7 @@ public class HttpClient {
             to_server.print("GET " + filename + "\n\n");
             to_server.flush(); // Отправляем немедленно!
             // Теперь читаем ответ сервера и записываем его в файл
-            byte[] buffer = new byte[4096];
-            int bytes_read;
-            while((bytes_read = from_server.read(buffer)) !=-1)
-            to_file.write(buffer, 0, bytes_read);
+            StreamCopier.copy(from_server, to_file);
             // Когда сервер разрывает подключение, и мы закрываем свое хозяйство
             socket.close();
             to_file.close();
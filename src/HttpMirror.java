@@ -1,55 +1,383 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
 /**
- * Эта программа представляет собой очень простой вебсервер. Получив
- * HTTPзапрос, она отправляет этот запрос в качестве ответа. Это может
+ * Эта программа представляет собой очень простой вебсервер. Получив
+ * HTTPзапрос, она отправляет этот запрос в качестве ответа. Это может
  * быть интересно, например, если вы хотите понять, что именно запрашивает
  * клиент или какие данные передаются при отправке формы.
+ *
+ * Сервер понимает HTTP/1.1: подключение остается открытым для следующих
+ * запросов (keep-alive), пока клиент не попросит закрыть его, не истечет
+ * пауза простоя или не будет обслужено заданное число запросов. Запросы
+ * могут идти друг за другом, не дожидаясь ответов (pipelining): ответы
+ * копятся в буфере и отправляются, когда прочитаны все уже пришедшие
+ * запросы. Тело запроса (с заголовком Content-Length или в виде порций
+ * chunked) тоже возвращается клиенту, причем по мере чтения, без
+ * накопления в памяти, так что размер тела не ограничен.
+ *
+ * Тот же обмен выполняет для сервера Server его служба Server.HTTPMirror,
+ * вызывая метод mirror().
  **/
 public class HttpMirror {
+    static final int MAX_LINE = 8192;       // Предельная длина строки заголовка
+    static final int MAX_HEAD = 65536;      // Предельный размер всех заголовков
+
     public static void main(String args[]) {
         try {
             // Получаем порт, по которому будет осуществляться прослушивание
             int port = Integer.parseInt(args[0]);
+            // Пауза простоя подключения и число запросов на подключение
+            int idle = 5000, requests = 1000;
+            for(int i = 1; i < args.length; i += 2) {
+                if (args[i].equals("idle")) idle = Integer.parseInt(args[i + 1]);
+                else if (args[i].equals("requests")) requests = Integer.parseInt(args[i + 1]);
+                else throw new IllegalArgumentException(args[i]);
+            }
+            final int maxRequests = requests;
             // Создаем ServerSocket для прослушивания этого порта.
             ServerSocket ss = new ServerSocket(port);
-            // Теперь входим в бесконечный цикл ожидания и обработки подключений.
+            // Теперь входим в бесконечный цикл ожидания подключений.
             for(;;) {
                 // Ожидаем подключения клиента. Метод переходит в состояние ожидания
                 // соединения; он возвращает уже установленное соединение с клиентом
-                Socket client = ss.accept();
-                // Получаем потоки ввода и вывода для разговора с клиентом
-                BufferedReader in = new BufferedReader(
-                        new InputStreamReader(client.getInputStream()));
-                PrintWriter out = new PrintWriter(client.getOutputStream());
-                // Отправляем наш ответ, используя протокол HTTP 1.0
-                out.print("HTTP/1.0 200 \n");            // Коды версии и статуса
-                out.print("ContentType: text/plain\n"); // Тип данных
-                out.print("\n");                         // Заголовки закончились
-                // Теперь считываем HTTPзапрос клиента и возвращаем его клиенту
-                // в виде части тела нашего ответа. Клиент не отсоединяется, поэтому мы
-                // никогда не получаем EOF. Он, однако, посылает после заголовков
-                // пустую строку. Поэтому, когда мы видим пустую строку, мы перестаем
-                // читать. Это значит, в частности, что мы не будем возвращать содержимое
-                // запросов POST, к примеру. Заметим, что метод readLine()
-                // работает с признаками конца строки, принятыми в Unix, Windows и Mac.
-                String line;
-                while((line = in.readLine()) != null) {
-                    if (line.length() == 0) break;
-                    out.print(line + "\n");
-                }
-                // Закрываем объект Socket, разрывая подключение к клиенту, и
-                // закрываем потоки ввода и вывода
-                out.close();    // Проталкиваем и закрываем поток вывода
-                in.close();     // Закрываем поток ввода
-                client.close(); // Закрываем сам объект Socket
-            } // И возвращаемся к началу цикла, где будем ожидать нового подключения
-        }
-        // Если чтото не в порядке, печатаем сообщение об ошибке
+                final Socket client = ss.accept();
+                // Подключение может жить долго, поэтому обслуживаем его
+                // в отдельном потоке исполнения и сразу ждем следующего.
+                // Если клиент молчит дольше паузы простоя, чтение прервется
+                // исключением SocketTimeoutException, и подключение закроется.
+                client.setSoTimeout(idle);
+                client.setTcpNoDelay(true);
+                new Thread("HttpMirror:" + client.getPort()) {
+                    public void run() {
+                        try { mirror(client.getInputStream(), client.getOutputStream(), maxRequests); }
+                        catch (SocketTimeoutException e) {} // Клиент простаивал
+                        catch (IOException e) { System.err.println(e); }
+                        finally {
+                            try { client.close(); } catch (IOException e) {}
+                        }
+                    }
+                }.start();
+            }
+        }
+        // Если чтото не в порядке, печатаем сообщение об ошибке
         catch (Exception e) {
             System.err.println(e);
-            System.err.println("Формат: java HttpMirror <port>");
+            System.err.println("Формат: java HttpMirror <port> [idle <ms>] [requests <n>]");
+        }
+    }
+
+    /**
+     * Обслуживаем запросы одного подключения, но не больше maxRequests.
+     * Метод возвращает число обслуженных запросов, когда клиент закрыл
+     * подключение или попросил закрыть его, или когда исчерпан лимит
+     * запросов. Потоки не закрываются: это дело вызывающего.
+     **/
+    public static int mirror(InputStream i, OutputStream o, int maxRequests)
+            throws IOException
+    {
+        Input in = new Input(i, 16384);
+        BufferedOutputStream out = new BufferedOutputStream(o, 16384);
+        Request r = new Request();
+        int served = 0;
+        try {
+            while(served < maxRequests) {
+                if (!r.read(in)) break;                 // Клиент закрыл подключение
+                if (r.error != null) {                  // Запрос не разобран
+                    byte[] message = (r.error + "\n").getBytes("UTF-8");
+                    out.write(ascii("HTTP/1.1 400 Bad Request\r\n" +
+                            "Content-Type: text/plain; charset=utf-8\r\n" +
+                            "Content-Length: " + message.length +
+                            "\r\nConnection: close\r\n\r\n"));
+                    out.write(message);
+                    break;
+                }
+                served++;
+                boolean keepAlive = r.keepAlive && (served < maxRequests);
+                respond(r, in, out, keepAlive);
+                if (!keepAlive) break;
+                // Следующий запрос уже пришел (pipelining)? Тогда ответ
+                // отправится вместе с ответом на него, иначе отправляем сейчас
+                if (in.available() == 0) out.flush();
+            }
+        }
+        finally { out.flush(); }
+        return served;
+    }
+
+    // Готовые части заголовков ответа
+    static final byte[] STATUS_11 = ascii("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n");
+    static final byte[] STATUS_10 = ascii("HTTP/1.0 200 OK\r\nContent-Type: text/plain\r\n");
+    static final byte[] CLOSE = ascii("Connection: close\r\n");
+    static final byte[] KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    static final byte[] CONTINUE = ascii("HTTP/1.1 100 Continue\r\n\r\n");
+    static final byte[] CHUNKED = ascii("Transfer-Encoding: chunked\r\n\r\n");
+    static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    static final byte[] CRLF = ascii("\r\n");
+    static final byte[] BLANK_LINE = ascii("\n");  // Между эхом заголовков и тела
+    static final byte[] END_OF_HEADERS = ascii("\r\n\r\n");
+    static final byte[] LAST_CHUNK = ascii("0\r\n\r\n");
+    static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for(int i = 0; i < b.length; i++) b[i] = (byte) s.charAt(i);
+        return b;
+    }
+
+    /**
+     * Отвечаем на разобранный запрос: его заголовки и тело становятся
+     * телом ответа, а разделяет их, как и в запросе, пустая строка. Тело
+     * запроса копируется в ответ порциями по мере чтения.
+     **/
+    static void respond(Request r, Input in, OutputStream out, boolean keepAlive)
+            throws IOException {
+        // Клиент ждет разрешения, прежде чем отправить тело
+        if (r.expectContinue && (r.chunked || (r.contentLength > 0))) {
+            out.write(CONTINUE);
+            out.flush();
+        }
+        out.write(r.http11 ? STATUS_11 : STATUS_10);
+        if (!keepAlive) out.write(CLOSE);
+        else if (!r.http11) out.write(KEEP_ALIVE);
+        if (r.chunked) {
+            // Длина тела заранее неизвестна: отвечаем тоже порциями
+            out.write(CHUNKED);
+            writeChunkHeader(out, r.head.length + BLANK_LINE.length);
+            r.head.writeTo(out);
+            out.write(BLANK_LINE);
+            out.write(CRLF);
+            copyChunks(in, out, r.head);
+            out.write(LAST_CHUNK);
+        }
+        else {
+            out.write(CONTENT_LENGTH);
+            out.write(ascii(Long.toString(r.head.length + BLANK_LINE.length +
+                    r.contentLength)));
+            out.write(END_OF_HEADERS);
+            r.head.writeTo(out);
+            out.write(BLANK_LINE);
+            copy(in, out, r.contentLength);
+        }
+    }
+
+    /** Копируем ровно length байтов тела запроса */
+    static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        if (length <= 0) return;
+        byte[] buffer = new byte[(int) Math.min(length, 16384)];
+        while(length > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(length, buffer.length));
+            if (n == -1) throw new EOFException("Тело запроса оборвано");
+            out.write(buffer, 0, n);
+            length -= n;
+        }
+    }
+    /**
+     * Копируем тело в кодировке chunked: каждая порция запроса становится
+     * порцией ответа той же длины. Завершающие заголовки (trailers)
+     * пропускаем. Буфер line используется для строк длины порций.
+     **/
+    static void copyChunks(Input in, OutputStream out, Bytes line) throws IOException {
+        for(;;) {
+            line.reset();
+            if (!in.readLine(line)) throw new EOFException("Тело запроса оборвано");
+            String size = line.toString(0, line.length);
+            int semicolon = size.indexOf(';');      // Расширения порции не нужны
+            if (semicolon >= 0) size = size.substring(0, semicolon);
+            long length;
+            try { length = Long.parseLong(size.trim(), 16); }
+            catch (NumberFormatException e) { throw new IOException("Неверная длина порции: " + size); }
+            // parseLong() допускает знак, а длина порции отрицательной не бывает
+            if (length < 0) throw new IOException("Неверная длина порции: " + size);
+            if (length == 0) break;
+            writeChunkHeader(out, length);
+            copy(in, out, length);
+            out.write(CRLF);
+            line.reset();
+            in.readLine(line);                      // CRLF после данных порции
+        }
+        do { line.reset(); } while(in.readLine(line) && (line.length > 0));
+    }
+    static void writeChunkHeader(OutputStream out, long length) throws IOException {
+        out.write(ascii(Long.toHexString(length)));
+        out.write(CRLF);
+    }
+
+    /**
+     * Растущий массив байтов, как ByteArrayOutputStream, но без
+     * синхронизации и с прямым доступом к содержимому.
+     **/
+    static class Bytes {
+        byte[] data;
+        int length;
+        Bytes(int size) { data = new byte[size]; }
+        void reset() { length = 0; }
+        void add(byte[] b, int off, int len) {
+            if (length + len > data.length)
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + len));
+            System.arraycopy(b, off, data, length, len);
+            length += len;
+        }
+        void add(int b) {
+            if (length == data.length) data = Arrays.copyOf(data, data.length * 2);
+            data[length++] = (byte) b;
+        }
+        void writeTo(OutputStream out) throws IOException { out.write(data, 0, length); }
+        /** Часть содержимого как строка ISO-8859-1 */
+        String toString(int from, int to) {
+            return new String(data, from, to - from, StandardCharsets.ISO_8859_1);
+        }
+        /** Совпадает ли часть содержимого с заданной строкой ASCII без учета регистра? */
+        boolean equalsIgnoreCase(int from, int to, String s) {
+            if (to - from != s.length()) return false;
+            for(int i = 0; i < s.length(); i++) {
+                int c = data[from + i];
+                if ((c >= 'A') && (c <= 'Z')) c += 'a' - 'A';
+                if (c != s.charAt(i)) return false;
+            }
+            return true;
         }
     }
-}
 
+    /**
+     * Буферизованный поток ввода без синхронизации, умеющий читать строки
+     * прямо из своего буфера. Метод available() учитывает и буфер, так что
+     * по нему видно, пришел ли уже следующий запрос.
+     **/
+    static class Input extends InputStream {
+        final InputStream in;
+        final byte[] buffer;
+        int pos, limit;
+        Input(InputStream in, int size) {
+            this.in = in;
+            this.buffer = new byte[size];
+        }
+        public int read() throws IOException {
+            if ((pos == limit) && !fill()) return -1;
+            return buffer[pos++] & 0xff;
+        }
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (pos == limit) {
+                // Большие порции тела читаем прямо в массив вызывающего
+                if (len >= buffer.length) return in.read(b, off, len);
+                if (!fill()) return -1;
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buffer, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+        public int available() throws IOException {
+            return (limit - pos) + in.available();
+        }
+        boolean fill() throws IOException {
+            int n = in.read(buffer, 0, buffer.length);
+            if (n <= 0) return false;
+            pos = 0;
+            limit = n;
+            return true;
+        }
+        /**
+         * Читаем строку до LF (CR перед ним отбрасывается) и дописываем ее
+         * в line. Возвращает false, если поток кончился раньше.
+         **/
+        boolean readLine(Bytes line) throws IOException {
+            int start = line.length;
+            for(;;) {
+                if ((pos == limit) && !fill()) return false;
+                int i = pos;
+                while((i < limit) && (buffer[i] != '\n')) i++;
+                line.add(buffer, pos, i - pos);
+                if (line.length - start > MAX_LINE)
+                    throw new IOException("Слишком длинная строка");
+                if (i < limit) {
+                    pos = i + 1;
+                    if ((line.length > start) && (line.data[line.length - 1] == '\r'))
+                        line.length--;
+                    return true;
+                }
+                pos = limit;
+            }
+        }
+    }
+
+    /**
+     * Разобранные заголовки одного запроса. Объект используется повторно
+     * для всех запросов подключения.
+     **/
+    static class Request {
+        final Bytes head = new Bytes(512); // Эхо строки запроса и заголовков
+        boolean http11;          // Запрос HTTP/1.1 (иначе HTTP/1.0)
+        boolean keepAlive;       // Оставить ли подключение открытым
+        boolean chunked;         // Тело в кодировке chunked
+        boolean expectContinue;  // Клиент ждет "100 Continue"
+        long contentLength;      // Длина тела (0 – тела нет)
+        String error;            // Почему запрос не удалось разобрать (или null)
+
+        /**
+         * Читаем строку запроса и заголовки до пустой строки. Каждая строка
+         * попадает в head, заканчиваясь "\n", как в ответе прежнего зеркала.
+         * Возвращает false, если клиент закрыл подключение между запросами.
+         **/
+        boolean read(Input in) throws IOException {
+            http11 = keepAlive = chunked = expectContinue = false;
+            contentLength = 0;
+            error = null;
+            // Пустые строки перед запросом допускаются (RFC 7230, 3.5)
+            do {
+                head.reset();
+                if (!in.readLine(head)) {
+                    if (head.length == 0) return false;
+                    throw new EOFException("Запрос оборван");
+                }
+            } while(head.length == 0);
+            int end = head.length;
+            http11 = (end >= 8) && head.equalsIgnoreCase(end - 8, end, "http/1.1");
+            keepAlive = http11;
+            boolean space = false;
+            for(int i = 0; i < end; i++) if (head.data[i] == ' ') space = true;
+            if (!space) error = "Неверная строка запроса";
+            head.add('\n');
+            for(;;) {
+                int start = head.length;
+                if (!in.readLine(head)) throw new EOFException("Запрос оборван");
+                if (head.length == start) break;    // Пустая строка: заголовки кончились
+                if (head.length > MAX_HEAD) {
+                    error = "Слишком большие заголовки";
+                    return true;
+                }
+                header(start, head.length);
+                head.add('\n');
+            }
+            if ((error == null) && chunked && !http11)
+                error = "Тело chunked в запросе HTTP/1.0";
+            return true;
+        }
+        /**
+         * Запоминаем заголовки, влияющие на обмен. Строка заголовка лежит
+         * в head между from и to; строки создаются только для нужных нам.
+         **/
+        void header(int from, int to) {
+            int colon = from;
+            while((colon < to) && (head.data[colon] != ':')) colon++;
+            if (colon == to) return;
+            int nameEnd = colon;
+            while((nameEnd > from) && (head.data[nameEnd - 1] == ' ')) nameEnd--;
+            if (head.equalsIgnoreCase(from, nameEnd, "content-length")) {
+                String value = head.toString(colon + 1, to).trim();
+                try { contentLength = Long.parseLong(value); }
+                catch (NumberFormatException e) { contentLength = -1; }
+                if (contentLength < 0) error = "Неверный Content-Length: " + value;
+            }
+            else if (head.equalsIgnoreCase(from, nameEnd, "transfer-encoding"))
+                chunked = head.toString(colon + 1, to).trim().toLowerCase().endsWith("chunked");
+            else if (head.equalsIgnoreCase(from, nameEnd, "connection")) {
+                String value = head.toString(colon + 1, to).trim();
+                if (value.equalsIgnoreCase("close")) keepAlive = false;
+                else if (value.equalsIgnoreCase("keep-alive")) keepAlive = true;
+            }
+            else if (head.equalsIgnoreCase(from, nameEnd, "expect"))
+                expectContinue = head.toString(colon + 1, to).trim().equalsIgnoreCase("100-continue");
+        }
+    }
+}
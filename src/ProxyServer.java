@@ -1,5 +1,11 @@
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 /**
  * Этот класс применяет класс Server в качестве основы многопоточного сервера,
  * на который «навешиваются» относительно простые проксислужбы. Метод main()
@@ -9,33 +15,144 @@ import java.net.*;
 public class ProxyServer {
     /**
      * Создаем объект Server и добавляем к нему объекты Proxy, осуществляющие
-     * проксиобслуживание в соответствии с аргументами, заданными
-     * в командной строке.
+     * проксиобслуживание в соответствии с аргументами, заданными
+     * в командной строке. Необязательный первый аргумент virtual, за которым
+     * следует лимит подключений, переводит сервер на виртуальные потоки
+     * исполнения; тогда лимит можно задать гораздо больше обычного.
+     * Необязательный аргумент idle, за которым следует время в миллисекундах,
+     * закрывает подключения, по которым столько времени не было данных.
+     * Необязательный аргумент warm, за которым следует число подключений,
+     * заводит для каждого представляемого сервера пул заранее установленных
+     * подключений, так что клиенту не приходится ждать подключения к серверу.
+     * Необязательный аргумент connect, за которым следует время в
+     * миллисекундах, ограничивает ожидание подключения к серверу.
+     * Необязательный аргумент breaker, за которым следуют число неудач подряд,
+     * доля неудач в процентах и время в миллисекундах, ставит на каждый сервер
+     * выключатель CircuitBreaker: при разомкнутых выключателях всех серверов
+     * клиентам отказывается сразу. Необязательный аргумент log направляет
+     * журнал сервера (в том числе переходы выключателей) в стандартный вывод.
+     * Необязательный аргумент capture, за которым следует каталог, записывает
+     * трафик всех сеансов в сегменты по 64 МБ (хранятся 16 последних); запись
+     * воспроизводит программа Replay.
+     * Необязательный аргумент tls, за которым следуют файл хранилища ключей
+     * (или selfsigned – самоподписанный сертификат для localhost) и пароль,
+     * включает TLS на локальных портах: прокси расшифровывает трафик клиентов
+     * и пересылает серверам открытый текст.
+     * Необязательный аргумент nio, за которым следует число циклов выборки,
+     * включает движок NIO: тогда данные пересылаются без потоков исполнения
+     * на подключение, и несколько циклов выборки обслуживают десятки тысяч
+     * проксиподключений. Необязательный аргумент control, за которым следуют
+     * пароль и порт, запускает службу Server.Control.
+     *
+     * Вместо тройки host remoteport localport можно задать группу серверов:
+     * balance <policy> <host:port[*weight],...> <localport>. Политика – rr
+     * (взвешенный перебор по кругу), least (наименьшее число подключений)
+     * или p2c (лучший из двух случайных по задержке). Доступность серверов
+     * группы проверяется каждые две секунды, а веса можно менять командой
+     * weight службы Control.
      **/
     public static void main(String[] args) {
         try {
-            // Проверяем число аргументов. Оно должно быть кратно 3 и > 0.
-            if ((args.length == 0) || (args.length % 3 != 0))
-                throw new IllegalArgumentException("Неправильное число аргументов");
             // Создаем объект Server
             Server s = new Server(null, 12); // Записываем поток (stream)
             // и лимит подключений
-            // Цикл, анализирующий кортежи (tuples) аргументов (host, remoteport,
-            // localport). Для каждого из них создаем объект Proxy и добавляем
-            // его к списку служб сервера.
             int i = 0;
+            if ((args.length > 0) && args[0].equals("virtual")) {
+                s.setThreadMode("virtual");
+                s.setMaxConnections(Integer.parseInt(args[1]));
+                i = 2;
+            }
+            if ((args.length > i) && args[i].equals("idle")) {
+                s.setTimeouts(0, Long.parseLong(args[i + 1]), 0, 0);
+                i += 2;
+            }
+            int warm = 0;
+            if ((args.length > i) && args[i].equals("warm")) {
+                warm = Integer.parseInt(args[i + 1]);
+                i += 2;
+            }
+            int connect = 0;
+            if ((args.length > i) && args[i].equals("connect")) {
+                connect = Integer.parseInt(args[i + 1]);
+                i += 2;
+            }
+            int breakerFailures = 0, breakerRate = 0;
+            long breakerOpen = 0;
+            if ((args.length > i) && args[i].equals("breaker")) {
+                breakerFailures = Integer.parseInt(args[i + 1]);
+                breakerRate = Integer.parseInt(args[i + 2]);
+                breakerOpen = Long.parseLong(args[i + 3]);
+                i += 4;
+            }
+            if ((args.length > i) && args[i].equals("log")) {
+                s.setLogStream(System.out);
+                i += 1;
+            }
+            TrafficCapture capture = null;
+            if ((args.length > i) && args[i].equals("capture")) {
+                capture = new TrafficCapture(new File(args[i + 1]), 64 << 20, 16, 32 << 20);
+                i += 2;
+            }
+            TlsContext tls = null;
+            if ((args.length > i) && args[i].equals("tls")) {
+                tls = args[i + 1].equals("selfsigned") ?
+                        TlsContext.selfSigned(new File("selfsigned.p12"), args[i + 2], "localhost") :
+                        TlsContext.load(new File(args[i + 1]), args[i + 2]);
+                i += 3;
+            }
+            if ((args.length > i) && args[i].equals("nio")) {
+                s.enableNio(Integer.parseInt(args[i + 1]));
+                i += 2;
+            }
+            if ((args.length > i) && args[i].equals("control")) {
+                s.addService(new Server.Control(s, args[i + 1]),
+                        Integer.parseInt(args[i + 2]));
+                i += 3;
+            }
+            if (args.length == i)
+                throw new IllegalArgumentException("Неправильное число аргументов");
+            // Цикл, анализирующий кортежи (tuples) аргументов (host, remoteport,
+            // localport) или описания групп. Для каждого из них создаем объект
+            // Proxy и добавляем его к списку служб сервера.
             while(i < args.length) {
-                String host = args[i++];
-                int remoteport = Integer.parseInt(args[i++]);
+                Proxy p;
+                if (args[i].equals("balance")) {
+                    Policy policy = policy(args[i + 1]);
+                    StringTokenizer t = new StringTokenizer(args[i + 2], ",");
+                    Backend[] backends = new Backend[t.countTokens()];
+                    for(int j = 0; j < backends.length; j++)
+                        backends[j] = Backend.parse(t.nextToken());
+                    p = new Proxy(backends, policy);
+                    p.setHealthCheck(2000, 1000, 3, 2);
+                    i += 3;
+                }
+                else {
+                    String host = args[i++];
+                    int remoteport = Integer.parseInt(args[i++]);
+                    p = new Proxy(host, remoteport);
+                }
+                if (i >= args.length)
+                    throw new IllegalArgumentException("Неправильное число аргументов");
                 int localport = Integer.parseInt(args[i++]);
-                s.addService(new Proxy(host, remoteport), localport);
+                if (connect > 0) p.setConnectTimeout(connect);
+                if (breakerFailures > 0)
+                    p.setCircuitBreaker(breakerFailures, breakerRate, 20, breakerOpen);
+                p.setLog(s.logger);
+                p.setCapture(capture);
+                if (warm > 0) p.setWarmPool(warm, 30000);
+                s.addService(p, localport, tls);
             }
         }
         catch (Exception e) { // Печатаем сообщение об ошибке,
             // если чтото не в порядке
             System.err.println(e);
-            System.err.println("Формат: java ProxyServer " +
-                    "<host> <remoteport> <localport> ...");
+            System.err.println("Формат: java ProxyServer [virtual <maxconnections>] " +
+                    "[idle <ms>] [warm <connections>] [connect <ms>] " +
+                    "[breaker <failures> <percent> <openms>] [log] [capture <dir>] " +
+                    "[tls <keystore>|selfsigned <password>] [nio <loops>] " +
+                    "[control <password> <port>] " +
+                    "<host> <remoteport> <localport> | " +
+                    "balance rr|least|p2c <host:port[*weight],...> <localport> ...");
             System.exit(1);
         }
     }
@@ -48,15 +165,208 @@ public class ProxyServer {
  * от клиента к серверу, а другой копирует их от сервера к клиенту.
  * Поток исполнения, вызывающий метод serve(), создает и запускает
  * эти потоки исполнения, а затем просто ожидает их завершения.
+ * Если сам он виртуальный, копирующие потоки тоже будут виртуальными.
+ *
+ * В режиме NIO сервер вместо serve() вызывает методы интерфейса
+ * NonBlockingService, и подключение обслуживается объектом Relay без
+ * собственных потоков исполнения: канал к серверу регистрируется в том же
+ * цикле выборки, что и сеанс клиента, и цикл пересылает байты в обе стороны.
+ *
+ * Если задан пул (setWarmPool()), подключение к серверу берется из него
+ * готовым, и лишь при пустом пуле устанавливается заново. Время установления
+ * подключений к серверу и время, которое клиенты ждали подключения,
+ * отображаются в состоянии сервера вместе с учетом Telemetry: трафиком,
+ * временем до первого байта, длительностью и причинами закрытия сеансов.
+ * Текущие сеансы показывает команда sessions службы Control.
+ *
+ * Выключатели CircuitBreaker (setCircuitBreaker()) исключают из выбора
+ * серверы, к которым подключиться подряд не удается, а когда разомкнуты
+ * выключатели всех серверов, метод admit() отказывает клиентам еще до
+ * создания подключения, так что во время сбоя потоки исполнения и места
+ * в лимите подключений не тратятся на ожидание.
  **/
-public static class Proxy implements Server.Service {
-    String host;
-    int port;
+public static class Proxy implements Server.Service, Server.NonBlockingService,
+        Server.StatusReporter, Server.WeightedService, Server.SessionReporter,
+        Server.AdmissionControl {
+    final Backend[] backends;   // Представляемые серверы
+    volatile Policy policy;     // Как выбирать сервер для нового клиента
+    HealthCheck health;         // Проверка доступности серверов (или null)
+    int connectTimeout = 10000; // Сколько ждать подключения к серверу, мс
+    int bufferSize = 0;         // Буфер копирующих потоков (0 – подстраивается)
+    AsyncLog log;               // Журнал переходов выключателей (или null)
+    volatile TrafficCapture capture; // Запись трафика (или null)
+    final Telemetry telemetry = new Telemetry(); // Учет сеансов и их трафика
     /** Запоминаем узел и порт, которые представляем */
     public Proxy(String host, int port) {
-        this.host = host;
-        this.port = port;
+        this(new Backend[] { new Backend(host, port, 1) }, new RoundRobin());
+    }
+    /** Этот вариант задает и размер буфера копирующих потоков исполнения */
+    public Proxy(String host, int port, int bufferSize) {
+        this(host, port);
+        this.bufferSize = bufferSize;
+    }
+    /**
+     * Этот вариант представляет группу серверов: каждому новому клиенту
+     * сервер выбирается заданной политикой.
+     **/
+    public Proxy(Backend[] backends, Policy policy) {
+        if (backends.length == 0)
+            throw new IllegalArgumentException("Не задано ни одного сервера");
+        this.backends = backends;
+        this.policy = policy;
+    }
+    /**
+     * Заводим для каждого сервера пул из size заранее установленных
+     * подключений; подключения старше maxIdle миллисекунд заменяются
+     * свежими. Нулевой размер отключает пулы.
+     **/
+    public void setWarmPool(int size, long maxIdle) {
+        for(int i = 0; i < backends.length; i++)
+            backends[i].setWarmPool(size, maxIdle, connectTimeout);
+    }
+    /**
+     * Включаем проверку доступности серверов: раз в interval миллисекунд
+     * к каждому из них устанавливается пробное подключение (ждем не дольше
+     * timeout). После fall неудач подряд сервер исключается из выбора,
+     * после rise удач подряд возвращается. Нулевой интервал выключает проверку.
+     **/
+    public synchronized void setHealthCheck(long interval, int timeout, int fall, int rise) {
+        if (health != null) health.stop();
+        health = null;
+        if (interval > 0) health = new HealthCheck(backends, interval, timeout, fall, rise);
+    }
+    /** Меняем политику выбора сервера */
+    public void setPolicy(Policy policy) { this.policy = policy; }
+    /** Сколько ждать подключения к серверу, мс */
+    public void setConnectTimeout(int timeout) { connectTimeout = timeout; }
+    /**
+     * Ставим на каждый сервер выключатель CircuitBreaker: он размыкается
+     * после maxFailures неудачных подключений подряд или если неудачными
+     * оказались maxRate процентов из последних window подключений, и на
+     * openTime миллисекунд сервер перестает выбираться. Нулевое maxFailures
+     * снимает выключатели.
+     **/
+    public void setCircuitBreaker(int maxFailures, int maxRate, int window, long openTime) {
+        for(int i = 0; i < backends.length; i++)
+            backends[i].breaker = (maxFailures > 0) ? new CircuitBreaker(backends[i].name(),
+                    maxFailures, maxRate, window, openTime) : null;
+        setLog(log);
     }
+    /**
+     * Начинаем (или, с аргументом null, прекращаем) записывать трафик
+     * новых сеансов; записи воспроизводит класс Replay.
+     **/
+    public void setCapture(TrafficCapture capture) { this.capture = capture; }
+    /**
+     * Журнал, в который выключатели записывают свои переходы, а колесо
+     * тайм-аутов подключения – ошибки своих задач
+     **/
+    public void setLog(AsyncLog log) {
+        this.log = log;
+        synchronized(Proxy.class) {
+            timerLog = log;
+            if (connectTimer != null) connectTimer.log = log;
+        }
+        for(int i = 0; i < backends.length; i++) {
+            CircuitBreaker c = backends[i].breaker;
+            if (c != null) c.log = log;
+        }
+    }
+    /**
+     * Сервер вызывает этот метод до создания подключения. Если выключатели
+     * всех серверов разомкнуты, клиенту отказывается сразу: подключение
+     * не занимает ни места в лимите, ни потока исполнения.
+     **/
+    public String admit() {
+        for(int i = 0; i < backends.length; i++)
+            if ((backends[i].weight > 0) && backends[i].allowed()) return null;
+        telemetry.refused.increment();
+        return "Проксисервер не может подключиться к " + describe() +
+                ": серверы недоступны";
+    }
+    /** Меняем вес сервера с заданным именем (узел:порт) */
+    public boolean setWeight(String backend, int weight) {
+        Backend b = find(backend);
+        if (b == null) return false;
+        b.weight = weight;
+        return true;
+    }
+    Backend find(String name) {
+        for(int i = 0; i < backends.length; i++)
+            if (backends[i].name().equals(name)) return backends[i];
+        return null;
+    }
+    /**
+     * Выбираем сервер для нового подключения среди тех, что еще не пробовали.
+     * Выбираются только доступные серверы с ненулевым весом; если доступных
+     * нет совсем, пробуем и исключенные проверкой – вдруг она ошибается.
+     * Возвращаем null, если пробовать больше некого.
+     **/
+    Backend choose(ArrayList tried) {
+        ArrayList skipped = null;   // Серверы, которые не пустил выключатель
+        for(;;) {
+            ArrayList candidates = new ArrayList(backends.length);
+            for(int pass = 0; (pass < 2) && candidates.isEmpty(); pass++)
+                for(int i = 0; i < backends.length; i++) {
+                    Backend b = backends[i];
+                    if ((b.weight > 0) && ((pass == 1) || b.healthy) && b.allowed() &&
+                            ((tried == null) || !tried.contains(b)) &&
+                            ((skipped == null) || !skipped.contains(b))) candidates.add(b);
+                }
+            if (candidates.isEmpty()) return null;
+            Backend b = (candidates.size() == 1) ? (Backend) candidates.get(0) :
+                    policy.choose((Backend[]) candidates.toArray(new Backend[candidates.size()]));
+            // Пробное подключение мог уже забрать другой клиент
+            CircuitBreaker c = b.breaker;
+            if ((c == null) || c.acquire()) {
+                b.chosen.incrementAndGet();
+                return b;
+            }
+            if (skipped == null) skipped = new ArrayList();
+            skipped.add(b);
+        }
+    }
+    /** Имена серверов через запятую, для сообщений */
+    String describe() {
+        StringBuffer b = new StringBuffer();
+        for(int i = 0; i < backends.length; i++) {
+            if (i > 0) b.append(", ");
+            b.append(backends[i].name());
+        }
+        return b.toString();
+    }
+    /** Сводка о подключениях к серверам для состояния сервера */
+    public String status() {
+        StringBuffer b = new StringBuffer();
+        b.append("ПОЛИТИКА " + policy.name().toUpperCase());
+        if (health != null) b.append("; ПРОВЕРКА: " + health);
+        b.append("\n  ").append(telemetry.status());
+        b.append("\n  ").append(Resolver.getDefault().status());
+        TrafficCapture c = capture;
+        if (c != null) b.append("\n  ").append(c.status());
+        for(int i = 0; i < backends.length; i++)
+            b.append("\n  ").append(backends[i].status());
+        return b.toString();
+    }
+    /**
+     * Подключиться к серверу не удалось: учитываем неудачу у сервера,
+     * запоминаем причину в записи сеанса и записываем ее в журнал.
+     **/
+    void connectFailed(Backend b, Exception e, Telemetry.Tap tap) {
+        b.failed();
+        tap.connectFailed(e);
+        AsyncLog l = log;
+        if (l != null)
+            l.log("Не удалось подключиться к серверу " + b.name() + ": " + e);
+    }
+    /** Текст отказа клиенту, с причиной последней неудачи (если она была) */
+    String refusal(Telemetry.Tap tap) {
+        Exception e = tap.error;
+        return "Проксисервер не смог подключиться к " + describe() +
+                ((e != null) ? ": " + e : "") + "\n";
+    }
+    /** Список текущих сеансов для команды sessions службы Control */
+    public String sessions() { return telemetry.sessions(); }
     /** Сервер вызывает этот метод при подключении клиента. */
     public void serve(InputStream in, OutputStream out) {
         // Это соединения, которые мы будем использовать. Они объявлены как final,
@@ -67,19 +377,46 @@ public static class Proxy implements Server.Service {
         final OutputStream to_server;
         // Пытаемся установить подключение к заданному серверу и порту и получить
         // соединения для связи с ним. В случае неудачи докладываем о ней клиенту.
-        final Socket server;
+        // Если сервер не отвечает, пробуем следующий, пока не переберем все.
+        Socket socket;
+        Backend b;
+        final Telemetry.Tap tap = telemetry.open();
+        final TrafficCapture capture = this.capture;
+        if (capture != null) capture.open(tap.id, describe());
+        ArrayList tried = new ArrayList();
+        for(;;) {
+            b = choose(tried);
+            if (b == null) {
+                tap.reason(Telemetry.CONNECT_FAILED);
+                if (tap.close() && (capture != null)) capture.close(tap.id);
+                PrintWriter pw = new PrintWriter(new OutputStreamWriter(out));
+                pw.print(refusal(tap));
+                pw.flush();
+                pw.close();
+                try { in.close(); } catch (IOException ex) {}
+                return;
+            }
+            try {
+                socket = connect(b, out, capture, tap.id);
+                break;
+            }
+            catch (Exception e) {
+                connectFailed(b, e, tap);
+                tried.add(b);
+            }
+        }
+        final Socket server = socket;
+        final Backend backend = b;
+        tap.connected(backend);
+        backend.active.incrementAndGet();
         try {
-            server = new Socket(host, port);
             from_server = server.getInputStream();
             to_server = server.getOutputStream();
         }
-        catch (Exception e) {
-            PrintWriter pw = new PrintWriter(new OutputStreamWriter(out));
-            pw.print("Проксисервер не смог подключиться к " + host +
-                    ":" + port + "\n");
-            pw.flush();
-            pw.close();
-            try { in.close(); } catch (IOException ex) {}
+        catch (IOException e) {
+            if (tap.close() && (capture != null)) capture.close(tap.id);
+            backend.active.decrementAndGet();
+            try { server.close(); in.close(); } catch (IOException ex) {}
             return;
         }
         // Создаем массив, содержащий два объекта Thread. Он объявляется как final,
@@ -88,20 +425,27 @@ public static class Proxy implements Server.Service {
         // структуре программы две переменные не сработали бы,
         // будучи определены как final.
         final Thread[] threads = new Thread[2];
+        // Копировщики создаем заранее, чтобы учет видел их счетчики байтов
+        // При записи трафика копировщики читают через записывающие потоки
+        final StreamCopier up = copier((capture == null) ? from_client :
+                new TrafficCapture.CapturingInputStream(from_client, capture, tap.id,
+                        TrafficCapture.CLIENT), to_server);
+        final StreamCopier down = copier((capture == null) ? from_server :
+                new TrafficCapture.CapturingInputStream(from_server, capture, tap.id,
+                        TrafficCapture.SERVER), to_client);
+        tap.copying(up, down);
+        // Копирующие потоки исполнения будут того же вида, что и наш
+        boolean virtual = Server.isVirtual(Thread.currentThread());
         // Определяем и создаем поток исполнения, копирующий байты
         // от клиента к серверу
-        Thread c2s = new Thread() {
+        Thread c2s = Server.newThread(null, new Runnable() {
             public void run() {
                 // Копируем байты до тех пор, пока не получим от клиента EOF
-                byte[] buffer = new byte[2048];
-                int bytes_read;
                 try {
-                    while((bytes_read=from_client.read(buffer))!=-1) {
-                        to_server.write(buffer, 0, bytes_read);
-                        to_server.flush();
-                    }
+                    up.copy();
+                    tap.reason(Telemetry.CLIENT_EOF);
                 }
-                catch (IOException e) {}
+                catch (IOException e) { tap.reason(Telemetry.RESET); }
                 finally {
                     // По завершении потока исполнения
                     try {
@@ -112,21 +456,17 @@ public static class Proxy implements Server.Service {
                     catch (IOException e) {}
                 }
             }
-        };
+        }, "Proxy:c2s", virtual);
         // Определяем и создаем поток исполнения, копирующий байты от сервера
         // к клиенту. Этот поток исполнения работает совершенно так же,
         // как приведенный выше.
-        Thread s2c = new Thread() {
+        Thread s2c = Server.newThread(null, new Runnable() {
             public void run() {
-                byte[] buffer = new byte[2048];
-                int bytes_read;
                 try {
-                    while((bytes_read=from_server.read(buffer))!=-1) {
-                        to_client.write(buffer, 0, bytes_read);
-                        to_client.flush();
-                    }
+                    down.copy();
+                    tap.reason(Telemetry.UPSTREAM_EOF);
                 }
-                catch (IOException e) {}
+                catch (IOException e) { tap.reason(Telemetry.RESET); }
                 finally {
                     try {
                         server.close(); // закрываемся
@@ -135,7 +475,7 @@ public static class Proxy implements Server.Service {
                     } catch (IOException e) {}
                 }
             }
-        };
+        }, "Proxy:s2c", virtual);
         // Сохраняем потоки исполнения в массиве final threads[], чтобы
         // безымянные классы могли ссылаться друг на друга.
         threads[0] = c2s; threads[1] = s2c;
@@ -143,7 +483,1024 @@ public static class Proxy implements Server.Service {
         c2s.start(); s2c.start();
         // Ожидаем их завершения
         try { c2s.join(); s2c.join(); } catch (InterruptedException e) {}
+        if (tap.close() && (capture != null)) capture.close(tap.id);
+        backend.active.decrementAndGet();
+    }
+    /** Копировщик с заданным или подстраиваемым размером буфера */
+    StreamCopier copier(InputStream in, OutputStream out) {
+        return (bufferSize > 0) ? new StreamCopier(in, out, bufferSize) :
+                new StreamCopier(in, out);
+    }
+    /**
+     * Подключаемся к серверу в блокирующем режиме: берем готовое подключение
+     * из пула или устанавливаем новое.
+     **/
+    Socket connect(Backend b, OutputStream out, TrafficCapture capture, long session)
+            throws IOException {
+        UpstreamPool p = b.pool;
+        UpstreamPool.Warm w = (p != null) ? p.take() : null;
+        if (w != null) {
+            // Готовое подключение из пула переводим в блокирующий режим
+            // и сначала отдаем клиенту то, что сервер успел прислать
+            w.channel.configureBlocking(true);
+            b.succeeded();
+            if (w.preread != null) {
+                if (capture != null)
+                    capture.data(session, TrafficCapture.SERVER, w.preread);
+                out.write(w.preread.array(), 0, w.preread.limit());
+                out.flush();
+            }
+            return w.channel.socket();
+        }
+        // Не ждем недоступный сервер дольше connectTimeout. Зависшие
+        // подключения закрывает сам Server по тайм-аутам службы: закрытие
+        // клиентского сокета завершает оба копирующих потока исполнения.
+        long start = System.nanoTime();
+        Socket s = new Socket();
+        try { s.connect(Resolver.getDefault().address(b.host, b.port), connectTimeout); }
+        catch (IOException e) { s.close(); throw e; }
+        b.connected((System.nanoTime() - start) / 1000);
+        return s;
+    }
+
+    // Пересылка в режиме NIO
+
+    /**
+     * Прямые буферы для данных клиента, которые сервер не успел принять.
+     * Они общие для всех проксислужб, и каждый вмещает одно чтение цикла.
+     **/
+    static final BufferPool buffers =
+            new BufferPool(Server.EventLoop.READ_BUFFER_SIZE, 1024);
+    static TimingWheel connectTimer;   // Тайм-ауты подключения к серверу
+    static AsyncLog timerLog;          // Журнал ошибок задач этого колеса
+    static synchronized TimingWheel connectTimer() {
+        if (connectTimer == null) {
+            connectTimer = new TimingWheel(100, 512, null, "Proxy.ConnectTimer");
+            connectTimer.log = timerLog;
+        }
+        return connectTimer;
+    }
+    /** Новый сеанс: начинаем подключение к серверу */
+    public void open(Server.Session s) throws IOException {
+        Relay r = new Relay(s);
+        s.attachment = r;
+        // Пока сервер не подключен, данные клиента не читаем
+        s.suspendReads();
+        r.connect();
+    }
+    public void read(Server.Session s, ByteBuffer data) throws IOException {
+        ((Relay) s.attachment).fromClient(data);
+    }
+    public void eof(Server.Session s) throws IOException {
+        ((Relay) s.attachment).clientEof();
+    }
+    public void close(Server.Session s) {
+        if (s.attachment != null) ((Relay) s.attachment).close();
+    }
+
+    /**
+     * Пересылка одного подключения в режиме NIO. Все методы вызываются
+     * в потоке цикла выборки сеанса, поэтому синхронизация не нужна.
+     *
+     * От клиента к серверу: прочитанное циклом сразу пишется в канал сервера,
+     * а то, что не поместилось, копируется в буфер из пула, и чтение от клиента
+     * приостанавливается, пока сервер не примет остаток. От сервера к клиенту:
+     * прочитанное пишется в сеанс, и если клиент не принял все сразу, чтение
+     * от сервера приостанавливается, пока очередь сеанса не опустеет. Так
+     * медленная сторона сдерживает быструю, и на подключение приходится не
+     * больше одного буфера данных в каждом направлении. EOF от одной стороны
+     * передается другой как закрытие передачи (half-close); подключение
+     * закрывается, когда EOF пришел с обеих сторон.
+     **/
+    class Relay implements Server.ChannelHandler {
+        final Server.Session session;
+        SocketChannel upstream;     // Канал к серверу
+        SelectionKey key;           // Его регистрация в селекторе цикла
+        ByteBuffer toServer;        // Данные клиента, еще не принятые сервером
+        boolean connected;          // Подключение к серверу установлено
+        boolean clientEof;          // Клиент закрыл передачу
+        boolean serverEof;          // Сервер закрыл передачу
+        boolean serverReadsSuspended; // Клиент не успевает принимать
+        TimingWheel.Timeout timer;  // Тайм-аут подключения к серверу
+        final Telemetry.Tap tap = telemetry.open(); // Учет сеанса
+        final TrafficCapture capture = Proxy.this.capture; // Запись (или null)
+        long attemptStart;          // Когда началась текущая попытка
+        boolean pooled;             // Подключение взято из пула
+        Backend backend;            // Выбранный сервер
+        ArrayList tried;            // Серверы, к которым подключиться не удалось
+        boolean released;           // Подключение уже не учитывается у сервера
+        boolean resolving;          // Ждем первого ответа DNS для сервера
+        boolean closed;             // Сеанс закрыт
+        Relay(Server.Session session) {
+            this.session = session;
+            if (capture != null) capture.open(tap.id, describe());
+        }
+
+        /** Выбираем сервер и подключаемся; при неудаче пробуем следующий */
+        void connect() {
+            for(;;) {
+                backend = choose(tried);
+                if (backend == null) { refuse(); return; }
+                try { attempt(); return; }
+                catch (Exception e) { retry(e); }
+            }
+        }
+        /** Берем подключение из пула или начинаем неблокирующее подключение */
+        void attempt() throws IOException {
+            attemptStart = System.nanoTime();
+            UpstreamPool p = backend.pool;
+            UpstreamPool.Warm w = (p != null) ? p.take() : null;
+            if (w != null) {
+                upstream = w.channel;
+                pooled = true;
+                backend.succeeded();
+                key = upstream.register(session.loop.selector, 0, this);
+                if (w.preread != null) {
+                    if (capture != null)
+                        capture.data(tap.id, TrafficCapture.SERVER, w.preread);
+                    session.write(w.preread);
+                }
+                connected();
+                return;
+            }
+            // Имя сервера разрешается без ожидания; если его еще ни разу не
+            // разрешали, запрос к DNS идет в фоне, а попытка продолжится
+            // в цикле выборки, когда придет ответ
+            InetSocketAddress address = Resolver.getDefault().resolveLater(backend.host,
+                    backend.port, new Runnable() {
+                public void run() {
+                    session.loop.execute(new Runnable() {
+                        public void run() { resolved(); }
+                    });
+                }
+            });
+            if (address == null) {
+                resolving = true;
+                return;
+            }
+            final SocketChannel channel = SocketChannel.open();
+            upstream = channel;
+            upstream.configureBlocking(false);
+            key = upstream.register(session.loop.selector, 0, this);
+            if (upstream.connect(address))
+                connected();
+            else {
+                updateInterest();
+                timer = connectTimer().schedule(new Runnable() {
+                    public void run() {
+                        session.loop.execute(new Runnable() {
+                            public void run() {
+                                if (!connected && (upstream == channel) && channel.isOpen())
+                                    failed(new SocketTimeoutException());
+                            }
+                        });
+                    }
+                }, connectTimeout);
+            }
+        }
+        /** Пришел первый ответ DNS: повторяем попытку, если сеанс еще жив */
+        void resolved() {
+            if (!resolving || closed) return;
+            resolving = false;
+            try { attempt(); }
+            catch (Exception e) { retry(e); connect(); }
+        }
+        /** Сервер не ответил: запоминаем это и закрываем попытку */
+        void retry(Exception e) {
+            connectFailed(backend, e, tap);
+            if (tried == null) tried = new ArrayList();
+            tried.add(backend);
+            closeUpstream();
+        }
+        /** Сервер подключен: начинаем пересылку */
+        void connected() {
+            connected = true;
+            if (timer != null) timer.cancel();
+            long now = System.nanoTime();
+            if (!pooled) backend.connected((now - attemptStart) / 1000);
+            backend.active.incrementAndGet();
+            tap.connected(backend);
+            updateInterest();
+            session.resumeReads();
+        }
+        /** Канал сервера готов: завершаем подключение, досылаем, читаем */
+        public void ready(SelectionKey k) throws IOException {
+            if (k.isConnectable()) {
+                if (upstream.finishConnect()) connected();
+                return;
+            }
+            if (k.isWritable()) flushToServer();
+            if (k.isValid() && k.isReadable()) fromServer();
+        }
+        /** До подключения пробуем другой сервер, после – просто закрываем */
+        public void failed(Exception e) {
+            if (!connected) { retry(e); connect(); }
+            else {
+                tap.reason(Telemetry.RESET);
+                session.closeNow();
+            }
+        }
+        /** Сообщаем клиенту, что серверы недоступны, и закрываем сеанс */
+        void refuse() {
+            tap.reason(Telemetry.CONNECT_FAILED);
+            close();
+            try {
+                session.write(ByteBuffer.wrap(refusal(tap).getBytes()));
+            }
+            catch (IOException e) {}
+            session.close();
+        }
+        /** Данные от клиента: пишем серверу, остаток сохраняем */
+        void fromClient(ByteBuffer data) throws IOException {
+            tap.up(data.remaining());
+            if (capture != null) capture.data(tap.id, TrafficCapture.CLIENT, data);
+            if (toServer == null) upstream.write(data);
+            if (!data.hasRemaining()) return;
+            // Сервер не успевает: сохраняем остаток и перестаем читать клиента
+            if (toServer == null) toServer = buffers.get();
+            toServer.put(data);
+            session.suspendReads();
+            updateInterest();
+        }
+        /** Сервер готов принять данные: досылаем сохраненный остаток */
+        void flushToServer() throws IOException {
+            toServer.flip();
+            upstream.write(toServer);
+            toServer.compact();
+            if (toServer.position() == 0) {
+                buffers.put(toServer);
+                toServer = null;
+                if (clientEof) upstream.shutdownOutput();
+                else session.resumeReads();
+            }
+            updateInterest();
+        }
+        /** Данные от сервера: пишем клиенту, при задержке ждем его */
+        void fromServer() throws IOException {
+            ByteBuffer buffer = session.loop.readBuffer;
+            buffer.clear();
+            int n = upstream.read(buffer);
+            if (n < 0) {
+                tap.reason(Telemetry.UPSTREAM_EOF);
+                serverEof = true;
+                updateInterest();
+                session.shutdownOutput();
+                if (clientEof) session.close();
+                return;
+            }
+            if (n == 0) return;
+            tap.down(n);
+            buffer.flip();
+            if (capture != null) capture.data(tap.id, TrafficCapture.SERVER, buffer);
+            session.write(buffer);
+            if (session.pending() > 0) {
+                serverReadsSuspended = true;
+                updateInterest();
+                session.onDrained(new Runnable() {
+                    public void run() {
+                        serverReadsSuspended = false;
+                        updateInterest();
+                    }
+                });
+            }
+        }
+        /** Клиент закрыл передачу: передаем EOF серверу после остатка */
+        void clientEof() throws IOException {
+            tap.reason(Telemetry.CLIENT_EOF);
+            clientEof = true;
+            if (toServer == null) upstream.shutdownOutput();
+            if (serverEof) session.close();
+        }
+        /** Пересчитываем интересующие события канала сервера */
+        void updateInterest() {
+            if ((key == null) || !key.isValid()) return;
+            int ops = 0;
+            if (!connected) ops = SelectionKey.OP_CONNECT;
+            else {
+                if (!serverEof && !serverReadsSuspended) ops |= SelectionKey.OP_READ;
+                if (toServer != null) ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+        /** Сеанс закрыт: закрываем канал сервера и возвращаем буфер */
+        void close() {
+            closed = true;
+            closeUpstream();
+            if (tap.close() && (capture != null)) capture.close(tap.id);
+            if (toServer != null) { buffers.put(toServer); toServer = null; }
+            if (connected && !released) {
+                released = true;
+                backend.active.decrementAndGet();
+            }
+        }
+        void closeUpstream() {
+            if (timer != null) timer.cancel();
+            if (key != null) key.cancel();
+            if (upstream != null) {
+                try { upstream.close(); } catch (IOException e) {}
+            }
+        }
+    }
+}
+/**
+ * Учет проксируемых сеансов одной службы Proxy: байты в каждом направлении,
+ * время ожидания подключения к серверу, время до первого байта от сервера,
+ * длительность сеансов и причины их закрытия. Каждый сеанс ведет свою запись
+ * Tap. Ее счетчики байтов пополняет только тот поток исполнения (или цикл
+ * выборки), который копирует данные в этом направлении, так что на пути
+ * копирования нет ни блокировок, ни выделения памяти. При закрытии сеанса
+ * его итоги переносятся в общие счетчики и гистограммы, а пока сеанс идет,
+ * его запись видна в списке текущих сеансов.
+ **/
+public static class Telemetry {
+    // Причины закрытия сеанса: первой закрылась сторона клиента или сервера,
+    // передача оборвалась ошибкой или сервер так и не удалось подключить
+    public static final int CLIENT_EOF = 0, UPSTREAM_EOF = 1, RESET = 2,
+            CONNECT_FAILED = 3;
+    static final String[] REASONS = { "EOF КЛИЕНТА", "EOF СЕРВЕРА", "СБРОС",
+            "НЕ ПОДКЛЮЧЕН" };
+    static final AtomicLong ids = new AtomicLong(); // Номера сеансов
+    final LongAdder sessions = new LongAdder();  // Всего сеансов
+    final LongAdder bytesUp = new LongAdder();   // Передано серверам (закрытыми)
+    final LongAdder bytesDown = new LongAdder(); // Передано клиентам (закрытыми)
+    final LongAdder[] reasons = new LongAdder[REASONS.length];
+    final LongAdder refused = new LongAdder();   // Отказано сразу (выключатели)
+    final Histogram connectTimes = new Histogram(); // Ожидание подключения, мкс
+    final Histogram firstByte = new Histogram();    // До первого байта сервера, мкс
+    final Histogram durations = new Histogram();    // Длительность сеансов, мкс
+    final Set live = Collections.newSetFromMap(new ConcurrentHashMap()); // Текущие
+    final LongAdder connectErrors = new LongAdder(); // Неудачных подключений к серверам
+    volatile String lastError;                   // Последняя из них (или null)
+
+    public Telemetry() {
+        for(int i = 0; i < reasons.length; i++) reasons[i] = new LongAdder();
+    }
+    /** Начинаем учет нового сеанса */
+    public Tap open() {
+        Tap t = new Tap();
+        sessions.increment();
+        live.add(t);
+        return t;
+    }
+    /** Сколько байтов передано серверам, включая текущие сеансы */
+    public long bytesUp() {
+        long n = bytesUp.sum();
+        Iterator i = live.iterator();
+        while(i.hasNext()) n += ((Tap) i.next()).up();
+        return n;
+    }
+    /** Сколько байтов передано клиентам, включая текущие сеансы */
+    public long bytesDown() {
+        long n = bytesDown.sum();
+        Iterator i = live.iterator();
+        while(i.hasNext()) n += ((Tap) i.next()).down();
+        return n;
+    }
+    /** Сводка для состояния сервера (строки начинаются с отступа) */
+    public String status() {
+        StringBuffer b = new StringBuffer();
+        b.append("СЕАНСОВ " + sessions.sum() + ", ТЕКУЩИХ " + live.size() +
+                "; К СЕРВЕРАМ " + bytesUp() + " БАЙТ, К КЛИЕНТАМ " + bytesDown() +
+                " БАЙТ; ЗАКРЫТО:");
+        for(int i = 0; i < reasons.length; i++)
+            b.append((i > 0) ? ", " : " ").append(REASONS[i] + " " + reasons[i].sum());
+        b.append("; ОТКАЗАНО СРАЗУ " + refused.sum());
+        b.append("; ОШИБОК ПОДКЛЮЧЕНИЯ " + connectErrors.sum());
+        String e = lastError;
+        if (e != null) b.append(", ПОСЛЕДНЯЯ: " + e);
+        b.append("\n  ПОДКЛЮЧЕНИЕ К СЕРВЕРУ, МКС: " + percentiles(connectTimes));
+        b.append("\n  ПЕРВЫЙ БАЙТ ОТ СЕРВЕРА, МКС: " + percentiles(firstByte));
+        b.append("\n  ДЛИТЕЛЬНОСТЬ СЕАНСА, МКС: " + percentiles(durations));
+        return b.toString();
+    }
+    static String percentiles(Histogram h) {
+        return "P50 " + h.percentile(0.50) + ", P90 " + h.percentile(0.90) +
+                ", P99 " + h.percentile(0.99) + ", НАИБОЛЬШЕЕ " + h.max();
+    }
+    /**
+     * Список текущих сеансов, по одному в строке, от самого старого,
+     * и их суммарная скорость передачи.
+     **/
+    public String sessions() {
+        Tap[] taps = (Tap[]) live.toArray(new Tap[0]);
+        Arrays.sort(taps, new Comparator() {
+            public int compare(Object a, Object b) {
+                long d = ((Tap) a).id - ((Tap) b).id;
+                return (d < 0) ? -1 : ((d > 0) ? 1 : 0);
+            }
+        });
+        long now = System.nanoTime(), rate = 0;
+        StringBuffer b = new StringBuffer();
+        for(int i = 0; i < taps.length; i++) {
+            b.append(taps[i].describe(now)).append("\n");
+            rate += taps[i].rate(now);
+        }
+        b.append("ТЕКУЩИХ СЕАНСОВ " + taps.length + ", СУММАРНАЯ СКОРОСТЬ " +
+                rate + " БАЙТ/С");
+        return b.toString();
+    }
+
+    /**
+     * Запись одного сеанса. Счетчик каждого направления пишет один поток
+     * исполнения, читать записи можно из любого. В обычном режиме байты
+     * считают сами копировщики StreamCopier, а запись лишь ссылается на них.
+     **/
+    public class Tap {
+        final long id = ids.incrementAndGet();
+        final long start = System.nanoTime();
+        volatile Backend backend;       // Подключенный сервер (или null)
+        volatile long up, down;         // Байтов к серверу и к клиенту (NIO)
+        volatile long firstByteAt;      // Когда пришел первый байт сервера (NIO)
+        volatile StreamCopier upCopier, downCopier; // Копировщики (обычный режим)
+        volatile Exception error;       // Последняя неудача подключения (или null)
+        int reason = -1;                // Причина закрытия (первая названная)
+        boolean closed;
+
+        /** Сервер подключен: учитываем, сколько клиент его ждал */
+        public void connected(Backend b) {
+            backend = b;
+            connectTimes.record((System.nanoTime() - start) / 1000);
+        }
+        /** Подключение к серверу не удалось по причине e */
+        public void connectFailed(Exception e) {
+            error = e;
+            connectErrors.increment();
+            lastError = e.toString();
+        }
+        /** Обычный режим: байты считают копировщики в обе стороны */
+        public void copying(StreamCopier up, StreamCopier down) {
+            upCopier = up;
+            downCopier = down;
+        }
+        /** Режим NIO: клиент передал серверу n байтов */
+        public void up(int n) { up += n; }
+        /** Режим NIO: сервер передал клиенту n байтов */
+        public void down(int n) {
+            if ((firstByteAt == 0) && (n > 0)) firstByteAt = System.nanoTime();
+            down += n;
+        }
+        long up() {
+            StreamCopier c = upCopier;
+            return (c != null) ? c.bytes() : up;
+        }
+        long down() {
+            StreamCopier c = downCopier;
+            return (c != null) ? c.bytes() : down;
+        }
+        long firstByteAt() {
+            StreamCopier c = downCopier;
+            return (c != null) ? c.firstWrite() : firstByteAt;
+        }
+        /** Средняя скорость сеанса, байт в секунду */
+        long rate(long now) {
+            long age = Math.max(now - start, 1);
+            return (long) ((up() + down()) * 1e9 / age);
+        }
+        /** Запоминаем причину закрытия; учитывается только первая */
+        public synchronized void reason(int r) {
+            if (reason < 0) reason = r;
+        }
+        /**
+         * Сеанс завершен: переносим его итоги в общий учет. Повторные
+         * вызовы ничего не делают и возвращают false; если причина не
+         * названа, сеанс считается оборванным.
+         **/
+        public boolean close() {
+            synchronized(this) {
+                if (closed) return false;
+                closed = true;
+                if (reason < 0) reason = RESET;
+            }
+            live.remove(this);
+            long now = System.nanoTime();
+            bytesUp.add(up());
+            bytesDown.add(down());
+            reasons[reason].increment();
+            durations.record((now - start) / 1000);
+            long first = firstByteAt();
+            if (first != 0) firstByte.record((first - start) / 1000);
+            return true;
+        }
+        String describe(long now) {
+            Backend b = backend;
+            long first = firstByteAt();
+            return "СЕАНС " + id + " С " + ((b != null) ? b.name() : "(ПОДКЛЮЧАЕТСЯ)") +
+                    ": " + (now - start) / 1000000 + " МС, К СЕРВЕРУ " + up() +
+                    " БАЙТ, К КЛИЕНТУ " + down() + " БАЙТ, " + rate(now) + " БАЙТ/С" +
+                    ((first != 0) ? ", ПЕРВЫЙ БАЙТ ЧЕРЕЗ " + (first - start) / 1000 +
+                    " МКС" : "");
+        }
+    }
+}
+/**
+ * Один из серверов, которые представляет Proxy: его адрес, вес, число
+ * текущих подключений через прокси, скользящее среднее (EWMA) времени
+ * установления подключения и признак доступности, который ведет проверка
+ * HealthCheck. Вес можно менять на ходу; вес 0 выводит сервер из выбора
+ * для новых подключений.
+ **/
+public static class Backend {
+    static final double ALPHA = 0.2;  // Вес нового измерения в EWMA
+    final String host;
+    final int port;
+    volatile int weight;        // Относительная доля подключений
+    volatile boolean healthy = true; // Не исключен проверкой
+    final AtomicInteger active = new AtomicInteger(); // Текущих подключений
+    final AtomicLong chosen = new AtomicLong();       // Сколько раз выбран
+    final AtomicLong failures = new AtomicLong();     // Неудачных подключений
+    volatile double ewma;       // Среднее время подключения, мкс (0 – еще нет)
+    final Histogram connectTimes = new Histogram(); // Установление подключения, мкс
+    volatile UpstreamPool pool; // Готовые подключения (null – без пула)
+    volatile CircuitBreaker breaker; // Выключатель (null – без него)
+    int current;                // Состояние RoundRobin (под ее блокировкой)
+    int fails, passes;          // Неудачи и удачи проверки подряд (поток проверки)
+    public Backend(String host, int port, int weight) {
+        this.host = host;
+        this.port = port;
+        this.weight = weight;
+        // Разрешаем имя заранее, чтобы первый клиент не ждал DNS
+        Resolver.getDefault().prefetch(host);
+    }
+    /** Разбираем описание вида узел:порт или узел:порт*вес */
+    public static Backend parse(String spec) {
+        int weight = 1;
+        int star = spec.indexOf('*');
+        if (star >= 0) {
+            weight = Integer.parseInt(spec.substring(star + 1));
+            spec = spec.substring(0, star);
+        }
+        int colon = spec.lastIndexOf(':');
+        if (colon <= 0) throw new IllegalArgumentException("Нужно узел:порт: " + spec);
+        return new Backend(spec.substring(0, colon),
+                Integer.parseInt(spec.substring(colon + 1)), weight);
+    }
+    public String name() { return host + ":" + port; }
+    /** Подключение установлено за заданное время */
+    void connected(long micros) {
+        connectTimes.record(micros);
+        sample(micros);
+        succeeded();
+    }
+    /** Подключение получено (новое или из пула): сообщаем выключателю */
+    void succeeded() {
+        CircuitBreaker c = breaker;
+        if (c != null) c.success();
+    }
+    /** Выключатель, если он есть, разрешает выбирать сервер */
+    boolean allowed() {
+        CircuitBreaker c = breaker;
+        return (c == null) || c.allows();
+    }
+    /** Учитываем время подключения в скользящем среднем */
+    void sample(long micros) {
+        double e = ewma;
+        ewma = (e == 0) ? micros : e + ALPHA * (micros - e);
+    }
+    /** Подключиться не удалось: считаем это очень медленным подключением */
+    void failed() {
+        failures.incrementAndGet();
+        ewma = Math.max(ewma * 2, 1000000);
+        CircuitBreaker c = breaker;
+        if (c != null) c.failure();
+    }
+    synchronized void setWarmPool(int size, long maxIdle, int connectTimeout) {
+        if (pool != null) pool.close();
+        pool = (size > 0) ?
+                new UpstreamPool(host, port, size, maxIdle, connectTimeout, connectTimes) : null;
+    }
+    /** Сводка о сервере для состояния сервера */
+    public String status() {
+        UpstreamPool p = pool;
+        CircuitBreaker c = breaker;
+        return "СЕРВЕР " + name() + ": ВЕС " + weight + ", " +
+                (healthy ? "ДОСТУПЕН" : "ИСКЛЮЧЕН") + ", АКТИВНЫХ " + active.get() +
+                ", ВЫБРАН " + chosen.get() + ", ОШИБОК " + failures.get() +
+                ", EWMA " + Math.round(ewma) + " МКС; ПОДКЛЮЧЕНИЕ, МКС: P50 " +
+                connectTimes.percentile(0.50) + ", P99 " + connectTimes.percentile(0.99) +
+                ((p != null) ? "; " + p.status() : "") +
+                ((c != null) ? "; " + c.status() : "");
+    }
+}
+/**
+ * Политика выбора сервера для нового подключения. Методу choose()
+ * передаются только доступные серверы с ненулевым весом (не меньше двух);
+ * он может вызываться одновременно из многих потоков исполнения.
+ **/
+public interface Policy {
+    public Backend choose(Backend[] candidates);
+    public String name();
+}
+/** Политика по ее имени: rr, least или p2c */
+public static Policy policy(String name) {
+    if (name.equals("rr")) return new RoundRobin();
+    if (name.equals("least")) return new LeastActive();
+    if (name.equals("p2c")) return new PowerOfTwo();
+    throw new IllegalArgumentException("Неизвестная политика: " + name);
+}
+/**
+ * Взвешенный перебор по кругу в «гладком» варианте: каждый выбор
+ * прибавляет к счетчику каждого сервера его вес, выбирает сервер
+ * с наибольшим счетчиком и вычитает из его счетчика сумму весов. Серверы
+ * с весами 5, 1, 1 получают подключения в порядке a a b a c a a, а не
+ * пятью подряд.
+ **/
+public static class RoundRobin implements Policy {
+    public synchronized Backend choose(Backend[] candidates) {
+        Backend best = null;
+        int total = 0;
+        for(int i = 0; i < candidates.length; i++) {
+            Backend b = candidates[i];
+            int w = b.weight;
+            b.current += w;
+            total += w;
+            if ((best == null) || (b.current > best.current)) best = b;
+        }
+        best.current -= total;
+        return best;
+    }
+    public String name() { return "rr"; }
+}
+/**
+ * Наименьшее число текущих подключений на единицу веса. Перебор начинается
+ * с разных серверов по кругу, чтобы при равенстве нагрузка не доставалась
+ * всегда первому.
+ **/
+public static class LeastActive implements Policy {
+    final AtomicInteger next = new AtomicInteger();
+    public Backend choose(Backend[] candidates) {
+        int start = (next.getAndIncrement() & 0x7fffffff) % candidates.length;
+        Backend best = null;
+        double bestLoad = 0;
+        for(int i = 0; i < candidates.length; i++) {
+            Backend b = candidates[(start + i) % candidates.length];
+            double load = (b.active.get() + 1.0) / b.weight;
+            if ((best == null) || (load < bestLoad)) { best = b; bestLoad = load; }
+        }
+        return best;
+    }
+    public String name() { return "least"; }
+}
+/**
+ * «Сила двух выборов»: берем два случайных сервера и выбираем тот, у которого
+ * меньше оценка задержки – EWMA времени подключения, умноженное на число
+ * текущих подключений плюс один и деленное на вес. Это почти так же хорошо,
+ * как выбор лучшего из всех, но не требует их перебора и не направляет всех
+ * клиентов разом на сервер, который лишь кажется самым быстрым.
+ **/
+public static class PowerOfTwo implements Policy {
+    public Backend choose(Backend[] candidates) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(candidates.length);
+        int j = random.nextInt(candidates.length - 1);
+        if (j >= i) j++;
+        Backend a = candidates[i], b = candidates[j];
+        return (cost(a) <= cost(b)) ? a : b;
+    }
+    static double cost(Backend b) {
+        double e = b.ewma;
+        return Math.max(e, 1) * (b.active.get() + 1) / b.weight;
+    }
+    public String name() { return "p2c"; }
+}
+/**
+ * Автоматический выключатель (circuit breaker) одного сервера. Пока он
+ * замкнут, к серверу подключаются как обычно, а выключатель запоминает
+ * исходы последних подключений. Если неудач подряд набралось maxFailures
+ * или доля неудач среди последних window подключений достигла maxRate
+ * процентов, выключатель размыкается: сервер не выбирается вовсе, и клиенты
+ * не ждут тайм-аута подключения к нему. Через openTime миллисекунд одному
+ * клиенту разрешается пробное подключение (полуоткрытое состояние): удача
+ * замыкает выключатель, неудача снова размыкает его на тот же срок.
+ *
+ * Метод allows() вызывается при каждом выборе сервера и не захватывает
+ * блокировок; остальные методы синхронизированы, но вызываются лишь раз на
+ * подключение. Переходы записываются в журнал (если он задан) и считаются.
+ **/
+public static class CircuitBreaker {
+    public static final int CLOSED = 0, OPEN = 1, HALF_OPEN = 2;
+    static final String[] STATES = { "ЗАМКНУТ", "РАЗОМКНУТ", "ПРОБА" };
+    final String name;          // Имя сервера, для журнала
+    final int maxFailures;      // Неудач подряд для размыкания
+    final int maxRate;          // Доля неудач в окне для размыкания, %
+    final boolean[] window;     // Исходы последних подключений (true – неудача)
+    final long openTime;        // Сколько держать разомкнутым, мс
+    volatile AsyncLog log;      // Журнал переходов (или null)
+    volatile int state = CLOSED;
+    volatile long openUntil;    // До какого момента разомкнут (currentTimeMillis)
+    int consecutive;            // Неудач подряд
+    int count, failed, next;    // Исходов в окне, из них неудач, куда писать
+    volatile boolean probing;   // Пробное подключение уже выдано
+    volatile long probeStart;   // Когда оно выдано
+    final AtomicLong opened = new AtomicLong(); // Сколько раз размыкался
+    final AtomicLong changes = new AtomicLong(); // Всего переходов
+    public CircuitBreaker(String name, int maxFailures, int maxRate, int window,
+                          long openTime) {
+        this.name = name;
+        this.maxFailures = Math.max(maxFailures, 1);
+        this.maxRate = maxRate;
+        this.window = new boolean[Math.max(window, 1)];
+        this.openTime = openTime;
+    }
+    /** Можно ли выбрать сервер (не захватывает блокировок) */
+    public boolean allows() {
+        int s = state;
+        if (s == CLOSED) return true;
+        if (s == OPEN) return System.currentTimeMillis() >= openUntil;
+        return !probing || (System.currentTimeMillis() - probeStart >= openTime);
+    }
+    /**
+     * Сервер выбран: проверяем это еще раз под блокировкой. В полуоткрытом
+     * состоянии разрешается лишь одно пробное подключение; если его исход
+     * так и не сообщен за openTime, разрешается следующее.
+     **/
+    public synchronized boolean acquire() {
+        long now = System.currentTimeMillis();
+        if (state == CLOSED) return true;
+        if (state == OPEN) {
+            if (now < openUntil) return false;
+            change(HALF_OPEN, "пробное подключение");
+        }
+        else if (probing && (now - probeStart < openTime)) return false;
+        probing = true;
+        probeStart = now;
+        return true;
+    }
+    /** Подключение к серверу удалось */
+    public synchronized void success() {
+        consecutive = 0;
+        if (state == HALF_OPEN) {
+            probing = false;
+            count = failed = next = 0;
+            change(CLOSED, "пробное подключение удалось");
+        }
+        else record(false);
+    }
+    /** Подключиться к серверу не удалось */
+    public synchronized void failure() {
+        consecutive++;
+        if (state == HALF_OPEN) {
+            probing = false;
+            open("пробное подключение не удалось");
+            return;
+        }
+        record(true);
+        if (state != CLOSED) return;
+        if (consecutive >= maxFailures) open(consecutive + " неудач подряд");
+        else if ((count == window.length) && (maxRate > 0) &&
+                (failed * 100 >= maxRate * count))
+            open(failed + " неудач из " + count);
+    }
+    void record(boolean failure) {
+        if (count == window.length) { if (window[next]) failed--; }
+        else count++;
+        window[next] = failure;
+        if (failure) failed++;
+        next = (next + 1) % window.length;
+    }
+    void open(String why) {
+        openUntil = System.currentTimeMillis() + openTime;
+        opened.incrementAndGet();
+        change(OPEN, why);
+    }
+    void change(int to, String why) {
+        state = to;
+        changes.incrementAndGet();
+        AsyncLog l = log;
+        if (l != null)
+            l.log("Выключатель сервера " + name + " " + STATES[to].toLowerCase() +
+                    ": " + why);
+    }
+    /** Сводка о выключателе для состояния сервера */
+    public synchronized String status() {
+        long left = openUntil - System.currentTimeMillis();
+        return "ВЫКЛЮЧАТЕЛЬ " + STATES[state] +
+                (((state == OPEN) && (left > 0)) ? " ЕЩЕ " + left + " МС" : "") +
+                ", НЕУДАЧ ПОДРЯД " + consecutive + ", В ОКНЕ " + failed + " ИЗ " +
+                count + ", РАЗМЫКАЛСЯ " + opened.get() + ", ПЕРЕХОДОВ " + changes.get();
     }
 }
+/**
+ * Фоновая проверка доступности серверов: раз в interval миллисекунд поток
+ * исполнения по очереди устанавливает пробное подключение к каждому серверу
+ * и сразу закрывает его. После fall неудач подряд сервер исключается
+ * из выбора, после rise удач подряд – возвращается.
+ **/
+public static class HealthCheck implements Runnable {
+    final Backend[] backends;
+    final long interval;        // Период проверки, мс
+    final int timeout;          // Сколько ждать пробного подключения, мс
+    final int fall, rise;       // Неудач подряд для исключения, удач – для возврата
+    final AtomicLong ejected = new AtomicLong();   // Исключений
+    final AtomicLong readmitted = new AtomicLong(); // Возвратов
+    final Thread thread;
+    volatile boolean stopped;
+    public HealthCheck(Backend[] backends, long interval, int timeout, int fall, int rise) {
+        this.backends = backends;
+        this.interval = interval;
+        this.timeout = timeout;
+        this.fall = Math.max(fall, 1);
+        this.rise = Math.max(rise, 1);
+        thread = new Thread(this, "Proxy.HealthCheck");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    public void run() {
+        while(!stopped) {
+            for(int i = 0; i < backends.length; i++) probe(backends[i]);
+            try { Thread.sleep(interval); }
+            catch (InterruptedException e) { return; }
+        }
+    }
+    /** Пробное подключение к серверу и пересчет его доступности */
+    void probe(Backend b) {
+        boolean ok;
+        Socket s = new Socket();
+        long start = System.nanoTime();
+        try {
+            s.connect(Resolver.getDefault().address(b.host, b.port), timeout);
+            ok = true;
+        }
+        catch (IOException e) { ok = false; }
+        try { s.close(); } catch (IOException e) {}
+        if (ok) {
+            b.fails = 0;
+            if (!b.healthy && (++b.passes >= rise)) {
+                // Штраф за прежние неудачи забываем, иначе политика p2c
+                // никогда не выберет вернувшийся сервер
+                b.passes = 0;
+                b.ewma = 0;
+                b.healthy = true;
+                readmitted.incrementAndGet();
+            }
+            // Пробные подключения тоже уточняют оценку задержки сервера
+            b.sample((System.nanoTime() - start) / 1000);
+        }
+        else {
+            b.passes = 0;
+            if (b.healthy && (++b.fails >= fall)) {
+                b.fails = 0;
+                b.healthy = false;
+                ejected.incrementAndGet();
+            }
+        }
+    }
+    public void stop() {
+        stopped = true;
+        thread.interrupt();
+    }
+    public String toString() {
+        return "КАЖДЫЕ " + interval + " МС, ИСКЛЮЧЕНИЙ " + ejected.get() +
+                ", ВОЗВРАТОВ " + readmitted.get();
+    }
 }
+/**
+ * Пул заранее установленных подключений к одному серверу. Фоновый поток
+ * исполнения поддерживает в пуле заданное число готовых подключений: он
+ * доустанавливает их, когда пул пустеет, и заменяет свежими те, что
+ * пролежали дольше maxIdle (сервер мог уже закрыть их по своему тайм-ауту).
+ * Метод take() не блокируется, так что его можно вызывать и из цикла
+ * выборки: он выдает самое свежее подключение, предварительно проверив,
+ * что сервер его не закрыл, а если готовых нет, возвращает null, и тогда
+ * вызывающий подключается сам.
+ *
+ * Готовые подключения хранятся в неблокирующем режиме. Проверка читает
+ * из канала то, что сервер успел прислать (например, приветствие); эти
+ * данные передаются вместе с подключением и должны быть отправлены
+ * клиенту первыми.
+ **/
+public static class UpstreamPool {
+    final String host;
+    final int port;
+    final int size;             // Сколько готовых подключений держать
+    final long maxIdle;         // Сколько хранить готовое подключение, мс
+    final int connectTimeout;   // Сколько ждать подключения к серверу, мс
+    final Histogram connectTimes; // Время установления подключений, мкс
+    final LinkedBlockingDeque idle = new LinkedBlockingDeque(); // Старые в начале
+    final AtomicLong hits = new AtomicLong();      // Выдано готовых
+    final AtomicLong misses = new AtomicLong();    // Готовых не было
+    final AtomicLong discarded = new AtomicLong(); // Закрыто сервером или устарело
+    final AtomicLong failures = new AtomicLong();  // Не удалось подключиться
+    final Thread refiller;      // Фоновый поток, пополняющий пул
+    volatile boolean closed;
+
+    /** Готовое подключение и данные, которые сервер прислал до его выдачи */
+    public static class Warm {
+        public final SocketChannel channel;
+        final long since;       // Когда подключение установлено, нс
+        public ByteBuffer preread; // Прочитанное при проверке (или null)
+        Warm(SocketChannel channel) {
+            this.channel = channel;
+            this.since = System.nanoTime();
+        }
+    }
 
+    public UpstreamPool(String host, int port, int size, long maxIdle,
+                        int connectTimeout, Histogram connectTimes) {
+        this.host = host;
+        this.port = port;
+        this.size = size;
+        this.maxIdle = maxIdle;
+        this.connectTimeout = connectTimeout;
+        this.connectTimes = connectTimes;
+        refiller = new Thread(new Runnable() {
+            public void run() { refill(); }
+        }, "Proxy.Pool:" + host + ":" + port);
+        refiller.setDaemon(true);
+        refiller.start();
+    }
+    /** Выдаем проверенное готовое подключение или null, если их нет */
+    public Warm take() {
+        try {
+            for(;;) {
+                Warm w = (Warm) idle.pollLast();
+                if (w == null) { misses.incrementAndGet(); return null; }
+                if (valid(w)) { hits.incrementAndGet(); return w; }
+                discard(w);
+            }
+        }
+        finally { wake(); }
+    }
+    /**
+     * Проверяем, что подключение не устарело и сервер его не закрыл.
+     * Неблокирующее чтение вернет -1, если сервер закрыл подключение,
+     * и прочитает все, что он успел прислать. Читаем в буфер из общего
+     * пула прокси и копируем в отдельный массив, только если что-то
+     * прочитано: обычно сервер молчит, и проверка ничего не выделяет.
+     **/
+    boolean valid(Warm w) {
+        if (System.nanoTime() - w.since > maxIdle * 1000000) return false;
+        ByteBuffer b = Proxy.buffers.get();
+        try {
+            int n = w.channel.read(b);
+            if (n < 0) return false;
+            if (n > 0) {
+                b.flip();
+                w.preread = ByteBuffer.allocate(n);
+                w.preread.put(b);
+                w.preread.flip();
+            }
+            return true;
+        }
+        catch (IOException e) { return false; }
+        finally { Proxy.buffers.put(b); }
+    }
+    void discard(Warm w) {
+        discarded.incrementAndGet();
+        try { w.channel.close(); } catch (IOException e) {}
+    }
+    /**
+     * Будим фоновый поток, чтобы он восполнил выданное подключение. Метод
+     * вызывается и из цикла выборки, поэтому не захватывает монитор.
+     **/
+    void wake() { LockSupport.unpark(refiller); }
+    /** Тело фонового потока: заменяем устаревшие и доустанавливаем недостающие */
+    void refill() {
+        while(!closed) {
+            Warm oldest = (Warm) idle.peekFirst();
+            if ((oldest != null) &&
+                    (System.nanoTime() - oldest.since > maxIdle * 1000000)) {
+                if (idle.remove(oldest)) discard(oldest);
+                continue;
+            }
+            if (idle.size() < size) {
+                long start = System.nanoTime();
+                try {
+                    SocketChannel ch = SocketChannel.open();
+                    try {
+                        ch.socket().connect(Resolver.getDefault().address(host, port),
+                                connectTimeout);
+                        ch.configureBlocking(false);
+                    }
+                    catch (IOException e) { ch.close(); throw e; }
+                    connectTimes.record((System.nanoTime() - start) / 1000);
+                    idle.addLast(new Warm(ch));
+                    if (closed) close();
+                    continue;
+                }
+                catch (IOException e) { failures.incrementAndGet(); }
+            }
+            // Ждем выдачи подключения, а после неудачи не долбим сервер
+            // чаще раза в секунду; заодно проверяем возраст подключений
+            LockSupport.parkNanos(this, 1000000000L);
+            if (Thread.interrupted()) return;
+        }
+    }
+    /** Закрываем пул и все готовые подключения */
+    public void close() {
+        closed = true;
+        Warm w;
+        while((w = (Warm) idle.pollFirst()) != null) {
+            try { w.channel.close(); } catch (IOException e) {}
+        }
+        wake();
+    }
+    /** Сводка о пуле для состояния сервера */
+    public String status() {
+        long h = hits.get(), m = misses.get();
+        return "ПУЛ: ГОТОВЫХ " + idle.size() + " ИЗ " + size + ", ВЫДАНО " + h +
+                ", НЕ ХВАТИЛО " + m + ((h + m > 0) ? " (ПОПАДАНИЙ " +
+                (h * 100 / (h + m)) + "%)" : "") + ", ОТБРОШЕНО " + discarded.get() +
+                ", ОШИБОК ПОДКЛЮЧЕНИЯ " + failures.get();
+    }
+}
+}
@@ -0,0 +1,298 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+/**
+ * Эта программа воспроизводит трафик, записанный классом TrafficCapture
+ * (например, ProxyServer с аргументом capture), против заданного сервера –
+ * обычно локальной службы Server. Каждый записанный сеанс открывается в тот
+ * же момент относительно начала записи, что и при записи, и отправляет те
+ * же данные клиента с теми же паузами. С аргументом speed паузы сокращаются
+ * в заданное число раз, так что запись можно воспроизвести ускоренно.
+ *
+ * Данные сервера служат образцом ответа: получив столько же байтов, сколько
+ * сервер прислал при записи, сеанс переходит к следующей отправке. Задержка
+ * ответа – время от последней отправки клиента (или от открытия сеанса) до
+ * первого байта ответа – измеряется и при записи, и при воспроизведении,
+ * и в конце программа печатает оба распределения, распределение разницы
+ * между ними и число ответов, не совпавших с записанными побайтно.
+ *
+ * Потоки исполнения сеансов создаются не заранее, а в момент открытия
+ * каждого сеанса, так что их столько, сколько сеансов идет одновременно.
+ * Если JVM поддерживает виртуальные потоки, используются они. Аргумент
+ * concurrency ограничивает число одновременных сеансов (по умолчанию 1000
+ * для обычных потоков и без ограничения для виртуальных); сеанс, которому
+ * не хватило места, открывается позже и учитывается как задержанный.
+ **/
+public class Replay {
+    public static final String usage = "Формат: java Replay <capturedir> <host> <port> " +
+            "[speed <factor>] [timeout <ms>] [concurrency <sessions>]";
+
+    public static void main(String[] args) {
+        try {
+            if (args.length < 3)
+                throw new IllegalArgumentException("Неправильное число аргументов");
+            File dir = new File(args[0]);
+            String host = args[1];
+            int port = Integer.parseInt(args[2]);
+            double speed = 1;
+            int timeout = 10000;
+            int concurrency = Server.virtualThreadsSupported() ? Integer.MAX_VALUE : 1000;
+            for(int i = 3; i < args.length; i += 2) {
+                if (args[i].equals("speed")) speed = Double.parseDouble(args[i + 1]);
+                else if (args[i].equals("timeout")) timeout = Integer.parseInt(args[i + 1]);
+                else if (args[i].equals("concurrency"))
+                    concurrency = Integer.parseInt(args[i + 1]);
+                else throw new IllegalArgumentException(args[i]);
+            }
+            if (speed <= 0) throw new IllegalArgumentException("speed: " + speed);
+            if (concurrency <= 0)
+                throw new IllegalArgumentException("concurrency: " + concurrency);
+            ArrayList sessions = read(dir);
+            if (sessions.isEmpty())
+                throw new IllegalArgumentException("В каталоге " + dir + " нет записанных сеансов");
+            replay(sessions, host, port, speed, timeout, concurrency);
+        }
+        catch (Exception e) {
+            System.err.println(e);
+            System.err.println(usage);
+        }
+    }
+
+    /** Одно событие сеанса: отправка клиента или ответ сервера */
+    static class Event {
+        final byte type;            // TrafficCapture.CLIENT или SERVER
+        final long time;            // Время первой порции, нс от начала записи
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        Event(byte type, long time) {
+            this.type = type;
+            this.time = time;
+        }
+    }
+    /** Записанный сеанс: время открытия и события по порядку */
+    static class Recorded {
+        final long id;
+        long open = -1;             // Время открытия, нс от начала записи
+        final ArrayList events = new ArrayList();
+        Recorded(long id) { this.id = id; }
+    }
+
+    /**
+     * Читаем сегменты последней записи в каталоге и собираем сеансы.
+     * Подряд идущие порции данных сервера объединяются в один ответ; порции
+     * клиента остаются отдельными отправками, чтобы сохранить паузы.
+     **/
+    static ArrayList read(File dir) throws IOException {
+        File[] files = TrafficCapture.segments(dir);
+        HashMap byId = new HashMap();
+        ArrayList sessions = new ArrayList();
+        // Имена сегментов начинаются со времени начала записи, так что
+        // последний файл принадлежит последней записи
+        long capture = (files.length > 0) ? header(files[files.length - 1]) : -1;
+        for(int i = 0; i < files.length; i++) {
+            if (header(files[i]) != capture) continue; // Сегмент другой записи
+            FileChannel ch = new RandomAccessFile(files[i], "r").getChannel();
+            try {
+                MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                map.position(TrafficCapture.HEADER);
+                while(map.remaining() >= TrafficCapture.RECORD_HEADER) {
+                    long time = map.getLong();
+                    long id = map.getLong();
+                    byte type = map.get();
+                    int len = map.getInt();
+                    if ((type == TrafficCapture.END) || (len > map.remaining())) break;
+                    byte[] data = new byte[len];
+                    map.get(data);
+                    Long key = Long.valueOf(id);
+                    Recorded r = (Recorded) byId.get(key);
+                    if (r == null) {
+                        r = new Recorded(id);
+                        byId.put(key, r);
+                        sessions.add(r);
+                    }
+                    if (r.open < 0) r.open = time; // Начало мог удалить поворот сегментов
+                    if ((type == TrafficCapture.CLIENT) || (type == TrafficCapture.SERVER)) {
+                        Event last = r.events.isEmpty() ? null :
+                                (Event) r.events.get(r.events.size() - 1);
+                        if ((type == TrafficCapture.CLIENT) || (last == null) ||
+                                (last.type != type)) {
+                            last = new Event(type, time);
+                            r.events.add(last);
+                        }
+                        last.data.write(data, 0, len);
+                    }
+                }
+            }
+            finally { ch.close(); }
+        }
+        return sessions;
+    }
+    /** Время начала записи из заголовка сегмента (или -1) */
+    static long header(File f) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            byte[] magic = new byte[TrafficCapture.MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, TrafficCapture.MAGIC)) return -1;
+            return in.readLong();
+        }
+        catch (EOFException e) { return -1; }
+        finally { in.close(); }
+    }
+
+    /**
+     * Воспроизводим все сеансы и печатаем итоги. Сеансы открываются по
+     * порядку их времени открытия: этот поток ждет момента очередного
+     * сеанса (и свободного места, если сеансов идет concurrency) и лишь
+     * тогда создает для него поток исполнения.
+     **/
+    static void replay(ArrayList sessions, String host, int port, double speed,
+                       int timeout, int concurrency) throws InterruptedException {
+        Collections.sort(sessions, new Comparator() {
+            public int compare(Object a, Object b) {
+                return Long.compare(((Recorded) a).open, ((Recorded) b).open);
+            }
+        });
+        long first = ((Recorded) sessions.get(0)).open;
+        Results results = new Results();
+        CountDownLatch done = new CountDownLatch(sessions.size());
+        Semaphore slots = new Semaphore(concurrency);
+        long delayed = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < sessions.size(); i++) {
+            Recorded r = (Recorded) sessions.get(i);
+            ReplaySession.waitUntil(start + (long) ((r.open - first) / speed));
+            if (!slots.tryAcquire()) {
+                delayed++;
+                slots.acquire();
+            }
+            Server.newThread(null, new ReplaySession(r, host, port, speed, timeout,
+                    results, done, slots), "Replay:" + r.id, true).start();
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println("Сеансов: " + sessions.size() + ", с ошибками " +
+                results.errors.get() + ", задержано " + delayed + ", за " +
+                String.format("%.1f", seconds) + " с");
+        System.out.println("Отправлено байтов: " + results.sent.get() +
+                ", получено: " + results.received.get() +
+                ", ответов не совпало с записью: " + results.mismatched.get() +
+                " из " + results.replayed.count());
+        System.out.println("Задержка ответа при записи, мкс: " +
+                GenericClient.summary(results.recorded));
+        System.out.println("Задержка ответа сейчас, мкс: " +
+                GenericClient.summary(results.replayed));
+        System.out.println("Медленнее записи: " + results.slower.count() +
+                " ответов, на мкс: " + GenericClient.summary(results.slower));
+        System.out.println("Быстрее записи: " + results.faster.count() +
+                " ответов, на мкс: " + GenericClient.summary(results.faster));
+        long n = results.replayed.count();
+        if (n > 0)
+            System.out.println("Средняя разница, мкс: " +
+                    (results.replayed.sum() - results.recorded.sum()) / n);
+    }
+
+    /** Итоги воспроизведения, общие для всех сеансов */
+    static class Results {
+        final Histogram recorded = new Histogram();  // Задержки при записи, мкс
+        final Histogram replayed = new Histogram();  // Задержки сейчас, мкс
+        final Histogram slower = new Histogram();    // На сколько медленнее, мкс
+        final Histogram faster = new Histogram();    // На сколько быстрее, мкс
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong received = new AtomicLong();
+        final AtomicLong mismatched = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        void response(long recordedMicros, long replayedMicros) {
+            recorded.record(recordedMicros);
+            replayed.record(replayedMicros);
+            long d = replayedMicros - recordedMicros;
+            if (d >= 0) slower.record(d);
+            else faster.record(-d);
+        }
+    }
+
+    /**
+     * Тело потока исполнения одного сеанса: подключается и проходит
+     * события записи по порядку, а завершаясь, освобождает место.
+     **/
+    static class ReplaySession implements Runnable {
+        final Recorded r;
+        final String host;
+        final int port;
+        final double speed;
+        final int timeout;
+        final Results results;
+        final CountDownLatch done;  // Отсчитывает завершенные сеансы
+        final Semaphore slots;      // Места для одновременных сеансов
+        ReplaySession(Recorded r, String host, int port, double speed, int timeout,
+                      Results results, CountDownLatch done, Semaphore slots) {
+            this.r = r;
+            this.host = host;
+            this.port = port;
+            this.speed = speed;
+            this.timeout = timeout;
+            this.results = results;
+            this.done = done;
+            this.slots = slots;
+        }
+        public void run() {
+            Socket s = null;
+            try {
+                s = new Socket(host, port);
+                s.setSoTimeout(timeout);
+                InputStream in = s.getInputStream();
+                OutputStream out = s.getOutputStream();
+                long opened = System.nanoTime();
+                long recordedRef = r.open, replayRef = opened; // Последняя отправка
+                for(int i = 0; i < r.events.size(); i++) {
+                    Event e = (Event) r.events.get(i);
+                    byte[] data = e.data.toByteArray();
+                    if (e.type == TrafficCapture.CLIENT) {
+                        // Отправляем с той же паузой от открытия сеанса
+                        waitUntil(opened + (long) ((e.time - r.open) / speed));
+                        out.write(data);
+                        out.flush();
+                        results.sent.addAndGet(data.length);
+                        recordedRef = e.time;
+                        replayRef = System.nanoTime();
+                    }
+                    else {
+                        // Ждем ответа той же длины, что и при записи
+                        byte[] got = new byte[data.length];
+                        int n = in.read(got);
+                        if (n < 0) throw new EOFException("Сервер закрыл подключение");
+                        long first = System.nanoTime();
+                        while(n < got.length) {
+                            int k = in.read(got, n, got.length - n);
+                            if (k < 0) break;
+                            n += k;
+                        }
+                        results.received.addAndGet(n);
+                        results.response((e.time - recordedRef) / 1000,
+                                (first - replayRef) / 1000);
+                        if ((n < got.length) || !Arrays.equals(got, data))
+                            results.mismatched.incrementAndGet();
+                        if (n < got.length) break;
+                    }
+                }
+            }
+            catch (IOException e) { results.errors.incrementAndGet(); }
+            finally {
+                try { if (s != null) s.close(); } catch (IOException e) {}
+                slots.release();
+                done.countDown();
+            }
+        }
+        static void waitUntil(long deadline) {
+            for(;;) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) return;
+                try { Thread.sleep(left / 1000000, (int) (left % 1000000)); }
+                catch (InterruptedException e) { return; }
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+/**
+ * Этот класс хранит кэш разрешения имен узлов (DNS), общий для всей
+ * программы. Каждое имя разрешается во все его адреса, и они выдаются по
+ * кругу, так что подключения распределяются между адресами узла. Запись
+ * свежа ttl миллисекунд; когда прошло три четверти этого срока, первое же
+ * обращение к ней запускает обновление в фоновом потоке исполнения, а
+ * обращающийся тут же получает адрес из прежней записи – даже если срок
+ * записи уже истек (stale-while-revalidate). Если обновление не удалось,
+ * прежние адреса остаются в силе, а новая попытка будет через negativeTtl.
+ * Поэтому ждать DNS приходится лишь при самом первом обращении к имени,
+ * а циклы выборки не ждут и тогда: метод resolveLater() отправляет первый
+ * запрос в фон и сообщает о его завершении.
+ *
+ * Неудачи тоже запоминаются (на negativeTtl миллисекунд): повторные
+ * попытки разрешить несуществующее имя сразу получают исключение, не
+ * нагружая DNS. Обратное разрешение (адрес в имя) не блокируется никогда:
+ * пока имя неизвестно, вместо него возвращается текстовый адрес, а поиск
+ * идет в фоне. Адресов в обратном кэше не больше maxReverse, а очередь
+ * обратных запросов ограничена; если она заполнена, запрос отбрасывается
+ * и остается текстовый адрес.
+ *
+ * Числа попаданий, промахов, устаревших ответов, фоновых обновлений
+ * и неудач отображаются методом status().
+ **/
+public class Resolver {
+    static Resolver defaultResolver;
+    /** Общий для всей программы экземпляр */
+    public static synchronized Resolver getDefault() {
+        if (defaultResolver == null) defaultResolver = new Resolver(60000, 5000);
+        return defaultResolver;
+    }
+
+    final long ttl;                // Срок свежести удачной записи, мс
+    final long negativeTtl;        // Срок жизни неудачи, мс
+    final int maxReverse;          // Сколько адресов держать в обратном кэше
+    final ConcurrentHashMap names = new ConcurrentHashMap();     // Имя -> Entry
+    final ConcurrentHashMap reverse = new ConcurrentHashMap();   // Адрес -> Entry
+    final HashMap waiters = new HashMap(); // Имя -> ArrayList ждущих первого ответа
+    final ThreadPoolExecutor refresher;    // Фоновые запросы имен
+    final ThreadPoolExecutor reverseLookups; // Фоновые обратные запросы
+    final LongAdder hits = new LongAdder();      // Ответы из кэша
+    final LongAdder misses = new LongAdder();    // Запросы, ждавшие DNS
+    final LongAdder stale = new LongAdder();     // Ответы из истекших записей
+    final LongAdder negative = new LongAdder();  // Ответы из кэша неудач
+    final LongAdder refreshes = new LongAdder(); // Фоновые обновления
+    final LongAdder failures = new LongAdder();  // Неудачные запросы к DNS
+    final LongAdder dropped = new LongAdder();   // Отброшенные обратные запросы
+
+    /**
+     * Одна запись кэша: адреса (или причина неудачи), когда запись
+     * устаревает и когда пора ее обновлять. Запись заменяется целиком,
+     * поэтому ее поля неизменны, кроме счетчика для выдачи адресов по
+     * кругу и признака начатого обновления.
+     **/
+    static class Entry {
+        final InetAddress[] addresses;   // Адреса узла (или null)
+        final String name;               // Имя по обратному разрешению (или null)
+        final UnknownHostException error; // Причина неудачи (или null)
+        final long refreshAt, expires;   // В единицах System.currentTimeMillis()
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        Entry(InetAddress[] addresses, String name, UnknownHostException error,
+              long ttl) {
+            this.addresses = addresses;
+            this.name = name;
+            this.error = error;
+            long now = System.currentTimeMillis();
+            this.refreshAt = now + ttl * 3 / 4;
+            this.expires = now + ttl;
+        }
+    }
+
+    /**
+     * Создаем кэш с заданными сроками жизни удачных и неудачных записей
+     * (в миллисекундах) и не больше чем 4096 адресами в обратном кэше.
+     **/
+    public Resolver(long ttl, long negativeTtl) { this(ttl, negativeTtl, 4096); }
+    public Resolver(long ttl, long negativeTtl, int maxReverse) {
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.maxReverse = maxReverse;
+        // Имен столько, сколько серверов у программы, поэтому очередь их
+        // запросов не ограничена; обратных запросов столько, сколько
+        // разных отправителей, поэтому их очередь ограничена.
+        refresher = newPool("Resolver", new LinkedBlockingQueue());
+        reverseLookups = newPool("Resolver.Reverse", new ArrayBlockingQueue(256));
+    }
+    static ThreadPoolExecutor newPool(final String name, BlockingQueue queue) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+                queue, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true); // Без запросов потоки не держим
+        return pool;
+    }
+    /**
+     * Разрешаем имя узла в один из его адресов (по кругу). Если имя уже
+     * разрешалось, метод не блокируется; если нет, запрос к DNS выполняется
+     * в вызывающем потоке исполнения.
+     **/
+    public InetAddress resolve(String host) throws UnknownHostException {
+        Entry e = (Entry) names.get(host);
+        if (e == null) {
+            misses.increment();
+            e = query(host);
+        }
+        else cached(host, e);
+        return pick(e);
+    }
+    /** То же для пары «узел, порт» */
+    public InetSocketAddress address(String host, int port) throws UnknownHostException {
+        return new InetSocketAddress(resolve(host), port);
+    }
+    /**
+     * Адрес узла без ожидания DNS, для циклов выборки. Если имя уже
+     * разрешалось, адрес берется из кэша, как в resolve(). Иначе запрос
+     * к DNS уходит в фоновый поток, метод возвращает null, а по завершении
+     * запроса (удачном или нет) в том же фоновом потоке вызывается done;
+     * после этого resolveLater() ответит из кэша.
+     **/
+    public InetSocketAddress resolveLater(final String host, int port, Runnable done)
+            throws UnknownHostException {
+        Entry e = (Entry) names.get(host);
+        if (e == null) {
+            boolean first;
+            synchronized(waiters) {
+                e = (Entry) names.get(host);   // Ответ мог прийти только что
+                if (e == null) {
+                    ArrayList list = (ArrayList) waiters.get(host);
+                    first = (list == null);
+                    if (first) {
+                        list = new ArrayList();
+                        waiters.put(host, list);
+                    }
+                    list.add(done);
+                }
+                else first = false;
+            }
+            if (e == null) {
+                if (first) {
+                    misses.increment();
+                    refresher.execute(new Runnable() {
+                        public void run() { query(host); }
+                    });
+                }
+                return null;
+            }
+        }
+        cached(host, e);
+        return new InetSocketAddress(pick(e), port);
+    }
+    /** Все адреса узла, из кэша или от DNS */
+    public InetAddress[] lookup(String host) throws UnknownHostException {
+        Entry e = (Entry) names.get(host);
+        if (e == null) {
+            misses.increment();
+            e = query(host);
+        }
+        else cached(host, e);
+        if (e.error != null) throw new UnknownHostException(e.error.getMessage());
+        return e.addresses;
+    }
+    /**
+     * Учитываем ответ из кэша и, если пора, обновляем запись в фоне.
+     * Истекшая запись тоже годится для ответа, пока ее не заменит новая.
+     **/
+    void cached(final String host, Entry e) {
+        long now = System.currentTimeMillis();
+        if (e.error != null) negative.increment();
+        else if (now >= e.expires) stale.increment();
+        else hits.increment();
+        if ((now >= e.refreshAt) && e.refreshing.compareAndSet(false, true)) {
+            refreshes.increment();
+            refresher.execute(new Runnable() {
+                public void run() { query(host); }
+            });
+        }
+    }
+    /** Очередной адрес записи по кругу (или исключение записи неудачи) */
+    static InetAddress pick(Entry e) throws UnknownHostException {
+        if (e.error != null) throw new UnknownHostException(e.error.getMessage());
+        InetAddress[] a = e.addresses;
+        if (a.length == 1) return a[0];
+        return a[(e.next.getAndIncrement() & Integer.MAX_VALUE) % a.length];
+    }
+    /** Заранее разрешаем имя в фоне, чтобы первое подключение не ждало */
+    public void prefetch(final String host) {
+        if (names.containsKey(host)) return;
+        refresher.execute(new Runnable() {
+            public void run() { query(host); }
+        });
+    }
+    /**
+     * Запрос к DNS; результат заменяет запись кэша. При неудаче прежние
+     * адреса (если они были) остаются в силе еще на negativeTtl. Затем
+     * вызываем тех, кто ждал первого ответа для этого имени.
+     **/
+    Entry query(String host) {
+        Entry e;
+        try {
+            e = new Entry(InetAddress.getAllByName(host), null, null, ttl);
+        }
+        catch (UnknownHostException ex) {
+            failures.increment();
+            Entry old = (Entry) names.get(host);
+            if ((old != null) && (old.addresses != null))
+                e = new Entry(old.addresses, null, null, negativeTtl);
+            else e = new Entry(null, null, ex, negativeTtl);
+        }
+        names.put(host, e);
+        ArrayList list;
+        synchronized(waiters) { list = (ArrayList) waiters.remove(host); }
+        if (list != null)
+            for(int i = 0; i < list.size(); i++) ((Runnable) list.get(i)).run();
+        return e;
+    }
+    /**
+     * Имя узла по его адресу. Метод никогда не блокируется: если имени
+     * еще нет в кэше (или запись устарела), обратное разрешение запускается
+     * в фоне, а пока возвращается текстовый адрес. Если очередь обратных
+     * запросов заполнена, запрос отбрасывается.
+     **/
+    public String hostName(final InetAddress address) {
+        Entry e = (Entry) reverse.get(address);
+        long now = System.currentTimeMillis();
+        if ((e != null) && (now < e.refreshAt)) {
+            hits.increment();
+            return e.name;
+        }
+        if (e == null) {
+            // Ставим временную запись, чтобы не запускать поиск повторно
+            misses.increment();
+            e = new Entry(null, address.getHostAddress(), null, negativeTtl);
+            Entry old = (Entry) reverse.putIfAbsent(address, e);
+            if (old != null) e = old;
+            else if (reverse.size() > maxReverse) sweep(now);
+        }
+        else hits.increment();
+        if (e.refreshing.compareAndSet(false, true)) {
+            refreshes.increment();
+            try {
+                reverseLookups.execute(new Runnable() {
+                    public void run() {
+                        // getCanonicalHostName() при неудаче возвращает текстовый адрес
+                        String name = address.getCanonicalHostName();
+                        if (name.equals(address.getHostAddress())) failures.increment();
+                        reverse.put(address, new Entry(null, name, null, ttl));
+                    }
+                });
+            }
+            catch (RejectedExecutionException ex) {
+                dropped.increment();
+                e.refreshing.set(false);       // Попробуем при следующем обращении
+            }
+        }
+        return e.name;
+    }
+    /**
+     * Обратный кэш переполнен: удаляем истекшие записи, а если их не
+     * хватило, то произвольные, пока не останется три четверти предела.
+     **/
+    void sweep(long now) {
+        for(Iterator i = reverse.values().iterator(); i.hasNext(); )
+            if (now >= ((Entry) i.next()).expires) i.remove();
+        for(Iterator i = reverse.keySet().iterator();
+            i.hasNext() && (reverse.size() > maxReverse * 3 / 4); ) {
+            i.next();
+            i.remove();
+        }
+    }
+    /** Сводка о кэше для отображения состояния */
+    public String status() {
+        return "DNS: ИМЕН " + names.size() + ", АДРЕСОВ " + reverse.size() +
+                "; ИЗ КЭША " + hits.sum() + ", УСТАРЕВШИХ " + stale.sum() +
+                ", ОЖИДАЛИ DNS " + misses.sum() + ", ИЗ КЭША НЕУДАЧ " + negative.sum() +
+                ", ОБНОВЛЕНИЙ " + refreshes.sum() + ", НЕУДАЧ " + failures.sum() +
+                ", ОТБРОШЕНО ОБРАТНЫХ " + dropped.sum();
+    }
+}
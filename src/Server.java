@@ -1,6 +1,12 @@
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import javax.net.ssl.*;
 /**
  * Этот класс представляет собой универсальный шаблон настраиваемого
  * многопоточного сервера. Он ожидает подключений по любому числу
@@ -19,6 +25,24 @@ public class Server {
      * порту. Специальный аргумент –control, за которым должны следовать
      * пароль и порт, запускает специальную управляющую службу сервера,
      * работающую на заданном порте, защищенном заданным паролем.
+     * Аргумент metrics, за которым следует порт, запускает на этом порте
+     * службу, отдающую статистику сервера в формате Prometheus.
+     * Аргумент nio, за которым следует число циклов выборки (0 – по числу
+     * процессоров), переводит все последующие службы на неблокирующий движок.
+     * Аргумент threads со значением platform, virtual или all выбирает, какие
+     * потоки исполнения создавать для подключений (и для Listener в случае all),
+     * а аргумент max задает лимит числа одновременных подключений.
+     * Аргумент pool, за которым следуют длина очереди и время ожидания в ней
+     * в миллисекундах, включает пул рабочих потоков с очередью подключений.
+     * Аргументы acceptors и backlog задают для всех последующих служб число
+     * потоков, принимающих подключения по одному порту, и длину очереди
+     * непринятых подключений. Аргументы ratelimit (частота в секунду и запас)
+     * и iplimit ограничивают подключения с одного адреса клиента. Аргумент
+     * timeout задает тайм-ауты простоя, ожидания данных и длительности
+     * подключения в миллисекундах. Аргумент tls, за которым следуют файл
+     * хранилища ключей и его пароль, включает TLS для всех последующих
+     * служб; вместо файла можно указать selfsigned, и тогда сервер создаст
+     * самоподписанный сертификат для localhost в файле selfsigned.p12.
      **/
     public static void main(String[] args) {
         try {
@@ -28,16 +52,70 @@ public class Server {
             // регистрационного журнала и ограничивающий число
             // одновременных подключений десятью.
             Server s = new Server(System.out, 10);
+            TlsContext tls = null;  // Настройки TLS для последующих служб
             // Анализ списка аргументов
             int i = 0;
             while(i < args.length) {
-                if (args[i].equals("control")) { // Обработка аргумента control
+                if (args[i].equals("control")) { // Обработка аргумента control
                     i++;
                     String password = args[i++];
                     int port = Integer.parseInt(args[i++]);
                     // добавляем управляющую службу
                     s.addService(new Control(s, password), port);
                 }
+                else if (args[i].equals("metrics")) { // Статистика для Prometheus
+                    i++;
+                    s.addService(new Metrics(s), Integer.parseInt(args[i++]));
+                }
+                else if (args[i].equals("nio")) { // Включаем движок NIO
+                    i++;
+                    s.enableNio(Integer.parseInt(args[i++]));
+                }
+                else if (args[i].equals("threads")) { // Выбор вида потоков
+                    i++;
+                    s.setThreadMode(args[i++]);
+                }
+                else if (args[i].equals("max")) { // Лимит числа подключений
+                    i++;
+                    s.setMaxConnections(Integer.parseInt(args[i++]));
+                }
+                else if (args[i].equals("pool")) { // Пул рабочих потоков
+                    i++;
+                    int queueSize = Integer.parseInt(args[i++]);
+                    s.useWorkerPool(queueSize, Long.parseLong(args[i++]));
+                }
+                else if (args[i].equals("acceptors")) { // Потоков приема на порт
+                    i++;
+                    s.setAcceptors(Integer.parseInt(args[i++]));
+                }
+                else if (args[i].equals("backlog")) { // Очередь непринятых подключений
+                    i++;
+                    s.setBacklog(Integer.parseInt(args[i++]));
+                }
+                else if (args[i].equals("ratelimit")) { // Частота подключений с адреса
+                    i++;
+                    double rate = Double.parseDouble(args[i++]);
+                    s.setClientRate(0, rate, Integer.parseInt(args[i++]));
+                }
+                else if (args[i].equals("iplimit")) { // Подключений с адреса
+                    i++;
+                    s.setClientConnections(0, Integer.parseInt(args[i++]));
+                }
+                else if (args[i].equals("timeout")) { // Тайм-ауты подключений
+                    i++;
+                    long idle = Long.parseLong(args[i++]);
+                    long read = Long.parseLong(args[i++]);
+                    s.setTimeouts(0, idle, read, Long.parseLong(args[i++]));
+                }
+                else if (args[i].equals("tls")) { // TLS для последующих служб
+                    i++;
+                    String keystore = args[i++];
+                    String password = args[i++];
+                    if (keystore.equals("selfsigned"))
+                        tls = TlsContext.selfSigned(new File("selfsigned.p12"),
+                                password, "localhost");
+                    else tls = TlsContext.load(new File(keystore), password);
+                }
                 else {
                     // В противном случае запускаем названную службу по заданному порту.
                     // Динамически загружаем класс Service и создаем его экземпляр.
@@ -45,311 +123,2336 @@ public class Server {
                     Class serviceClass = Class.forName(serviceName);
                     Service service = (Service)serviceClass.newInstance();
                     int port = Integer.parseInt(args[i++]);
-                    s.addService(service, port);
+                    s.addService(service, port, tls);
                 }
             }
         }
         catch (Exception e) { // Отображаем сообщение, если чтото не в порядке.
             System.err.println("Сервер: " + e);
             System.err.println("Формат: java Server " +
-                    "[control <password> <port>] " +
+                    "[control <password> <port>] [metrics <port>] [nio <loops>] " +
+                    "[threads platform|virtual|all] [max <n>] " +
+                    "[pool <queuesize> <timeoutms>] " +
+                    "[acceptors <n>] [backlog <n>] " +
+                    "[ratelimit <persecond> <burst>] [iplimit <n>] " +
+                    "[timeout <idlems> <readms> <sessionms>] " +
+                    "[tls <keystore>|selfsigned <password>] " +
                     "[<servicename> <port> ... ]");
             System.exit(1);
         }
     }
-    // Параметры состояния сервера
-    Map services;   // Хештаблица, связывающая порты с объектами Listener
+    // Параметры состояния сервера. Прием и закрытие подключений не захватывают
+    // монитор сервера: набор подключений и хештаблица служб – параллельные
+    // коллекции, а число подключений учитывается атомарным счетчиком.
+    Map services;   // Хештаблица, связывающая порты с объектами Listener
     Set connections;  // Набор текущих подключений
-    int maxConnections;  // Лимит одновременных подключений
+    AtomicInteger active = new AtomicInteger(); // Число текущих подключений
+    volatile int maxConnections;  // Лимит одновременных подключений
     ThreadGroup threadGroup; // Группа всех наших потоков исполнения
-    PrintWriter logStream;  // Сюда мы направляем наш регистрационный вывод
+    AsyncLog logger;        // Асинхронный регистрационный журнал
+    NioEngine nio;          // Неблокирующий движок (null – классический режим)
+    volatile boolean virtualConnections; // Обслуживать ли подключения в виртуальных потоках
+    volatile boolean virtualListeners;   // Запускать ли Listener в виртуальных потоках
+    Thread keepAlive;       // Не дает JVM завершиться, пока все потоки виртуальные
+    volatile Executor executor; // Исполнитель подключений (null – поток на подключение)
+    volatile int acceptors = 1; // Число потоков приема для новых служб
+    volatile int backlog = 50;  // Длина очереди непринятых подключений
+    ClientLimiter clientLimits = new ClientLimiter(1 << 18); // Ограничения по адресам клиентов
+    Timeouts timeouts = new Timeouts(); // Тайм-ауты служб без собственных
+    volatile TimingWheel wheel; // Колесо времени для тайм-аутов (создается по требованию)
     /**
      * Это конструктор сервера Server(). Ему должны передаваться поток (stream),
      * в который направляется регистрационный вывод (возможно, null),
      * и максимальное число одновременных подключений.
      **/
     public Server(OutputStream logStream, int maxConnections) {
+        threadGroup = new ThreadGroup(Server.class.getName());
+        logger = new AsyncLog(8192, 256, 100, AsyncLog.DROP,
+                threadGroup, "Server.LogWriter");
         setLogStream(logStream);
         log("Сервер запущен");
-        threadGroup = new ThreadGroup(Server.class.getName());
         this.maxConnections = maxConnections;
-        services = new HashMap();
-        connections = new HashSet(maxConnections);
+        services = new ConcurrentHashMap();
+        connections = ConcurrentHashMap.newKeySet();
     }
     /**
      * Открытый (public) метод, устанавливающий текущий регистрационный поток.
      * Аргументу null соответствует отключение регистрации.
      **/
-    public synchronized void setLogStream(OutputStream out) {
-        if (out != null) logStream = new PrintWriter(out);
-        else logStream = null;
+    public void setLogStream(OutputStream out) {
+        logger.setOutput(out);
+    }
+    /**
+     * Задаем поведение журнала при переполнении: при true вызывающий поток
+     * ждет освобождения места, при false запись теряется (и учитывается).
+     **/
+    public void setLogBlocking(boolean block) {
+        logger.setOverflow(block ? AsyncLog.BLOCK : AsyncLog.DROP);
+    }
+    /**
+     * Записываем заданную строку в регистрационный журнал. Запись только
+     * помещается в кольцевой буфер объекта AsyncLog; время добавляется,
+     * а вывод и проталкивание выполняются его потоком-писателем.
+     **/
+    protected void log(String s) { logger.log(s); }
+    /** Записываем заданный объект в регистрационный журнал */
+    protected void log(Object o) { log(o.toString()); }
+    /**
+     * Этот метод заставляет сервер открыть новую службу.
+     * Он запускает заданный объект Service на заданном порте.
+     **/
+    public void addService(Service service, int port) throws IOException {
+        addService(service, port, acceptors);
+    }
+    /**
+     * Этот вариант addService() запускает службу с заданным числом потоков
+     * исполнения, принимающих подключения по ее порту.
+     **/
+    public void addService(Service service, int port, int acceptors)
+            throws IOException
+    {
+        addService(service, port, acceptors, null);
+    }
+    /**
+     * Этот вариант addService() запускает службу на порте с TLS: сервер
+     * выполняет рукопожатие и расшифровывает данные сам, так что служба
+     * работает с открытым текстом, как на обычном порте.
+     **/
+    public void addService(Service service, int port, TlsContext tls)
+            throws IOException
+    {
+        addService(service, port, acceptors, tls);
+    }
+    /**
+     * Самый общий вариант addService(): число потоков приема и настройки
+     * TLS (null – без TLS).
+     **/
+    public synchronized void addService(Service service, int port, int acceptors,
+                                        TlsContext tls)
+            throws IOException
+    {
+        Integer key = Integer.valueOf(port); // ключ хештаблицы
+        // Проверяем, не занят ли этот порт какойлибо службой
+        if (services.get(key) != null)
+            throw new IllegalArgumentException("Порт " + port +
+                    " уже используется.");
+        // Создаем объект Listener, который будет ожидать подключений к этому порту
+        Listener listener = new Listener(threadGroup, port, service,
+                acceptors, backlog);
+        listener.tls = tls;
+        // Сохраняем его в хештаблице
+        services.put(key, listener);
+        // Регистрируем событие
+        log("Запуск службы " + service.getClass().getName() +
+                " по порту " + port + listener.describeAcceptors() +
+                ((tls != null) ? ", TLS" : ""));
+        // Запускаем listener.
+        listener.start();
+    }
+    /**
+     * Этот метод заставляет сервер закрыть службу по заданному порту.
+     * Он не закрывает существующие подключения к этой службе, а просто
+     * приказывает серверу прекратить принимать новые подключения.
+     **/
+    public synchronized void removeService(int port) {
+        Integer key = Integer.valueOf(port); // Ключ хештаблицы
+        // Ищем в хештаблице объект Listener, соответствующий заданному порту
+        final Listener listener = (Listener) services.get(key);
+        if (listener == null) return;
+        // Просим listener остановиться
+        listener.pleaseStop();
+        // Удаляем его из хештаблицы
+        services.remove(key);
+        // И регистрируем событие.
+        log("Останов службы " + listener.service.getClass().getName() +
+                " по порту " + port);
+    }
+    /**
+     * Останавливаем сервер: закрываем все службы, как removeService(),
+     * и журнал, который выводит оставшиеся записи и завершает свой поток.
+     * Существующие подключения, как и при removeService(), дорабатывают сами.
+     **/
+    public void close() {
+        Iterator ports = new ArrayList(services.keySet()).iterator();
+        while(ports.hasNext()) removeService(((Integer) ports.next()).intValue());
+        log("Сервер остановлен");
+        logger.close();
+    }
+    /**
+     * Этот метод заменяет службу по заданному порту новым объектом Service,
+     * не закрывая прослушивающие сокеты: потоки Listener просто начинают
+     * передавать новые подключения новой службе. Подключения к прежней
+     * службе дорабатывают сами; те, что не завершились за drainMillis
+     * миллисекунд, закрываются принудительно. Ожидание выполняется отдельным
+     * потоком исполнения, так что метод возвращает управление сразу.
+     **/
+    public synchronized void replaceService(Service service, int port,
+                                            final long drainMillis) {
+        final Listener listener = (Listener) services.get(Integer.valueOf(port));
+        if (listener == null)
+            throw new IllegalArgumentException("Нет службы по порту " + port);
+        final Service old = listener.service;
+        listener.service = service;
+        log("Служба " + old.getClass().getName() + " по порту " + port +
+                " заменена службой " + service.getClass().getName());
+        Thread drainer = new Thread(threadGroup, new Runnable() {
+            public void run() { drain(listener.port, old, drainMillis); }
+        }, "Server.Drain:" + port);
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+    /**
+     * Ждем завершения подключений к прежней службе заданного порта
+     * и по истечении срока закрываем оставшиеся.
+     **/
+    void drain(int port, Service old, long drainMillis) {
+        long deadline = System.currentTimeMillis() + drainMillis;
+        for(;;) {
+            ArrayList remaining = new ArrayList();
+            Iterator conns = connections.iterator();
+            while(conns.hasNext()) {
+                Connection c = (Connection) conns.next();
+                if ((c.service == old) && (c.client.getLocalPort() == port))
+                    remaining.add(c);
+            }
+            if (remaining.isEmpty()) {
+                log("Подключения к прежней службе по порту " + port + " завершены");
+                return;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                for(int i = 0; i < remaining.size(); i++)
+                    ((Connection) remaining.get(i)).abort();
+                log("Закрыто подключений к прежней службе по порту " + port +
+                        " по истечении срока: " + remaining.size());
+                return;
+            }
+            try { Thread.sleep(Math.min(100, deadline - System.currentTimeMillis())); }
+            catch (InterruptedException e) { return; }
+        }
+    }
+    /**
+     * Фабрика виртуальных потоков исполнения или null, если JVM их не
+     * поддерживает. Виртуальные потоки появились в Java 21, поэтому мы находим
+     * их через отражение и продолжаем работать на более старых версиях.
+     **/
+    static final ThreadFactory virtualThreadFactory = findVirtualThreadFactory();
+    static ThreadFactory findVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class builderClass = Class.forName("java.lang.Thread$Builder");
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        }
+        catch (Exception e) { return null; } // Старая JVM или режим preview выключен
+    }
+    /** Поддерживает ли JVM виртуальные потоки исполнения? */
+    public static boolean virtualThreadsSupported() {
+        return virtualThreadFactory != null;
+    }
+    /** Является ли заданный поток исполнения виртуальным? */
+    public static boolean isVirtual(Thread t) {
+        if (virtualThreadFactory == null) return false;
+        try { return ((Boolean) Thread.class.getMethod("isVirtual").invoke(t)).booleanValue(); }
+        catch (Exception e) { return false; }
+    }
+    /**
+     * Создаем, но не запускаем поток исполнения. Виртуальный поток создается,
+     * если он запрошен и поддерживается; в противном случае создается обычный
+     * поток в заданной группе. Виртуальные потоки в группы не входят.
+     **/
+    public static Thread newThread(ThreadGroup group, Runnable r, String name,
+                                   boolean virtual) {
+        if (virtual && (virtualThreadFactory != null)) {
+            Thread t = virtualThreadFactory.newThread(r);
+            t.setName(name);
+            return t;
+        }
+        return new Thread(group, r, name);
+    }
+    /**
+     * Этот метод выбирает вид потоков исполнения для новых подключений
+     * и служб: platform – обычные потоки, virtual – виртуальные потоки
+     * для подключений, all – виртуальные потоки также и для Listener.
+     * Уже работающие потоки исполнения не затрагиваются.
+     **/
+    public void setThreadMode(String mode) {
+        boolean virtual;
+        if (mode.equals("platform")) virtual = false;
+        else if (mode.equals("virtual") || mode.equals("all")) virtual = true;
+        else throw new IllegalArgumentException("Неизвестный вид потоков: " + mode);
+        if (virtual && !virtualThreadsSupported())
+            throw new IllegalArgumentException(
+                    "Виртуальные потоки не поддерживаются этой JVM");
+        virtualConnections = virtual;
+        virtualListeners = mode.equals("all");
+        log("Вид потоков исполнения: " + mode);
+    }
+    /**
+     * Виртуальные потоки исполнения всегда являются демонами, поэтому если
+     * и Listener, и подключения работают в них, JVM завершилась бы сразу после
+     * выхода из main(). Этот метод запускает единственный обычный поток
+     * исполнения, который раз в секунду проверяет, остались ли у сервера службы
+     * или подключения, и завершается, когда их больше нет.
+     **/
+    synchronized void startKeepAlive() {
+        if ((keepAlive != null) && keepAlive.isAlive()) return;
+        keepAlive = new Thread(threadGroup, new Runnable() {
+            public void run() {
+                do {
+                    try { Thread.sleep(1000); }
+                    catch (InterruptedException e) { return; }
+                } while(!services.isEmpty() || !connections.isEmpty());
+            }
+        }, "Server.KeepAlive");
+        keepAlive.start();
+    }
+    /** Возвращаем текущий вид потоков исполнения в форме для setThreadMode() */
+    public String getThreadMode() {
+        if (!virtualConnections) return "platform";
+        return virtualListeners ? "all" : "virtual";
+    }
+    /**
+     * Этот метод включает неблокирующий движок с заданным числом циклов
+     * выборки (0 означает «по одному на процессор»). Службы, добавленные
+     * после вызова, обслуживаются циклами выборки, а не отдельными потоками
+     * исполнения. Уже работающие службы остаются в классическом режиме.
+     **/
+    public synchronized void enableNio(int loops) throws IOException {
+        if (nio != null) return;
+        if (loops <= 0) loops = Runtime.getRuntime().availableProcessors();
+        nio = new NioEngine(loops);
+        log("Включен движок NIO: циклов выборки " + loops);
+    }
+    /**
+     * Этот вложенный класс «слушает сеть» в собственных потоках исполнения
+     * (обычных или виртуальных, в зависимости от вида потоков). Они ожидают
+     * попыток подключиться к заданному порту (с помощью ServerSocket), и когда
+     * получают запрос на подключение, вызывают метод сервера addConnection(),
+     * чтобы принять (или отклонить) подключение. Для каждой службы Service,
+     * предоставляемой сервером Server, есть один объект Listener.
+     *
+     * Если потоков приема несколько и система поддерживает SO_REUSEPORT,
+     * каждый из них получает собственный ServerSocket на том же порту, и ядро
+     * само распределяет входящие подключения между их очередями. Иначе все
+     * потоки вызывают accept() у одного общего ServerSocket.
+     **/
+    public class Listener {
+        ServerSocket listen_socket;    // Первый (или единственный) ServerSocket
+        ServerSocket[] sockets;        // Все объекты ServerSocket этого порта
+        Thread[] threads;              // Потоки исполнения, принимающие подключения
+        ThreadGroup group;             // Группа для обычных потоков исполнения
+        int port;                      // Прослушиваемый порт
+        volatile Service service;      // Служба по этому порту
+        volatile boolean stop = false; // Признак команды остановки
+        volatile ClientLimiter limiter; // Свои ограничения службы (null – общие)
+        ServiceStats stats = new ServiceStats(); // Статистика службы
+        volatile Timeouts timeouts;    // Свои тайм-ауты службы (null – общие)
+        volatile TlsContext tls;       // Настройки TLS порта (null – без TLS)
+        /** Listener с одним потоком приема и стандартной очередью */
+        public Listener(ThreadGroup group, int port, Service service)
+                throws IOException
+        {
+            this(group, port, service, 1, 50);
+        }
+        /**
+         * Конструктор Listener запоминает группу, в которой будут созданы его
+         * потоки исполнения (если они не виртуальные). Он создает объекты
+         * ServerSocket, ожидающие подключений по заданному порту, с заданной
+         * длиной очереди. Он настраивает их так, чтобы их можно было прервать,
+         * за счет чего служба может быть удалена с сервера.
+         **/
+        public Listener(ThreadGroup group, int port, Service service,
+                        int acceptors, int backlog)
+                throws IOException
+        {
+            this.group = group;
+            this.port = port;
+            this.service = service;
+            if (acceptors < 1) acceptors = 1;
+            threads = new Thread[acceptors];
+            boolean reuse = (acceptors > 1) && reusePortSupported();
+            sockets = new ServerSocket[reuse ? acceptors : 1];
+            try {
+                for(int i = 0; i < sockets.length; i++)
+                    sockets[i] = openSocket(port, backlog, reuse);
+            }
+            catch (IOException e) {  // Закрываем то, что успели открыть
+                for(int i = 0; i < sockets.length; i++) {
+                    if (sockets[i] == null) break;
+                    try { sockets[i].close(); } catch (IOException ignore) {}
+                }
+                throw e;
+            }
+            listen_socket = sockets[0];
+        }
+        /** Создаем ServerSocket, привязанный к порту, и настраиваем его */
+        ServerSocket openSocket(int port, int backlog, boolean reuse)
+                throws IOException
+        {
+            // В режиме NIO создаем объект ServerSocket через канал, чтобы
+            // принятые им соединения тоже имели каналы, пригодные для Selector.
+            ServerSocket ss = (nio != null) ?
+                    ServerSocketChannel.open().socket() : new ServerSocket();
+            try {
+                if (reuse) ss.setOption(StandardSocketOptions.SO_REUSEPORT, Boolean.TRUE);
+                ss.bind(new InetSocketAddress(port), backlog);
+                // Задаем ненулевую паузу, чтобы accept() можно было прервать
+                ss.setSoTimeout(600000);
+            }
+            catch (IOException e) { ss.close(); throw e; }
+            return ss;
+        }
+        /** Создаем и запускаем потоки исполнения, принимающие подключения */
+        public void start() {
+            for(int i = 0; i < threads.length; i++) {
+                final ServerSocket ss = sockets[i % sockets.length];
+                String name = "Listener:" + port + ((threads.length > 1) ? "#" + i : "");
+                threads[i] = newThread(group, new Runnable() {
+                    public void run() { accept(ss); }
+                }, name, virtualListeners);
+                threads[i].start();
+                if (isVirtual(threads[i])) startKeepAlive();
+            }
+        }
+        /**
+         * Это вежливый способ сообщить Listener, что нужно прекратить
+         * прием новых подключений во всех его потоках исполнения
+         ***/
+        public void pleaseStop() {
+            this.stop = true;  // Установка флага остановки
+            for(int i = 0; i < threads.length; i++)  // Прекращение блокировки в accept().
+                if (threads[i] != null) threads[i].interrupt();
+            for(int i = 0; i < sockets.length; i++) {
+                try { sockets[i].close(); } // Прекращение ожидания новых подключений.
+                catch(IOException e) {}
+            }
+        }
+        /** Описание потоков приема для журнала и отображения состояния */
+        String describeAcceptors() {
+            if (threads.length == 1) return "";
+            return ", потоков приема " + threads.length +
+                    ((sockets.length > 1) ? " (SO_REUSEPORT)" : " (общий сокет)");
+        }
+        /**
+         * Это тело каждого потока исполнения Listener.
+         * Ожидаем запросов на подключение, принимаем их и передаем Socket
+         * методу сервера addConnection.
+         **/
+        void accept(ServerSocket ss) {
+            while(!stop) { // цикл продолжается, пока нас не попросят остановиться.
+                try {
+                    Socket client = ss.accept();
+                    ClientLimiter l = limiter;
+                    // Службу читаем заново для каждого подключения:
+                    // replaceService() может заменить ее в любой момент
+                    addConnection(client, service, (l != null) ? l : clientLimits);
+                }
+                catch (InterruptedIOException e) {}
+                catch (IOException e) { if (!stop) log(e); }
+            }
+        }
+    }
+    /**
+     * Поддерживает ли система параметр SO_REUSEPORT, позволяющий нескольким
+     * объектам ServerSocket прослушивать один и тот же порт?
+     **/
+    static boolean reusePortSupported() {
+        try {
+            ServerSocket probe = new ServerSocket();
+            try {
+                return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            }
+            finally { probe.close(); }
+        }
+        catch (IOException e) { return false; }
+    }
+    /**
+     * Это метод, вызываемый объектами Listener, когда они принимают
+     * соединение с клиентом. Он либо создает объект Connection
+     * для этого подключения и добавляет его в список имеющихся подключений,
+     * либо, если лимит подключений исчерпан, закрывает подключение.
+     * Если задан пул рабочих потоков, подключение вместо этого ставится
+     * в его очередь, и отказ последует, только если оно не дождется
+     * свободного рабочего потока за отведенное время.
+     **/
+    protected void addConnection(Socket s, Service service) {
+        addConnection(s, service, clientLimits);
+    }
+    /**
+     * Этот вариант addConnection() сначала проверяет ограничения на частоту
+     * и число подключений с адреса клиента, заданные объектом ClientLimiter.
+     * Допущенное подключение держит свое место в ограничителе до вызова
+     * endConnection() (или до отказа в обслуживании).
+     **/
+    protected void addConnection(Socket s, Service service, ClientLimiter limiter) {
+        // Служба может отказать клиенту сразу, например, если ее внешние
+        // серверы недоступны: тогда подключение не занимает ни места
+        // в ограничителях, ни объекта Connection
+        if (service instanceof AdmissionControl) {
+            String refusal = ((AdmissionControl) service).admit();
+            if (refusal != null) {
+                rejectConnection(s, refusal, refusal);
+                return;
+            }
+        }
+        int permit = limiter.admit(s.getInetAddress());
+        if (permit == ClientLimiter.RATE_EXCEEDED) {
+            rejectConnection(s, "слишком частые подключения с этого адреса");
+            return;
+        }
+        if (permit == ClientLimiter.TOO_MANY) {
+            rejectConnection(s, "слишком много подключений с этого адреса");
+            return;
+        }
+        // Подключения, принятые через канал, обслуживает движок NIO
+        boolean session = (nio != null) && (s.getChannel() != null);
+        // На порте с TLS обычное подключение оборачиваем в SSLSocket, а сеанс
+        // NIO получает свой SSLEngine. Рукопожатие выполнит поток исполнения
+        // подключения (или цикл выборки), а не поток, принимающий подключения.
+        TlsContext tls = tlsFor(s);
+        if ((tls != null) && !session) {
+            try { s = tls.wrap(s); }
+            catch (IOException ex) {
+                limiter.release(permit);
+                log(ex);
+                try { s.close(); } catch (IOException ignore) {}
+                return;
+            }
+        }
+        Executor e = executor;
+        if (!session && (e instanceof WorkerPool)) {
+            Connection c = new Connection(s, service);
+            c.holdPermit(limiter, permit);
+            ((WorkerPool) e).submit(c);
+            return;
+        }
+        // Если лимит числа подключений исчерпан, отказываем клиенту
+        if (!reserveConnection()) {
+            limiter.release(permit);
+            rejectConnection(s, "исчерпан лимит числа подключений");
+            return;
+        }
+        // В противном случае, если лимит не исчерпан,
+        // создаем процесс Connection для обработки этого подключения.
+        Connection c;
+        if (session) c = nio.newSession(s, service, tls);
+        else c = new Connection(s, service);
+        c.holdPermit(limiter, permit);
+        registerConnection(c);
+        // И запускаем процесс Connection, предоставляющий услугу
+        // (сеанс NIO вместо этого регистрируется в цикле выборки)
+        c.start();
+    }
+    /**
+     * Резервируем место для нового подключения, если лимит не исчерпан.
+     * Вместо монитора сервера используется сравнение с обменом (CAS), так что
+     * объекты Listener разных портов не ждут друг друга.
+     **/
+    boolean reserveConnection() {
+        for(;;) {
+            int n = active.get();
+            if (n >= maxConnections) return false;
+            if (active.compareAndSet(n, n + 1)) return true;
+        }
+    }
+    /**
+     * Добавляем подключение в список текущих и регистрируем это событие.
+     * Место для подключения должно быть уже учтено в счетчике active.
+     **/
+    protected void registerConnection(Connection c) {
+        Socket s = c.client;
+        Listener listener = (Listener) services.get(Integer.valueOf(s.getLocalPort()));
+        c.stats = (listener == null) ? null : listener.stats;
+        c.openedAt = c.lastIo = System.nanoTime();
+        if (c.stats != null) c.stats.opened();
+        connections.add(c);
+        // Если для службы заданы тайм-ауты, ставим подключение на учет колеса
+        Timeouts t = ((listener != null) && (listener.timeouts != null)) ?
+                listener.timeouts : timeouts;
+        if (t.any()) {
+            c.watch = t;
+            if (c instanceof Session) c.readSince = c.openedAt;
+            c.scheduleTimeoutCheck(c.openedAt);
+        }
+        log("Установлено подключение к " + s.getInetAddress().getHostAddress() +
+                ":" + s.getPort() + " по порту " + s.getLocalPort() +
+                " для службы " + c.service.getClass().getName());
+    }
+    /**
+     * Сообщаем клиенту, что его запрос отклонен, закрываем его подключение
+     * и, конечно, делаем об этом регистрационную запись.
+     **/
+    protected void rejectConnection(Socket s, String reason) {
+        rejectConnection(s, reason, "В подключении отказано; " +
+                "сервер перегружен, попытайтесь подключиться позже.");
+    }
+    /** Этот вариант посылает клиенту заданное сообщение */
+    protected void rejectConnection(Socket s, String reason, String message) {
+        try {
+            // Клиенту TLS текст без шифрования ни о чем не скажет, а запись
+            // в SSLSocket начала бы рукопожатие в потоке приема подключений
+            if (tlsFor(s) == null) {
+                PrintWriter out = new PrintWriter(s.getOutputStream());
+                out.print(message + "\n");
+                out.flush();
+            }
+            s.close();
+        } catch (IOException e) {log(e);}
+        ServiceStats stats = statsFor(s);
+        if (stats != null) stats.rejected.increment();
+        log("Подключение отклонено для " + s.getInetAddress().getHostAddress() +
+                ":" + s.getPort() + ": " + reason + ".");
+    }
+    /**
+     * Процесс Connection вызывает этот метод непосредственно перед выходом.
+     * Он удаляет заданный объект Connection из набора подключений.
+     **/
+    protected void endConnection(Connection c) {
+        if (connections.remove(c)) {
+            active.decrementAndGet();
+            if (c.stats != null)
+                c.stats.closed((System.nanoTime() - c.openedAt) / 1000);
+        }
+        TimingWheel.Timeout timer = c.timer;
+        if (timer != null) timer.cancel();
+        c.releasePermit();
+        log("Подключение к " + c.client.getInetAddress().getHostAddress() +
+                ":" + c.client.getPort() + " закрыто.");
+    }
+    /**
+     * Закрываем подключение, у которого истек тайм-аут, учитываем
+     * и регистрируем это событие. Вызывается в потоке колеса времени.
+     **/
+    void timedOut(Connection c, String reason) {
+        if (c.stats != null) c.stats.timedOut.increment();
+        log("Подключение к " + c.client.getInetAddress().getHostAddress() +
+                ":" + c.client.getPort() + " закрывается по тайм-ауту (" + reason + ")");
+        c.abort();
+    }
+    /**
+     * Колесо времени сервера; создается при первой необходимости. Монитор
+     * сервера берется только при создании, а не при каждом подключении.
+     **/
+    TimingWheel wheel() {
+        TimingWheel w = wheel;
+        if (w != null) return w;
+        synchronized(this) {
+            if (wheel == null) {
+                w = new TimingWheel(100, 512, threadGroup, "Server.TimingWheel");
+                w.log = logger;
+                wheel = w;
+            }
+            return wheel;
+        }
+    }
+    /**
+     * Задаем тайм-ауты в миллисекундах (0 – без ограничения) для службы по
+     * заданному порту или для всех служб без собственных тайм-аутов (порт 0):
+     * idle – наибольшее время без ввода-вывода в обе стороны, read –
+     * наибольшее время ожидания данных от клиента, session – наибольшая
+     * длительность подключения. Действуют для новых подключений.
+     **/
+    public synchronized void setTimeouts(int port, long idle, long read, long session) {
+        if ((idle < 0) || (read < 0) || (session < 0))
+            throw new IllegalArgumentException("Тайм-аут не может быть отрицательным");
+        Timeouts t = new Timeouts();
+        t.idle = idle;
+        t.read = read;
+        t.session = session;
+        if (port == 0) timeouts = t;
+        else {
+            Listener listener = (Listener) services.get(Integer.valueOf(port));
+            if (listener == null)
+                throw new IllegalArgumentException("Нет службы по порту " + port);
+            listener.timeouts = t;
+        }
+        log("Тайм-ауты" + ((port == 0) ? "" : " по порту " + port) + ": " + t);
+    }
+    /** Тайм-ауты подключений службы, мс (0 – без ограничения) */
+    public static class Timeouts {
+        long idle;     // Без ввода-вывода
+        long read;     // Ожидание данных от клиента
+        long session;  // Длительность подключения
+        boolean any() { return (idle > 0) || (read > 0) || (session > 0); }
+        public String toString() {
+            return "простой " + idle + " мс, чтение " + read + " мс, сеанс " +
+                    session + " мс";
+        }
+    }
+    /** Статистика службы, принявшей заданное подключение (или null) */
+    ServiceStats statsFor(Socket s) {
+        Listener listener = (Listener) services.get(Integer.valueOf(s.getLocalPort()));
+        return (listener == null) ? null : listener.stats;
+    }
+    /** Настройки TLS порта, принявшего заданное подключение (или null) */
+    TlsContext tlsFor(Socket s) {
+        Listener listener = (Listener) services.get(Integer.valueOf(s.getLocalPort()));
+        return (listener == null) ? null : listener.tls;
+    }
+    /**
+     * Задаем число потоков исполнения, принимающих подключения, и длину
+     * очереди непринятых подключений для служб, которые будут добавлены позже.
+     **/
+    public void setAcceptors(int n) {
+        if (n < 1) throw new IllegalArgumentException("Число потоков приема: " + n);
+        acceptors = n;
+    }
+    public void setBacklog(int n) {
+        if (n < 1) throw new IllegalArgumentException("Длина очереди: " + n);
+        backlog = n;
+    }
+    /**
+     * Возвращаем ограничитель подключений по адресам клиентов для службы
+     * по заданному порту. Порт 0 обозначает общий ограничитель, действующий
+     * для всех служб без собственных ограничений. Собственный ограничитель
+     * службы создается при первом обращении с копией общих ограничений.
+     **/
+    synchronized ClientLimiter limiterFor(int port) {
+        if (port == 0) return clientLimits;
+        Listener listener = (Listener) services.get(Integer.valueOf(port));
+        if (listener == null)
+            throw new IllegalArgumentException("Нет службы по порту " + port);
+        if (listener.limiter == null) listener.limiter = new ClientLimiter(clientLimits);
+        return listener.limiter;
+    }
+    /**
+     * Задаем допустимую частоту новых подключений с одного адреса клиента
+     * и запас для кратковременного ее превышения (0 снимает ограничение)
+     * для службы по заданному порту или для всех служб (порт 0).
+     **/
+    public void setClientRate(int port, double perSecond, int burst) {
+        limiterFor(port).setRate(perSecond, burst);
+        log("Частота подключений с адреса" + ((port == 0) ? "" : " по порту " + port) +
+                ": " + ((perSecond > 0) ? perSecond + " в секунду, запас " + burst :
+                "не ограничена"));
+    }
+    /**
+     * Задаем наибольшее число одновременных подключений с одного адреса
+     * клиента (0 снимает ограничение) для службы по заданному порту или для
+     * всех служб (порт 0).
+     **/
+    public void setClientConnections(int port, int max) {
+        limiterFor(port).setMaxPerClient(max);
+        log("Подключений с адреса" + ((port == 0) ? "" : " по порту " + port) +
+                ": " + ((max > 0) ? "не более " + max : "не ограничено"));
+    }
+    /**
+     * Задаем вес внешнего сервера у службы по заданному порту. Служба должна
+     * реализовать интерфейс WeightedService; вес 0 выводит сервер из работы
+     * для новых подключений, не трогая текущие.
+     **/
+    public void setBackendWeight(int port, String backend, int weight) {
+        if (weight < 0) throw new IllegalArgumentException("Вес: " + weight);
+        Listener listener = (Listener) services.get(Integer.valueOf(port));
+        if (listener == null)
+            throw new IllegalArgumentException("Нет службы по порту " + port);
+        if (!(listener.service instanceof WeightedService))
+            throw new IllegalArgumentException("Служба по порту " + port +
+                    " не распределяет подключения");
+        if (!((WeightedService) listener.service).setWeight(backend, weight))
+            throw new IllegalArgumentException("Нет сервера " + backend);
+        log("Вес сервера " + backend + " по порту " + port + ": " + weight);
+    }
+    /**
+     * Этот метод выводит текущие сеансы службы по заданному порту. Служба
+     * должна реализовать интерфейс SessionReporter.
+     **/
+    public void displaySessions(PrintWriter out, int port) {
+        Listener listener = (Listener) services.get(Integer.valueOf(port));
+        if (listener == null)
+            throw new IllegalArgumentException("Нет службы по порту " + port);
+        if (!(listener.service instanceof SessionReporter))
+            throw new IllegalArgumentException("Служба по порту " + port +
+                    " не ведет учет сеансов");
+        out.print(((SessionReporter) listener.service).sessions() + "\n");
+    }
+    /**
+     * Этот метод изменяет максимально допустимое число подключений.
+     * В режиме пула рабочих потоков он также изменяет их число.
+     **/
+    public void setMaxConnections(int max) {
+        maxConnections = max;
+        if (executor instanceof WorkerPool) ((WorkerPool) executor).resize(max);
+    }
+    /**
+     * Этот метод задает исполнитель, которому передаются подключения вместо
+     * запуска отдельного потока исполнения для каждого из них. Аргумент null
+     * восстанавливает режим «поток на подключение». Если прежним исполнителем
+     * был наш пул рабочих потоков, он завершается после обработки своей очереди.
+     **/
+    public synchronized void setExecutor(Executor e) {
+        Executor old = executor;
+        executor = e;
+        if ((old instanceof WorkerPool) && (old != e)) ((WorkerPool) old).shutdown();
+        log("Исполнитель подключений: " +
+                ((e == null) ? "поток на подключение" : e.toString()));
     }
-    /** Записываем заданную строку в регистрационный журнал */
-    protected synchronized void log(String s) {
-        if (logStream != null) {
-            logStream.println("[" + new Date() + "] " + s);
-            logStream.flush();
+    /**
+     * Переводим сервер на пул из maxConnections заранее запущенных рабочих
+     * потоков с очередью заданной длины. Подключение ждет в очереди не более
+     * queueTimeout миллисекунд.
+     **/
+    public synchronized void useWorkerPool(int queueSize, long queueTimeout) {
+        setExecutor(new WorkerPool(maxConnections, queueSize, queueTimeout));
+    }
+    /**
+     * Этот метод выводит в заданный поток информацию о статусе сервера.Он может
+     * применяться для отладки и ниже в этом примере используется службой Control.
+     **/
+    public void displayStatus(PrintWriter out) {
+        displayStatus(out, 0, null, 0, Integer.MAX_VALUE, false);
+    }
+    /**
+     * Этот вариант displayStatus() выводит только подключения к заданному
+     * порту (0 – к любому) и заданной службе (null – к любой), начиная
+     * с номера from, не больше limit штук. Подключения упорядочены по времени
+     * установления, так что страницы последовательных вызовов согласованы.
+     * Если json равно true, вывод состоит из строк JSON, по одному объекту
+     * на строку: сервер, службы, подключения и итоговая строка.
+     *
+     * Вывод строится по снимку: мы копируем сведения о службах и подключениях
+     * (без блокировок, так как коллекции параллельные) и лишь затем пишем
+     * в поток, так что медленный получатель не задерживает ни прием,
+     * ни закрытие подключений.
+     **/
+    public void displayStatus(PrintWriter out, int port, String service,
+                              int from, int limit, boolean json) {
+        StatusSnapshot snap = new StatusSnapshot(port, service);
+        if (json) snap.printJson(out, from, limit);
+        else snap.print(out, from, limit);
+    }
+    /**
+     * Неизменяемый снимок состояния сервера для displayStatus(): сведения
+     * о службах и отобранных подключениях, скопированные в момент создания.
+     **/
+    class StatusSnapshot {
+        long time = System.currentTimeMillis();
+        long now = System.nanoTime();
+        Listener[] listeners;
+        ConnectionInfo[] conns;
+        int active = Server.this.active.get();
+        StatusSnapshot(int port, String service) {
+            listeners = (Listener[]) services.values().toArray(new Listener[0]);
+            Arrays.sort(listeners, new Comparator() {
+                public int compare(Object a, Object b) {
+                    return ((Listener) a).port - ((Listener) b).port;
+                }
+            });
+            ArrayList list = new ArrayList();
+            Iterator i = connections.iterator();
+            while(i.hasNext()) {
+                Connection c = (Connection) i.next();
+                if ((port != 0) && (c.client.getLocalPort() != port)) continue;
+                if ((service != null) && !serviceMatches(c.service, service)) continue;
+                list.add(new ConnectionInfo(c));
+            }
+            conns = (ConnectionInfo[]) list.toArray(new ConnectionInfo[list.size()]);
+            Arrays.sort(conns, new Comparator() {
+                public int compare(Object a, Object b) {
+                    long d = ((ConnectionInfo) a).openedAt - ((ConnectionInfo) b).openedAt;
+                    return (d < 0) ? -1 : ((d > 0) ? 1 : 0);
+                }
+            });
+        }
+        /** Текстовый вывод, как у прежнего displayStatus() */
+        void print(PrintWriter out, int from, int limit) {
+            // Отображаем список всех предоставляемых служб
+            for(int i = 0; i < listeners.length; i++) {
+                Listener listener = listeners[i];
+                out.print("СЛУЖБА " + listener.service.getClass().getName()
+                        + " ПО ПОРТУ " + listener.port +
+                        listener.describeAcceptors().toUpperCase() + "\n");
+                ClientLimiter l = listener.limiter;
+                if (l != null) out.print("  ОГРАНИЧЕНИЯ СЛУЖБЫ: " + l.status() + "\n");
+                Timeouts t = listener.timeouts;
+                if (t != null) out.print("  ТАЙМ-АУТЫ СЛУЖБЫ: " + t.toString().toUpperCase() + "\n");
+                TlsContext tls = listener.tls;
+                if (tls != null) out.print("  " + tls.status() + "\n");
+                if (listener.service instanceof StatusReporter)
+                    out.print("  " + ((StatusReporter) listener.service).status() + "\n");
+            }
+            // Отображаем текущее ограничение на число подключений
+            out.print("ЛИМИТ ПОДКЛЮЧЕНИЙ: " + maxConnections +
+                    ", ТЕКУЩИХ: " + active + "\n");
+            if (nio != null)
+                out.print("ДВИЖОК NIO: ЦИКЛОВ ВЫБОРКИ " + nio.loops.length + "\n");
+            out.print("ПОТОКИ ИСПОЛНЕНИЯ: " + getThreadMode().toUpperCase() + "\n");
+            Executor e = executor;
+            if (e instanceof WorkerPool) ((WorkerPool) e).printStatus(out);
+            else if (e != null) out.print("ИСПОЛНИТЕЛЬ: " + e + "\n");
+            if (timeouts.any())
+                out.print("ТАЙМ-АУТЫ: " + timeouts.toString().toUpperCase() + "\n");
+            if (wheel != null) out.print("КОЛЕСО ВРЕМЕНИ: СРОКОВ " + wheel.size() + "\n");
+            if (clientLimits.enabled())
+                out.print("ОГРАНИЧЕНИЯ КЛИЕНТОВ: " + clientLimits.status() + "\n");
+            if (logger.enabled()) out.print(logger.status() + "\n");
+            // Отображаем список отобранных подключений
+            int end = end(from, limit);
+            for(int i = Math.max(from, 0); i < end; i++) {
+                ConnectionInfo c = conns[i];
+                out.print("ПОДКЛЮЧЕНИЕ К " + c.host + ":" + c.port + " ПО ПОРТУ " +
+                        c.localPort + " ДЛЯ СЛУЖБЫ " + c.service +
+                        (c.virtual ? " (ВИРТУАЛЬНЫЙ ПОТОК)" : "") + "\n");
+            }
+            if ((from > 0) || (end < conns.length))
+                out.print("ПОКАЗАНЫ ПОДКЛЮЧЕНИЯ С " + Math.max(from, 0) + " ПО " +
+                        (end - 1) + " ИЗ " + conns.length + "\n");
+        }
+        /** Вывод в формате строк JSON */
+        void printJson(PrintWriter out, int from, int limit) {
+            out.print("{\"type\":\"server\",\"time\":" + time +
+                    ",\"active\":" + active + ",\"max\":" + maxConnections +
+                    ",\"threads\":" + json(getThreadMode()) +
+                    ",\"nio_loops\":" + ((nio != null) ? nio.loops.length : 0) +
+                    ",\"timeouts\":" + ((wheel != null) ? wheel.size() : 0) +
+                    ",\"log_dropped\":" + logger.dropped() + "}\n");
+            for(int i = 0; i < listeners.length; i++) {
+                Listener listener = listeners[i];
+                ServiceStats s = listener.stats;
+                out.print("{\"type\":\"service\",\"port\":" + listener.port +
+                        ",\"service\":" + json(listener.service.getClass().getName()) +
+                        ",\"acceptors\":" + listener.threads.length +
+                        ",\"active\":" + s.active.get() +
+                        ",\"accepted\":" + s.accepted.sum() +
+                        ",\"rejected\":" + s.rejected.sum() +
+                        ",\"timed_out\":" + s.timedOut.sum() +
+                        ((listener.service instanceof StatusReporter) ? ",\"status\":" +
+                        json(((StatusReporter) listener.service).status()) : "") + "}\n");
+            }
+            int end = end(from, limit);
+            for(int i = Math.max(from, 0); i < end; i++) {
+                ConnectionInfo c = conns[i];
+                out.print("{\"type\":\"connection\",\"remote\":" +
+                        json(c.host + ":" + c.port) + ",\"port\":" + c.localPort +
+                        ",\"service\":" + json(c.service) +
+                        ",\"age_ms\":" + ((now - c.openedAt) / 1000000) +
+                        (c.watched ? ",\"idle_ms\":" + ((now - c.lastIo) / 1000000) : "") +
+                        ",\"virtual\":" + c.virtual + "}\n");
+            }
+            out.print("{\"type\":\"end\",\"matched\":" + conns.length +
+                    ",\"from\":" + Math.max(from, 0) +
+                    ",\"returned\":" + Math.max(0, end - Math.max(from, 0)) + "}\n");
+        }
+        /** Конец страницы подключений */
+        int end(int from, int limit) {
+            long end = (long) Math.max(from, 0) + Math.max(limit, 0);
+            return (int) Math.min(end, conns.length);
+        }
+    }
+    /** Сведения об одном подключении, скопированные для снимка */
+    static class ConnectionInfo {
+        String host;       // Адрес клиента
+        int port;          // Порт клиента
+        int localPort;     // Порт службы
+        String service;    // Класс службы
+        boolean virtual;   // Обслуживается виртуальным потоком?
+        long openedAt;     // Время регистрации, нс
+        long lastIo;       // Время последнего ввода-вывода, нс
+        boolean watched;   // Отмечается ли время ввода-вывода (заданы тайм-ауты)?
+        ConnectionInfo(Connection c) {
+            host = c.client.getInetAddress().getHostAddress();
+            port = c.client.getPort();
+            localPort = c.client.getLocalPort();
+            service = c.service.getClass().getName();
+            Thread t = c.thread;
+            virtual = (t != null) && isVirtual(t);
+            openedAt = c.openedAt;
+            lastIo = c.lastIo;
+            watched = (c.watch != null);
+        }
+    }
+    /** Совпадает ли служба с заданным полным или кратким именем класса? */
+    static boolean serviceMatches(Service s, String name) {
+        String full = s.getClass().getName();
+        return full.equals(name) || full.endsWith("$" + name) || full.endsWith("." + name);
+    }
+    /** Строка в кавычках JSON */
+    static String json(String s) {
+        StringBuffer b = new StringBuffer(s.length() + 2);
+        b.append('"');
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c == '"') || (c == '\\')) b.append('\\').append(c);
+            else if (c < ' ') {
+                String hex = Integer.toHexString(c);
+                b.append("\\u0000", 0, 6 - hex.length()).append(hex);
+            }
+            else b.append(c);
+        }
+        return b.append('"').toString();
+    }
+    /**
+     * Этот метод выводит в заданный поток статистику каждой службы:
+     * счетчики подключений и байтов и процентили длительности сеансов.
+     * Его использует команда stats службы Control.
+     **/
+    public void displayStats(PrintWriter out) {
+        Iterator listeners = services.values().iterator();
+        while(listeners.hasNext()) {
+            Listener listener = (Listener) listeners.next();
+            ServiceStats s = listener.stats;
+            Histogram d = s.durations;
+            out.print("СЛУЖБА " + listener.service.getClass().getName() +
+                    " ПО ПОРТУ " + listener.port + ": ПРИНЯТО " + s.accepted.sum() +
+                    ", ОТКЛОНЕНО " + s.rejected.sum() + ", ТЕКУЩИХ " + s.active.get() +
+                    ", ПО ТАЙМ-АУТУ " + s.timedOut.sum() +
+                    ", ПОЛУЧЕНО " + s.bytesIn.sum() + " БАЙТ, ОТПРАВЛЕНО " +
+                    s.bytesOut.sum() + " БАЙТ\n");
+            out.print("  ДЛИТЕЛЬНОСТЬ СЕАНСА, МКС: P50 " + d.percentile(0.50) +
+                    ", P90 " + d.percentile(0.90) + ", P99 " + d.percentile(0.99) +
+                    ", P99.9 " + d.percentile(0.999) + ", НАИБОЛЬШАЯ " + d.max() + "\n");
+        }
+        out.print("ПОТЕРЯНО ЗАПИСЕЙ ЖУРНАЛА: " + logger.dropped() + "\n");
+    }
+    /** Счетчики служб для writeMetrics(): имя метрики и ее тип */
+    static final String[][] METRICS = {
+        { "server_connections_accepted_total", "counter" },
+        { "server_connections_rejected_total", "counter" },
+        { "server_connections_active", "gauge" },
+        { "server_connections_timed_out_total", "counter" },
+        { "server_received_bytes_total", "counter" },
+        { "server_sent_bytes_total", "counter" }
+    };
+    /**
+     * Этот метод выводит ту же статистику в текстовом формате Prometheus.
+     * Каждая метрика выводится одной группой: строка # TYPE, а за ней
+     * значения всех служб. Длительность сеансов выводится как гистограмма
+     * с границами le, удваивающимися от 2^10 - 1 мкс (около 1 мс) до
+     * 2^30 - 1 мкс (около 18 минут). Значения, не большие 2^k - 1, – это
+     * ровно значения меньше 2^k, а степени двойки совпадают с границами
+     * корзин Histogram, так что накопленные числа точны.
+     **/
+    public void writeMetrics(PrintWriter out) {
+        // Снимок служб, чтобы все группы перечисляли одни и те же службы
+        Object[] listeners = services.values().toArray();
+        String[] labels = new String[listeners.length];
+        for(int i = 0; i < listeners.length; i++) {
+            Listener listener = (Listener) listeners[i];
+            labels[i] = "{service=\"" + listener.service.getClass().getName() +
+                    "\",port=\"" + listener.port + "\"";
+        }
+        for(int j = 0; j < METRICS.length; j++) {
+            out.print("# TYPE " + METRICS[j][0] + " " + METRICS[j][1] + "\n");
+            for(int i = 0; i < listeners.length; i++) {
+                ServiceStats s = ((Listener) listeners[i]).stats;
+                long value;
+                switch(j) {
+                    case 0: value = s.accepted.sum(); break;
+                    case 1: value = s.rejected.sum(); break;
+                    case 2: value = s.active.get(); break;
+                    case 3: value = s.timedOut.sum(); break;
+                    case 4: value = s.bytesIn.sum(); break;
+                    default: value = s.bytesOut.sum(); break;
+                }
+                out.print(METRICS[j][0] + labels[i] + "} " + value + "\n");
+            }
+        }
+        out.print("# TYPE server_session_duration_seconds histogram\n");
+        for(int i = 0; i < listeners.length; i++) {
+            Histogram d = ((Listener) listeners[i]).stats.durations;
+            for(int k = 10; k <= 30; k++) {
+                long bound = (1L << k) - 1;   // мкс
+                out.print("server_session_duration_seconds_bucket" + labels[i] +
+                        ",le=\"" + (bound / 1e6) + "\"} " + d.countAtMost(bound) + "\n");
+            }
+            out.print("server_session_duration_seconds_bucket" + labels[i] +
+                    ",le=\"+Inf\"} " + d.count() + "\n");
+            out.print("server_session_duration_seconds_sum" + labels[i] + "} " +
+                    (d.sum() / 1e6) + "\n");
+            out.print("server_session_duration_seconds_count" + labels[i] + "} " +
+                    d.count() + "\n");
+        }
+        out.print("# TYPE server_connections gauge\n");
+        out.print("server_connections " + active.get() + "\n");
+        out.print("# TYPE server_log_dropped_total counter\n");
+        out.print("server_log_dropped_total " + logger.dropped() + "\n");
+    }
+    /**
+     * Этот класс обрабатывает индивидуальные подключения между клиентом
+     * и службой Service, предоставляемой настоящим сервером. Поскольку каждое
+     * такое подключение обладает собственным потоком исполнения, у каждой
+     * службы может иметься несколько подключений одновременно. Вне зависимости
+     * от всех других используемых потоков исполнения, именно это делает наш
+     * сервер многопоточным. Объект Connection больше не является подклассом
+     * Thread: сеансы движка NIO (подкласс Session) тоже учитываются в наборе
+     * подключений, но собственного потока исполнения не имеют.
+     **/
+    public class Connection implements Runnable {
+        Socket client;    // Объект Socket для общения с клиентом
+        Service service; // Служба, предоставляемая клиенту
+        Thread thread;   // Поток исполнения, обслуживающий подключение
+        ClientLimiter limiter;  // Ограничитель, допустивший подключение
+        int permit = ClientLimiter.UNTRACKED; // Место подключения в нем
+        ServiceStats stats;     // Статистика службы (null – служба уже удалена)
+        long openedAt;          // Время регистрации подключения, нс
+        volatile long lastIo;   // Время последнего ввода-вывода, нс
+        volatile long readSince; // Начало текущего ожидания данных (0 – не ждем), нс
+        Timeouts watch;         // Тайм-ауты подключения (null – не следим)
+        volatile TimingWheel.Timeout timer; // Ближайшая проверка тайм-аутов
+/**
+ * Этот конструктор просто сохраняет некоторые параметры состояния.
+ * Поток исполнения, обрабатывающий подключение, создается методом start().
+ * Объекты Connection создаются потоками исполнения Listener. Эти потоки
+ * являются частью группы потоков сервера, поэтому процессы Connection
+ * также входят в эту группу
+ **/
+public Connection(Socket client, Service service) {
+    this.client = client;
+    this.service = service;
+}
+        /** Запоминаем место, выделенное подключению ограничителем */
+        void holdPermit(ClientLimiter limiter, int permit) {
+            this.limiter = limiter;
+            this.permit = permit;
+        }
+        /** Освобождаем место в ограничителе (только один раз) */
+        void releasePermit() {
+            int p = permit;
+            permit = ClientLimiter.UNTRACKED;
+            if (p >= 0) limiter.release(p);
+        }
+        /**
+         * Ставим в колесо времени проверку на момент, когда может истечь
+         * ближайший из тайм-аутов. Ввод-вывод лишь обновляет отметки времени,
+         * а срок переносится только при проверке, так что за подключением
+         * следит не больше одного срока в колесе.
+         **/
+        void scheduleTimeoutCheck(long now) {
+            Timeouts t = watch;
+            long next = Long.MAX_VALUE;
+            if (t.session > 0) next = Math.min(next, openedAt + t.session * 1000000);
+            if (t.idle > 0) next = Math.min(next, lastIo + t.idle * 1000000);
+            if (t.read > 0) {
+                long since = readSince;
+                next = Math.min(next, ((since != 0) ? since : now) + t.read * 1000000);
+            }
+            timer = wheel().schedule(new Runnable() {
+                public void run() { checkTimeouts(); }
+            }, Math.max(0, (next - now) / 1000000));
+        }
+        /** Проверяем тайм-ауты; вызывается в потоке колеса времени */
+        void checkTimeouts() {
+            if (!connections.contains(this)) return;   // Уже закрыто
+            Timeouts t = watch;
+            long now = System.nanoTime();
+            long since = readSince;
+            if ((t.session > 0) && (now - openedAt >= t.session * 1000000))
+                timedOut(this, "длительность подключения");
+            else if ((t.idle > 0) && (now - lastIo >= t.idle * 1000000))
+                timedOut(this, "простой");
+            else if ((t.read > 0) && (since != 0) && (now - since >= t.read * 1000000))
+                timedOut(this, "ожидание данных");
+            else scheduleTimeoutCheck(now);
+        }
+        /**
+         * Принудительно закрываем подключение. Служба получит исключение
+         * в ближайшей операции ввода-вывода, и поток исполнения завершится.
+         **/
+        void abort() {
+            try { client.close(); } catch (IOException e) {}
+        }
+        /**
+         * Передаем подключение исполнителю, если он задан, или создаем
+         * и запускаем для него отдельный поток исполнения.
+         **/
+        public void start() {
+            Executor e = executor;
+            if (e != null) {
+                try { e.execute(this); return; }
+                catch (RejectedExecutionException ex) {
+                    rejectConnection(client, "исполнитель не принял подключение");
+                    endConnection(this);
+                    return;
+                }
+            }
+            thread = newThread(threadGroup, this, "Server.Connection:" +
+                    client.getInetAddress().getHostAddress() +
+                    ":" + client.getPort(), virtualConnections);
+            thread.start();
+        }
+        /**
+         * Это тело любого и каждого потока исполнения Connection. Все, что оно дела
+         * ет, – это передает потоки ввода и вывода клиента методу serve() заданного
+         * объекта Service, который несет ответственность за чтение и запись
+         * в эти потоки для осуществления действительного обслуживания. Вспомним,
+         * что объект Service был передан методом Server.addService() объекту
+         * Listener, а затем через метод addConnection() этому объекту Connection,
+         * и теперь наконец используется для предоставления услуги. Обратите внимание
+         * на то, что непосредственно перед выходом этот поток исполнения всегда
+         * вызывает метод endConnection(), чтобы удалить себя из набора подключений.
+         **/
+        public void run() {
+            thread = Thread.currentThread();
+            try {
+                InputStream in = client.getInputStream();
+                OutputStream out = client.getOutputStream();
+                // Считаем байты, которыми служба обменивается с клиентом,
+                // а если заданы тайм-ауты, отмечаем и время ввода-вывода
+                ServiceStats s = stats;
+                if (watch != null) {
+                    in = new WatchedInputStream(in, (s != null) ? s.bytesIn : new LongAdder());
+                    out = new WatchedOutputStream(out, (s != null) ? s.bytesOut : new LongAdder());
+                }
+                else if (s != null) {
+                    in = new CountingInputStream(in, s.bytesIn);
+                    out = new CountingOutputStream(out, s.bytesOut);
+                }
+                service.serve(in, out);
+            }
+            catch (SSLHandshakeException e) {   // Неудачное рукопожатие TLS
+                TlsContext tls = tlsFor(client);
+                if (tls != null) tls.failed();
+                log(e);
+            }
+            catch (IOException e) {log(e);}
+            finally { endConnection(this); }
+        }
+        /** Поток ввода, отмечающий начало и конец каждого ожидания данных */
+        class WatchedInputStream extends CountingInputStream {
+            WatchedInputStream(InputStream in, LongAdder counter) { super(in, counter); }
+            public int read() throws IOException {
+                readSince = System.nanoTime();
+                try { return super.read(); }
+                finally { lastIo = System.nanoTime(); readSince = 0; }
+            }
+            public int read(byte[] b, int off, int len) throws IOException {
+                readSince = System.nanoTime();
+                try { return super.read(b, off, len); }
+                finally { lastIo = System.nanoTime(); readSince = 0; }
+            }
+        }
+        /** Поток вывода, отмечающий время каждой записи */
+        class WatchedOutputStream extends CountingOutputStream {
+            WatchedOutputStream(OutputStream out, LongAdder counter) { super(out, counter); }
+            public void write(int b) throws IOException {
+                super.write(b);
+                lastIo = System.nanoTime();
+            }
+            public void write(byte[] b, int off, int len) throws IOException {
+                super.write(b, off, len);
+                lastIo = System.nanoTime();
+            }
+        }
+    }
+    /**
+     * Статистика одной службы (одного порта): принятые, отклоненные и текущие
+     * подключения, байты, полученные от клиентов и отправленные им, и
+     * распределение длительности сеансов в микросекундах. Счетчики – объекты
+     * LongAdder, поэтому их обновление из многих потоков почти ничего не стоит.
+     **/
+    public static class ServiceStats {
+        final LongAdder accepted = new LongAdder(); // Принято подключений
+        final LongAdder rejected = new LongAdder(); // Отклонено подключений
+        final AtomicInteger active = new AtomicInteger(); // Текущих подключений
+        final LongAdder bytesIn = new LongAdder();  // Получено от клиентов
+        final LongAdder bytesOut = new LongAdder(); // Отправлено клиентам
+        final Histogram durations = new Histogram(); // Длительность сеансов, мкс
+        final LongAdder timedOut = new LongAdder(); // Закрыто по тайм-ауту
+        void opened() {
+            accepted.increment();
+            active.incrementAndGet();
+        }
+        void closed(long micros) {
+            active.decrementAndGet();
+            durations.record(micros);
+        }
+    }
+    /** Поток ввода, подсчитывающий прочитанные из него байты */
+    public static class CountingInputStream extends FilterInputStream {
+        LongAdder counter;
+        public CountingInputStream(InputStream in, LongAdder counter) {
+            super(in);
+            this.counter = counter;
+        }
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) counter.increment();
+            return b;
+        }
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) counter.add(n);
+            return n;
+        }
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            if (skipped > 0) counter.add(skipped);
+            return skipped;
+        }
+    }
+    /**
+     * Поток вывода, подсчитывающий записанные в него байты. В отличие от
+     * FilterOutputStream, массивы передаются дальше целиком, а не по байту.
+     **/
+    public static class CountingOutputStream extends FilterOutputStream {
+        LongAdder counter;
+        public CountingOutputStream(OutputStream out, LongAdder counter) {
+            super(out);
+            this.counter = counter;
+        }
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.increment();
+        }
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            counter.add(len);
+        }
+    }
+    /**
+     * Здесь описан интерфейс Service, с которым мы так часто встречались.
+     * Он определяет только один метод, который вызывается для предоставления
+     * услуги. Методу serve() передаются поток ввода и поток вывода,
+     * связанные с клиентом. Он может делать с ними все, что угодно,
+     * только перед выходом должен закрыть их.
+     *
+     * Все соединения с этой службой по одному порту совместно используют один
+     * объект Service. Таким образом, любое локальное состояние индивидуального
+     * подключения должно храниться в локальных переменных метода serve().
+     * Состояние, характеризующее все подключения по данному порту, должно
+     * храниться в переменных экземпляра класса Service. Если одна служба Service
+     * запущена на нескольких портах, обычно будут иметься несколько экземпляров
+     * Service, по одному на каждый порт. Данные, относящиеся ко всем
+     * подключениям на всех портах, должны храниться в статических переменных.
+     *
+     * Обратите внимание на то, что если экземпляры этого интерфейса будут
+     * динамически создаваться методом main() класса Server, в их реализации
+     * должен быть включен конструктор без аргументов.
+     **/
+    public interface Service {
+        public void serve(InputStream in, OutputStream out) throws IOException;
+    }
+    /**
+     * Служба может дополнительно реализовать этот интерфейс, чтобы добавить
+     * собственные сведения (например, о своих пулах или внешних серверах)
+     * к выводу displayStatus(). Метод status() вызывается при каждом выводе
+     * состояния и должен быть быстрым и не блокироваться.
+     **/
+    public interface StatusReporter {
+        public String status();
+    }
+    /**
+     * Служба, распределяющая подключения между несколькими внешними
+     * серверами (например, ProxyServer.Proxy), реализует этот интерфейс,
+     * чтобы веса серверов можно было менять на ходу командой weight службы
+     * Control. Метод возвращает false, если сервера с таким именем нет.
+     **/
+    public interface WeightedService {
+        public boolean setWeight(String backend, int weight);
+    }
+    /**
+     * Служба, которая ведет учет своих текущих сеансов (например,
+     * ProxyServer.Proxy), реализует этот интерфейс, чтобы их список можно
+     * было получить на ходу командой sessions службы Control. Как и status(),
+     * метод должен быть быстрым и не блокироваться.
+     **/
+    public interface SessionReporter {
+        public String sessions();
+    }
+    /**
+     * Служба может реализовать этот интерфейс, чтобы отказывать клиентам
+     * еще до создания объекта Connection (например, ProxyServer.Proxy, когда
+     * все его внешние серверы недоступны). Метод admit() вызывается в потоке
+     * приема для каждого нового подключения и потому должен быть быстрым;
+     * он возвращает null, если подключение допущено, или сообщение, которое
+     * посылается клиенту перед закрытием подключения.
+     **/
+    public interface AdmissionControl {
+        public String admit();
+    }
+    /**
+     * Пул заранее запущенных рабочих потоков исполнения с ограниченной
+     * очередью подключений. Когда все рабочие потоки заняты, подключение
+     * ждет в очереди; если очередь заполнена, поток Listener ждет места в ней
+     * (а новые клиенты тем временем накапливаются в очереди ОС). Клиенту
+     * отказывают, только если с момента приема прошло больше queueTimeout
+     * миллисекунд, так что кратковременные всплески нагрузки не превращаются
+     * в ошибки. Длина очереди, время ожидания и число отказов отображаются
+     * методом displayStatus().
+     **/
+    public class WorkerPool implements Executor {
+        ThreadPoolExecutor pool;   // Рабочие потоки и их очередь
+        int queueSize;             // Длина очереди
+        long queueTimeout;         // Предельное время ожидания в очереди, мс
+        AtomicLong admitted = new AtomicLong();  // Дождавшиеся рабочего потока
+        AtomicLong rejected = new AtomicLong();  // Не дождавшиеся
+        AtomicLong waitTotal = new AtomicLong(); // Суммарное время ожидания, нс
+        AtomicLong waitMax = new AtomicLong();   // Наибольшее время ожидания, нс
+        public WorkerPool(int workers, int queueSize, long queueTimeout) {
+            this.queueSize = queueSize;
+            this.queueTimeout = queueTimeout;
+            ThreadFactory factory = new ThreadFactory() {
+                int n = 0;
+                public synchronized Thread newThread(Runnable r) {
+                    return Server.newThread(threadGroup, r, "Server.Worker:" + n++,
+                            virtualConnections);
+                }
+            };
+            // Если очередь заполнена, ждем места в ней до истечения срока
+            // ожидания подключения, и лишь затем отказываем. Прочим задачам
+            // (execute()) срок не задан, и им отказываем сразу.
+            RejectedExecutionHandler waitForRoom = new RejectedExecutionHandler() {
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                    if (!(r instanceof Admission)) throw new RejectedExecutionException();
+                    long remaining = ((Admission) r).deadline - System.nanoTime();
+                    try {
+                        if ((remaining > 0) && !e.isShutdown() &&
+                                e.getQueue().offer(r, remaining, TimeUnit.NANOSECONDS))
+                            return;
+                    }
+                    catch (InterruptedException ex) {}
+                    throw new RejectedExecutionException();
+                }
+            };
+            pool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue(queueSize), factory, waitForRoom);
+            pool.prestartAllCoreThreads();
+            // Подключения, чей срок истек, пока все рабочие потоки заняты,
+            // не должны ждать освобождения потока только ради отказа.
+            Thread reaper = new Thread(threadGroup, new Runnable() {
+                public void run() { reapExpired(); }
+            }, "Server.QueueReaper");
+            reaper.setDaemon(true);
+            reaper.start();
+        }
+        /**
+         * Тело потока, отказывающего подключениям с истекшим сроком ожидания.
+         * Очередь упорядочена по времени приема, поэтому достаточно проверять
+         * ее начало до первого подключения, чей срок еще не истек. Прочие
+         * задачи (execute()) пропускаются. Поток завершается вместе с пулом.
+         **/
+        void reapExpired() {
+            long period = Math.max(10, Math.min(queueTimeout / 4, 100));
+            while(!pool.isTerminated()) {
+                try { Thread.sleep(period); }
+                catch (InterruptedException e) { return; }
+                BlockingQueue queue = pool.getQueue();
+                for(Iterator i = queue.iterator(); i.hasNext(); ) {
+                    Object task = i.next();
+                    if (!(task instanceof Admission)) continue;
+                    Admission a = (Admission) task;
+                    if (System.nanoTime() - a.deadline <= 0) break;
+                    if (queue.remove(a)) a.reject();
+                }
+            }
+        }
+        /**
+         * Исполняем произвольную задачу в одном из рабочих потоков. Если
+         * очередь заполнена, задача не ждет, а сразу получает отказ
+         * (RejectedExecutionException).
+         **/
+        public void execute(Runnable task) { pool.execute(task); }
+        /**
+         * Ставим подключение в очередь. Вызывающий поток исполнения может
+         * быть заблокирован, пока не освободится место, но не дольше
+         * срока ожидания подключения.
+         **/
+        public void submit(Connection c) {
+            Admission a = new Admission(c);
+            try { pool.execute(a); }
+            catch (RejectedExecutionException e) { a.reject(); }
+        }
+        /** Задача, которая ждет в очереди рабочего потока для подключения */
+        class Admission implements Runnable {
+            Connection connection;
+            long queuedAt = System.nanoTime(); // Когда подключение принято
+            long deadline = queuedAt + TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+            Admission(Connection c) { connection = c; }
+            /** Рабочий поток освободился: обслуживаем клиента, если он дождался */
+            public void run() {
+                if (System.nanoTime() - deadline > 0) { reject(); return; }
+                recordWait();
+                admitted.incrementAndGet();
+                active.incrementAndGet(); // Число подключений ограничено пулом
+                registerConnection(connection);
+                connection.run();
+            }
+            void reject() {
+                recordWait();
+                rejected.incrementAndGet();
+                connection.releasePermit();
+                rejectConnection(connection.client, "подключение ожидало в очереди " +
+                        "дольше " + queueTimeout + " мс");
+            }
+            void recordWait() {
+                long waited = System.nanoTime() - queuedAt;
+                waitTotal.addAndGet(waited);
+                long max;
+                while(waited > (max = waitMax.get()) && !waitMax.compareAndSet(max, waited));
+            }
+        }
+        /** Изменяем число рабочих потоков */
+        public void resize(int workers) {
+            if (workers > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(workers);
+                pool.setCorePoolSize(workers);
+            }
+            else {
+                pool.setCorePoolSize(workers);
+                pool.setMaximumPoolSize(workers);
+            }
+            pool.prestartAllCoreThreads();
+        }
+        /** Завершаем пул после обработки уже поставленных в очередь подключений */
+        public void shutdown() { pool.shutdown(); }
+        /** Выводим состояние пула для displayStatus() */
+        public void printStatus(PrintWriter out) {
+            long waits = admitted.get() + rejected.get();
+            out.print("ПУЛ ПОТОКОВ: РАБОЧИХ " + pool.getPoolSize() +
+                    ", ЗАНЯТО " + pool.getActiveCount() +
+                    ", В ОЧЕРЕДИ " + pool.getQueue().size() + " ИЗ " + queueSize +
+                    ", ПРЕДЕЛ ОЖИДАНИЯ " + queueTimeout + " МС\n");
+            out.print("ОЖИДАНИЕ В ОЧЕРЕДИ: СРЕДНЕЕ " +
+                    ((waits == 0) ? 0 : waitTotal.get() / waits / 1000000) +
+                    " МС, НАИБОЛЬШЕЕ " + (waitMax.get() / 1000000) +
+                    " МС; ПРИНЯТО " + admitted.get() + ", ОТКАЗАНО " + rejected.get() + "\n");
+        }
+        public String toString() {
+            return "пул из " + pool.getCorePoolSize() + " потоков, очередь " +
+                    queueSize + ", ожидание до " + queueTimeout + " мс";
+        }
+    }
+    /**
+     * Это неблокирующий аналог интерфейса Service, используемый движком NIO.
+     * Вместо потоков ввода и вывода служба получает обратные вызовы от цикла
+     * выборки: open() при подключении клиента, read() при поступлении данных,
+     * eof() при получении от клиента признака конца потока и close() при
+     * окончательном закрытии сеанса. Буфер, передаваемый методу read(), уже
+     * подготовлен для чтения, но принадлежит циклу выборки, поэтому данные
+     * надо обработать или скопировать до возврата из метода.
+     *
+     * Все вызовы для одного сеанса происходят в одном потоке исполнения, так что
+     * состояние сеанса можно хранить в его поле attachment без синхронизации.
+     * Методы не должны блокироваться: пока один из них исполняется, ждут все
+     * остальные сеансы этого цикла. Служба может реализовать и Service,
+     * и NonBlockingService; тогда в классическом режиме используется serve(),
+     * а в режиме NIO – обратные вызовы. Службы, реализующие только Service,
+     * работают в режиме NIO через адаптер BlockingAdapter без изменений.
+     **/
+    public interface NonBlockingService {
+        public void open(Session s) throws IOException;
+        public void read(Session s, ByteBuffer data) throws IOException;
+        public void eof(Session s) throws IOException;
+        public void close(Session s);
+    }
+    /**
+     * Объект, зарегистрированный в цикле выборки, получает через этот интерфейс
+     * уведомления о готовности своего канала, а также об исключениях,
+     * возникших при их обработке.
+     **/
+    public interface ChannelHandler {
+        public void ready(SelectionKey key) throws IOException;
+        public void failed(Exception e);
+    }
+    /**
+     * Неблокирующий движок сервера. Он содержит несколько циклов выборки
+     * (EventLoop), между которыми по кругу распределяются новые сеансы.
+     * Каждый цикл – это один поток исполнения со своим объектом Selector,
+     * способный обслуживать десятки тысяч мало активных подключений.
+     **/
+    public class NioEngine {
+        EventLoop[] loops;                           // Циклы выборки
+        AtomicInteger next = new AtomicInteger();    // Счетчик для выбора по кругу
+        BlockingAdapter adapter = new BlockingAdapter(); // Для обычных служб
+        /** Создаем и запускаем заданное число циклов выборки */
+        public NioEngine(int n) throws IOException {
+            loops = new EventLoop[n];
+            for(int i = 0; i < n; i++) {
+                loops[i] = new EventLoop("Server.EventLoop:" + i);
+                loops[i].start();
+            }
+        }
+        /** Выбираем очередной цикл выборки по кругу */
+        public EventLoop nextLoop() {
+            return loops[(next.getAndIncrement() & 0x7fffffff) % loops.length];
+        }
+        /**
+         * Создаем сеанс для принятого подключения. Службы, не умеющие работать
+         * без блокировки, получают адаптер. Сеанс начнет работу после вызова
+         * метода start().
+         **/
+        public Session newSession(Socket s, Service service) {
+            return newSession(s, service, null);
+        }
+        /** Этот вариант создает сеанс с TLS, если tls не равно null */
+        public Session newSession(Socket s, Service service, TlsContext tls) {
+            NonBlockingService handler;
+            if (service instanceof NonBlockingService)
+                handler = (NonBlockingService) service;
+            else handler = adapter;
+            if (tls != null) return new TlsSession(s, service, handler, nextLoop(), tls);
+            return new Session(s, service, handler, nextLoop());
+        }
+    }
+    /**
+     * Цикл выборки: поток исполнения, который ожидает готовности каналов
+     * в своем объекте Selector и передает уведомления их обработчикам.
+     * Другие потоки исполнения не трогают каналы цикла напрямую, а передают
+     * ему задачи через метод execute(). Все сеансы цикла совместно используют
+     * один прямой (direct) буфер для чтения.
+     **/
+    public class EventLoop extends Thread {
+        static final int READ_BUFFER_SIZE = 16384;
+        Selector selector;                 // Селектор этого цикла
+        ConcurrentLinkedQueue tasks = new ConcurrentLinkedQueue(); // Задачи от других потоков
+        AtomicBoolean woken = new AtomicBoolean(); // Вызван ли уже wakeup()
+        ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        ByteBuffer plainBuffer;            // Для расшифровки TLS (создается по требованию)
+        public EventLoop(String name) throws IOException {
+            super(threadGroup, name);
+            selector = Selector.open();
+        }
+        /** Исполняется ли вызывающий код в потоке этого цикла? */
+        public boolean inLoop() { return Thread.currentThread() == this; }
+        /**
+         * Передаем задачу циклу выборки. Селектор будится только если он еще
+         * не был разбужен, так что поток задач не порождает лишних вызовов.
+         **/
+        public void execute(Runnable task) {
+            tasks.add(task);
+            if (!inLoop() && woken.compareAndSet(false, true)) selector.wakeup();
+        }
+        /** Тело цикла: ждем готовности каналов, выполняем задачи и уведомления */
+        public void run() {
+            for(;;) {
+                try {
+                    selector.select();
+                    woken.set(false);
+                    Runnable task;
+                    while((task = (Runnable) tasks.poll()) != null) {
+                        try { task.run(); }
+                        catch (RuntimeException e) { log(e); }
+                    }
+                    Iterator keys = selector.selectedKeys().iterator();
+                    while(keys.hasNext()) {
+                        SelectionKey key = (SelectionKey) keys.next();
+                        keys.remove();
+                        ChannelHandler h = (ChannelHandler) key.attachment();
+                        try { if (key.isValid()) h.ready(key); }
+                        catch (Exception e) { h.failed(e); }
+                    }
+                }
+                catch (IOException e) { log(e); }
+            }
+        }
+    }
+    /**
+     * Сеанс движка NIO: подключение, обслуживаемое циклом выборки без
+     * собственного потока исполнения. Как подкласс Connection он учитывается
+     * в наборе подключений и в лимите их числа. Метод write() можно вызывать
+     * из любого потока исполнения: данные, которые не удалось сразу отправить,
+     * ставятся в очередь и досылаются, когда канал станет доступен для записи.
+     * Метод close() закрывает сеанс после отправки всей очереди, а метод
+     * shutdownOutput() после ее отправки закрывает лишь передающую сторону.
+     **/
+    public class Session extends Connection implements ChannelHandler {
+        SocketChannel channel;      // Канал клиента
+        NonBlockingService handler; // Кто обрабатывает события сеанса
+        EventLoop loop;             // Цикл выборки, которому принадлежит сеанс
+        SelectionKey key;           // Регистрация канала в селекторе
+        public Object attachment;   // Состояние сеанса, принадлежащее службе
+        LinkedList outbound = new LinkedList(); // Неотправленные буферы
+        int pending;                // Число байтов в очереди outbound
+        boolean closing;            // Закрыть, когда очередь опустеет
+        boolean closed;             // Сеанс уже закрыт
+        boolean readsSuspended;     // Чтение приостановлено службой
+        boolean inputShutdown;      // Клиент прислал EOF
+        boolean outputShutdown;     // Передать клиенту EOF, когда очередь опустеет
+        boolean eofSent;            // EOF клиенту уже передан
+        Runnable drainTask;         // Выполнить, когда очередь опустеет
+        // Вместо монитора сеанса используем явную блокировку: ожидание в
+        // awaitDrain() не должно «пришпиливать» виртуальный поток исполнения
+        // к его несущему потоку.
+        ReentrantLock lock = new ReentrantLock();
+        Condition drained = lock.newCondition(); // Очередь сократилась
+        public Session(Socket client, Service service,
+                       NonBlockingService handler, EventLoop loop) {
+            super(client, service);
+            this.channel = client.getChannel();
+            this.handler = handler;
+            this.loop = loop;
+        }
+        /** Вместо запуска потока исполнения регистрируем канал в цикле */
+        public void start() {
+            loop.execute(new Runnable() {
+                public void run() {
+                    try {
+                        channel.configureBlocking(false);
+                        key = channel.register(loop.selector,
+                                SelectionKey.OP_READ, Session.this);
+                        handler.open(Session.this);
+                    }
+                    catch (Exception e) { failed(e); }
+                }
+            });
+        }
+        /** Канал готов: досылаем очередь и читаем в общий буфер цикла */
+        public void ready(SelectionKey k) throws IOException {
+            if (k.isWritable()) flushOutbound();
+            if (k.isValid() && k.isReadable()) {
+                ByteBuffer buffer = loop.readBuffer;
+                buffer.clear();
+                int n = channel.read(buffer);
+                if (n < 0) {   // Клиент закрыл свою сторону соединения
+                    inputShutdown = true;
+                    updateInterest();
+                    handler.eof(this);
+                }
+                else if (n > 0) {
+                    if (stats != null) stats.bytesIn.add(n);
+                    if (watch != null) lastIo = readSince = System.nanoTime();
+                    buffer.flip();
+                    handler.read(this, buffer);
+                }
+            }
+        }
+        /** Учитываем байты, отправленные клиенту */
+        void sent(int n) {
+            if (stats != null) stats.bytesOut.add(n);
+            if ((watch != null) && (n > 0)) lastIo = System.nanoTime();
+        }
+        /** Ошибка ввода-вывода или исключение в службе закрывают сеанс */
+        public void failed(Exception e) {
+            if (!closed) log(e);
+            closeNow();
+        }
+        /** Отправляем содержимое заданного буфера клиенту */
+        public void write(byte[] data, int off, int len) throws IOException {
+            write(ByteBuffer.wrap(data, off, len));
+        }
+        /**
+         * Отправляем оставшееся содержимое буфера клиенту. В потоке цикла мы
+         * сразу пишем в канал и ставим в очередь лишь то, что не поместилось.
+         * Из других потоков исполнения данные копируются в очередь, а запись
+         * выполняет цикл. Сам буфер после возврата можно использовать повторно.
+         **/
+        public void write(ByteBuffer data) throws IOException {
+            boolean schedule = false;
+            lock.lock();
+            try {
+                if (closed || closing || outputShutdown)
+                    throw new IOException("Сеанс закрыт");
+                schedule = outbound.isEmpty();
+                transmit(data);
+                schedule = schedule && !outbound.isEmpty();
+            }
+            finally { lock.unlock(); }
+            if (schedule) interestChanged();
+        }
+        /**
+         * Пишем буфер в канал или ставим его копию в очередь; вызывается
+         * под блокировкой lock.
+         **/
+        void transmit(ByteBuffer data) throws IOException {
+            if (loop.inLoop() && outbound.isEmpty()) sent(channel.write(data));
+            if (!data.hasRemaining()) return;
+            ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+            copy.put(data);
+            copy.flip();
+            outbound.add(copy);
+            pending += copy.remaining();
+        }
+        /**
+         * Ставим в очередь отправки часть файла (не больше Integer.MAX_VALUE
+         * байтов). Цикл передаст ее методом FileChannel.transferTo(), то есть
+         * ядро отправит данные из кэша файловой системы прямо в сокет
+         * (sendfile), не копируя их в память программы. Канал файла нельзя
+         * закрывать, пока часть не отправлена (см. awaitDrain()).
+         **/
+        public void sendFile(FileChannel file, long position, int count)
+                throws IOException {
+            if (count <= 0) return;
+            boolean schedule;
+            lock.lock();
+            try {
+                if (closed || closing || outputShutdown)
+                    throw new IOException("Сеанс закрыт");
+                schedule = outbound.isEmpty();
+                outbound.add(new FileRegion(file, position, count));
+                pending += count;
+            }
+            finally { lock.unlock(); }
+            if (schedule) interestChanged();
+        }
+        /** Часть файла в очереди отправки; доступ под блокировкой lock */
+        class FileRegion {
+            final FileChannel file;
+            long position;
+            int remaining;
+            FileRegion(FileChannel file, long position, int count) {
+                this.file = file;
+                this.position = position;
+                this.remaining = count;
+            }
+            /** Передаем сколько примет сокет; true, если часть отправлена вся */
+            boolean send() throws IOException {
+                while(remaining > 0) {
+                    int n = (int) file.transferTo(position, remaining, channel);
+                    if (n == 0) {
+                        // Файл мог укоротиться: тогда данных не будет никогда
+                        if (position >= file.size())
+                            throw new EOFException("Файл укоротился при отправке");
+                        return false;           // Сокет заполнен, ждем OP_WRITE
+                    }
+                    sent(n);
+                    position += n;
+                    remaining -= n;
+                    pending -= n;
+                }
+                return true;
+            }
+        }
+        /** Число байтов, ожидающих отправки */
+        public int pending() {
+            lock.lock();
+            try { return pending; } finally { lock.unlock(); }
+        }
+        /**
+         * Блокируем вызывающий поток исполнения, пока в очереди не останется
+         * не более limit байтов. Используется блокирующими писателями для
+         * создания обратного давления на медленного клиента.
+         **/
+        public void awaitDrain(int limit) throws IOException {
+            lock.lock();
+            try {
+                while((pending > limit) && !closed) {
+                    try { drained.await(); }
+                    catch (InterruptedException e) { throw new InterruptedIOException(); }
+                }
+                if (closed) throw new IOException("Сеанс закрыт");
+            }
+            finally { lock.unlock(); }
+        }
+        /** Досылаем очередь; вызывается только в потоке цикла */
+        void flushOutbound() throws IOException {
+            Runnable task = null;
+            boolean empty;
+            lock.lock();
+            try {
+                while(!outbound.isEmpty()) {
+                    Object first = outbound.getFirst();
+                    if (first instanceof FileRegion) {
+                        if (!((FileRegion) first).send()) break;
+                        outbound.removeFirst();
+                        continue;
+                    }
+                    ByteBuffer b = (ByteBuffer) first;
+                    sent(channel.write(b));
+                    if (b.hasRemaining()) break;
+                    outbound.removeFirst();
+                    pending -= b.capacity();
+                }
+                drained.signalAll();
+                empty = outbound.isEmpty();
+                if (empty) { task = drainTask; drainTask = null; }
+            }
+            finally { lock.unlock(); }
+            updateInterest();
+            if (empty && outputShutdown && !eofSent && !closed) {
+                eofSent = true;
+                channel.shutdownOutput();
+            }
+            if (task != null) task.run();
+            if (closing && empty) closeNow();
+        }
+        /**
+         * Выполняем задачу, как только очередь отправки опустеет (сразу же,
+         * если она пуста). Вызывается только в потоке цикла; задача тоже
+         * выполняется в нем. Так служба, пересылающая данные от другого
+         * источника, может приостановить чтение из него, пока клиент не примет
+         * уже отправленное.
+         **/
+        public void onDrained(Runnable task) {
+            lock.lock();
+            try {
+                if (!outbound.isEmpty()) { drainTask = task; return; }
+            }
+            finally { lock.unlock(); }
+            task.run();
+        }
+        /**
+         * Закрываем передающую сторону подключения (клиент получит EOF) после
+         * отправки очереди; принимать данные от клиента сеанс продолжает.
+         **/
+        public void shutdownOutput() {
+            lock.lock();
+            try {
+                if (closing || closed || outputShutdown) return;
+                outputShutdown = true;
+            }
+            finally { lock.unlock(); }
+            if (loop.inLoop()) {
+                try { flushOutbound(); } catch (IOException e) { failed(e); }
+            }
+            else interestChanged();
+        }
+        /** Приостанавливаем чтение (например, пока потребитель не догонит) */
+        public void suspendReads() { readsSuspended = true; interestChanged(); }
+        /** Возобновляем чтение */
+        public void resumeReads() { readsSuspended = false; interestChanged(); }
+        /** Просим цикл пересчитать набор интересующих нас событий */
+        void interestChanged() {
+            if (loop.inLoop()) updateInterest();
+            else loop.execute(new Runnable() {
+                public void run() {
+                    try { flushOutbound(); } catch (IOException e) { failed(e); }
+                }
+            });
+        }
+        /** Пересчитываем интересующие события; только в потоке цикла */
+        void updateInterest() {
+            if ((key == null) || !key.isValid()) return;
+            int ops = 0;
+            if (!readsSuspended && !inputShutdown) ops |= SelectionKey.OP_READ;
+            lock.lock();
+            try { if (!outbound.isEmpty()) ops |= SelectionKey.OP_WRITE; }
+            finally { lock.unlock(); }
+            key.interestOps(ops);
+        }
+        /** Закрываем сеанс после отправки всех данных из очереди */
+        public void close() {
+            lock.lock();
+            try {
+                if (closing || closed) return;
+                closing = true;
+            }
+            finally { lock.unlock(); }
+            if (loop.inLoop()) {
+                try { flushOutbound(); } catch (IOException e) { failed(e); }
+            }
+            else interestChanged();
+        }
+        /** Принудительно закрываем сеанс в потоке его цикла */
+        void abort() {
+            loop.execute(new Runnable() {
+                public void run() { closeNow(); }
+            });
+        }
+        /** Немедленно закрываем канал и удаляем сеанс из набора подключений */
+        void closeNow() {
+            lock.lock();
+            try {
+                if (closed) return;
+                closed = true;
+                outbound.clear();
+                pending = 0;
+                drained.signalAll();
+            }
+            finally { lock.unlock(); }
+            if (key != null) key.cancel();
+            try { channel.close(); } catch (IOException e) {}
+            try { handler.close(this); }
+            finally { endConnection(this); }
         }
-    }
-    /** Записываем заданный объект в регистрационный журнал */
-    protected void log(Object o) { log(o.toString()); }
-    /**
-     * Этот метод заставляет сервер открыть новую службу.
-     * Он запускает заданный объект Service на заданном порте.
-     **/
-    public synchronized void addService(Service service, int port)
-            throws IOException
-    {
-        Integer key = new Integer(port); // ключ хештаблицы
-        // Проверяем, не занят ли этот порт какойлибо службой
-        if (services.get(key) != null)
-            throw new IllegalArgumentException("Порт " + port +
-                    " уже используется.");
-        // Создаем объект Listener, который будет ожидать подключений к этому порту
-        Listener listener = new Listener(threadGroup, port, service);
-        // Сохраняем его в хештаблице
-        services.put(key, listener);
-        // Регистрируем событие
-        log("Запуск службы " + service.getClass().getName() +
-                " по порту " + port);
-        // Запускаем listener.
-        listener.start();
-    }
-    /**
-     * Этот метод заставляет сервер закрыть службу по заданному порту.
-     * Он не закрывает существующие подключения к этой службе, а просто
-     * приказывает серверу прекратить принимать новые подключения.
-     **/
-    public synchronized void removeService(int port) {
-        Integer key = new Integer(port); // Ключ хештаблицы
-        // Ищем в хештаблице объект Listener, соответствующий заданному порту
-        final Listener listener = (Listener) services.get(key);
-        if (listener == null) return;
-        // Просим listener остановиться
-        listener.pleaseStop();
-        // Удаляем его из хештаблицы
-        services.remove(key);
-        // И регистрируем событие.
-        log("Останов службы " + listener.service.getClass().getName() +
-                " по порту " + port);
     }
     /**
-     * Этот вложенный подкласс класса Thread «слушает сеть». Он ожидает
-     * попыток подключиться к заданному порту (с помощью ServerSocket), и когда
-     * получает запрос на подключение, вызывает метод сервера addConnection(),
-     * чтобы принять (или отклонить) подключение. Для каждой службы Service,
-     * предоставляемой сервером Server, есть один объект Listener.
+     * Сеанс движка NIO на порте с TLS. Прочитанное из канала сначала
+     * расшифровывает объект SSLEngine, и лишь открытый текст передается
+     * службе; записанное службой шифруется и дальше идет через обычную
+     * очередь отправки сеанса. Рукопожатие выполняет цикл выборки, а служба
+     * получает вызов open() только после его завершения, так что она работает
+     * с сеансом TLS так же, как с обычным. Служебные задачи рукопожатия
+     * (проверка подписей и т. п.) тоже выполняются в цикле: они короткие,
+     * а при возобновлении сеанса их почти нет.
      **/
-    public class Listener extends Thread {
-        ServerSocket listen_socket;    // Объект ServerSocket, ожидающий подключений
-        int port;                      // Прослушиваемый порт
-        Service service;               // Служба по этому порту
-        volatile boolean stop = false; // Признак команды остановки
+    public class TlsSession extends Session {
+        final TlsContext tls;
+        final SSLEngine engine;
+        ByteBuffer netIn;           // Принятые, но еще не расшифрованные данные
+        ByteBuffer netOut;          // Для шифрования; только под блокировкой lock
+        boolean opened;             // Рукопожатие завершено, служба открыта
+        long handshakeStarted;      // Для учета возобновленных сеансов
+        public TlsSession(Socket client, Service service, NonBlockingService handler,
+                          EventLoop loop, TlsContext tls) {
+            super(client, service, handler, loop);
+            this.tls = tls;
+            engine = tls.newEngine();
+            int size = engine.getSession().getPacketBufferSize();
+            netIn = ByteBuffer.allocate(size);
+            netOut = ByteBuffer.allocate(size);
+        }
+        /** Регистрируем канал и начинаем рукопожатие; служба откроется позже */
+        public void start() {
+            loop.execute(new Runnable() {
+                public void run() {
+                    try {
+                        channel.configureBlocking(false);
+                        key = channel.register(loop.selector,
+                                SelectionKey.OP_READ, TlsSession.this);
+                        handshakeStarted = System.currentTimeMillis();
+                        engine.beginHandshake();
+                        handshake();
+                    }
+                    catch (Exception e) { failed(e); }
+                }
+            });
+        }
+        /** Канал готов: досылаем очередь, читаем и расшифровываем */
+        public void ready(SelectionKey k) throws IOException {
+            if (k.isWritable()) flushOutbound();
+            if (!k.isValid() || !k.isReadable()) return;
+            int n = channel.read(netIn);
+            if (n < 0) {   // Клиент закрыл соединение, не прислав close_notify
+                inputEnded();
+                return;
+            }
+            if (n > 0) {
+                if (stats != null) stats.bytesIn.add(n);
+                if (watch != null) lastIo = readSince = System.nanoTime();
+            }
+            unwrap();
+        }
         /**
-         * Конструктор Listener создает для себя поток исполнения в составе заданной
-         * группы. Он создает объект ServerSocket, ожидающий подключений
-         * по заданному порту. Он настраивает ServerSocket так, чтобы его
-         * можно было прервать, за счет чего служба может быть удалена с сервера.
+         * Расшифровываем накопленные записи TLS и передаем открытый текст
+         * службе. Если служба приостановила чтение, остаток ждет в netIn
+         * до вызова resumeReads().
          **/
-        public Listener(ThreadGroup group, int port, Service service)
-                throws IOException
-        {
-            super(group, "Listener:" + port);
-            listen_socket = new ServerSocket(port);
-            // Задаем ненулевую паузу, чтобы accept() можно было прервать
-            listen_socket.setSoTimeout(600000);
-            this.port = port;
-            this.service = service;
+        void unwrap() throws IOException {
+            netIn.flip();
+            try {
+                while(!closed && !inputShutdown && !(opened && readsSuspended)) {
+                    ByteBuffer plain = plainBuffer();
+                    SSLEngineResult r = engine.unwrap(netIn, plain);
+                    if (r.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) break;
+                    if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+                        throw new SSLException("Запись TLS не помещается в буфер");
+                    handshake();
+                    if (plain.position() > 0) {
+                        plain.flip();
+                        handler.read(this, plain);
+                    }
+                    if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        inputEnded();   // Клиент прислал close_notify
+                        break;
+                    }
+                    if ((r.bytesConsumed() == 0) && (r.bytesProduced() == 0)) break;
+                }
+            }
+            finally { netIn.compact(); }
         }
-        /**
-         * Это вежливый способ сообщить Listener, что нужно прекратить
-         * прием новых подключений
-         ***/
-        public void pleaseStop() {
-            this.stop = true;  // Установка флага остановки
-            this.interrupt();  // Прекращение блокировки в accept().
-            try { listen_socket.close(); } // Прекращение ожидания новых подключений.
-            catch(IOException e) {}
+        /** Общий буфер цикла для открытого текста, достаточный для записи TLS */
+        ByteBuffer plainBuffer() {
+            ByteBuffer b = loop.plainBuffer;
+            int size = engine.getSession().getApplicationBufferSize();
+            if ((b == null) || (b.capacity() < size))
+                loop.plainBuffer = b = ByteBuffer.allocateDirect(size);
+            b.clear();
+            return b;
         }
         /**
-         * Класс Listener является подклассом класса Thread, его тело приведено ниже.
-         * Ожидаем запросов на подключение, принимаем их и передаем Socket
-         * методу сервера addConnection.
+         * Выполняем то, чего требует рукопожатие: служебные задачи и отправку
+         * сообщений TLS. Когда рукопожатие завершено, открываем службу.
          **/
-        public void run() {
-            while(!stop) { // цикл продолжается, пока нас не попросят остановиться.
-                try {
-                    Socket client = listen_socket.accept();
-                    addConnection(client, service);
+        void handshake() throws IOException {
+            for(;;) {
+                SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    Runnable task;
+                    while((task = engine.getDelegatedTask()) != null) task.run();
                 }
-                catch (InterruptedIOException e) {}
-                catch (IOException e) {log(e);}
+                else if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    int produced;
+                    lock.lock();
+                    try {
+                        if (closed || eofSent) return;
+                        produced = seal(ByteBuffer.allocate(0));
+                    }
+                    finally { lock.unlock(); }
+                    updateInterest();
+                    if (produced == 0) break;
+                }
+                else break;
+            }
+            if (!opened && !closed &&
+                    (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)) {
+                opened = true;
+                tls.completed(engine.getSession(), handshakeStarted);
+                handler.open(this);
+            }
+        }
+        /**
+         * Шифруем данные (или служебное сообщение TLS, если буфер пуст)
+         * и отправляем их; вызывается под блокировкой lock. Возвращает число
+         * байтов, переданных в канал или в очередь.
+         **/
+        int seal(ByteBuffer data) throws IOException {
+            int produced = 0;
+            do {
+                netOut.clear();
+                SSLEngineResult r = engine.wrap(data, netOut);
+                if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+                    throw new SSLException("Запись TLS не помещается в буфер");
+                netOut.flip();
+                produced += netOut.remaining();
+                if (netOut.hasRemaining()) transmit(netOut);
+                if (r.getStatus() == SSLEngineResult.Status.CLOSED) break;
+            } while(data.hasRemaining());
+            return produced;
+        }
+        /** Шифруем и отправляем данные службы */
+        public void write(ByteBuffer data) throws IOException {
+            boolean schedule;
+            lock.lock();
+            try {
+                if (closed || closing || outputShutdown)
+                    throw new IOException("Сеанс закрыт");
+                schedule = outbound.isEmpty();
+                seal(data);
+                schedule = schedule && !outbound.isEmpty();
             }
+            finally { lock.unlock(); }
+            if (schedule) interestChanged();
+        }
+        /** Клиент закончил передачу: сообщаем службе или закрываем сеанс */
+        void inputEnded() throws IOException {
+            inputShutdown = true;
+            updateInterest();
+            if (opened) handler.eof(this);
+            else {
+                tls.failed();
+                closeNow();
+            }
+        }
+        /** Перед закрытием передающей стороны отправляем close_notify */
+        void closeOutbound() {
+            lock.lock();
+            try {
+                if (closing || closed || outputShutdown) return;
+                engine.closeOutbound();
+                seal(ByteBuffer.allocate(0));
+            }
+            catch (IOException e) {}  // Сеанс все равно закрывается
+            finally { lock.unlock(); }
+        }
+        public void shutdownOutput() {
+            closeOutbound();
+            super.shutdownOutput();
+        }
+        public void close() {
+            closeOutbound();
+            super.close();
+        }
+        /** Возобновляя чтение, расшифровываем то, что уже ждет в netIn */
+        public void resumeReads() {
+            super.resumeReads();
+            loop.execute(new Runnable() {
+                public void run() {
+                    try { if (netIn.position() > 0) unwrap(); }
+                    catch (IOException e) { failed(e); }
+                }
+            });
+        }
+        /** Неудачное рукопожатие учитывается в статистике TLS порта */
+        public void failed(Exception e) {
+            if (!opened && !closed) tls.failed();
+            super.failed(e);
         }
     }
     /**
-     * Это метод, вызываемый объектами Listener, когда они принимают
-     * соединение с клиентом. Он либо создает объект Connection
-     * для этого подключения и добавляет его в список имеющихся подключений,
-     * либо, если лимит подключений исчерпан, закрывает подключение.
+     * Этот адаптер позволяет обслуживать в режиме NIO обычные блокирующие
+     * службы. Для каждого сеанса он запускает поток исполнения, вызывающий
+     * метод serve() с потоками ввода и вывода, связанными с циклом выборки:
+     * цикл складывает прочитанные данные во входной поток, а записанное
+     * в выходной поток отправляет сам. Если служба не успевает читать,
+     * чтение из канала приостанавливается; если клиент не успевает принимать
+     * данные, блокируется пишущий поток исполнения службы.
      **/
-    protected synchronized void addConnection(Socket s, Service service) {
-        // Если лимит числа подключений исчерпан,
-        if (connections.size() >= maxConnections) {
-            try {
-                // сообщаем клиенту, что его запрос отклонен.
-                PrintWriter out = new PrintWriter(s.getOutputStream());
-                out.print("В подключении отказано; " +
-                        "сервер перегружен, попытайтесь подключиться позже.\n");
-                out.flush();
-                // И закрываем подключение клиента, которому отказано.
-                s.close();
-                // И, конечно, делаем об этом регистрационную запись.
-                log("Подключение отклонено для " +
-                        s.getInetAddress().getHostAddress() +
-                        ":" + s.getPort() + ": исчерпан лимит числа подключений.");
-            } catch (IOException e) {log(e);}
-        }
-        else { // В противном случае, если лимит не исчерпан,
-            // создаем процесс Connection для обработки этого подключения.
-            Connection c = new Connection(s, service);
-            // Добавляем его в список текущих подключений.
-            connections.add(c);
-            // Регистрируем новое соединение
-            log("Установлено подключение к " + s.getInetAddress().getHostAddress() +
-                    ":" + s.getPort() + " по порту " + s.getLocalPort() +
-                    " для службы " + service.getClass().getName());
-            // И запускаем процесс Connection, предоставляющий услугу
-            c.start();
+    public class BlockingAdapter implements NonBlockingService {
+        public void open(final Session s) throws IOException {
+            final SessionInputStream in = new SessionInputStream(s);
+            final SessionOutputStream out = new SessionOutputStream(s);
+            s.attachment = in;
+            s.thread = newThread(threadGroup, new Runnable() {
+                public void run() {
+                    try { s.service.serve(in, out); }
+                    catch (IOException e) { log(e); }
+                    finally { s.close(); }
+                }
+            }, "Server.Session:" + s.client.getInetAddress().getHostAddress() +
+                    ":" + s.client.getPort(), virtualConnections);
+            s.thread.start();
+        }
+        public void read(Session s, ByteBuffer data) {
+            ((SessionInputStream) s.attachment).push(data);
+        }
+        public void eof(Session s) { ((SessionInputStream) s.attachment).eof(); }
+        public void close(Session s) {
+            if (s.attachment != null) ((SessionInputStream) s.attachment).eof();
         }
     }
     /**
-     * Процесс Connection вызывает этот метод непосредственно перед выходом.
-     * Он удаляет заданный объект Connection из набора подключений.
+     * Входной поток сеанса для адаптера: цикл выборки помещает в него копии
+     * прочитанных данных, а служба читает их, блокируясь при их отсутствии.
      **/
-    protected synchronized void endConnection(Connection c) {
-        connections.remove(c);
-        log("Подключение к " + c.client.getInetAddress().getHostAddress() +
-                ":" + c.client.getPort() + " закрыто.");
-    }
-    /** Этот метод изменяет максимально допустимое число подключений */
-    public synchronized void setMaxConnections(int max) {
-        maxConnections = max;
+    public static class SessionInputStream extends InputStream {
+        static final int HIGH_WATER = 65536; // Выше этого приостанавливаем чтение
+        static final int LOW_WATER = 16384;  // Ниже этого возобновляем его
+        Session session;
+        LinkedList chunks = new LinkedList(); // Полученные, но не прочитанные куски
+        int offset;                           // Позиция в первом куске
+        int available;                        // Всего непрочитанных байтов
+        boolean eof;                          // Больше данных не будет
+        boolean suspended;                    // Чтение канала приостановлено нами
+        ReentrantLock lock = new ReentrantLock();    // Как и в Session, не монитор
+        Condition arrived = lock.newCondition();     // Поступили данные или EOF
+        public SessionInputStream(Session session) { this.session = session; }
+        /** Вызывается циклом выборки при поступлении данных */
+        void push(ByteBuffer data) {
+            lock.lock();
+            try {
+                if (eof) return;
+                byte[] chunk = new byte[data.remaining()];
+                data.get(chunk);
+                chunks.add(chunk);
+                available += chunk.length;
+                arrived.signalAll();
+                if ((available > HIGH_WATER) && !suspended) {
+                    suspended = true;
+                    session.suspendReads();
+                }
+            }
+            finally { lock.unlock(); }
+        }
+        /** Больше данных не будет: клиент прислал EOF или сеанс закрыт */
+        void eof() {
+            lock.lock();
+            try { eof = true; arrived.signalAll(); }
+            finally { lock.unlock(); }
+        }
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            lock.lock();
+            try {
+                while((available == 0) && !eof) {
+                    try { arrived.await(); }
+                    catch (InterruptedException e) { throw new InterruptedIOException(); }
+                }
+                if (available == 0) return -1;
+                int n = 0;
+                while((n < len) && !chunks.isEmpty()) {
+                    byte[] chunk = (byte[]) chunks.getFirst();
+                    int count = Math.min(len - n, chunk.length - offset);
+                    System.arraycopy(chunk, offset, b, off + n, count);
+                    n += count;
+                    offset += count;
+                    if (offset == chunk.length) { chunks.removeFirst(); offset = 0; }
+                }
+                available -= n;
+                if (suspended && (available < LOW_WATER)) {
+                    suspended = false;
+                    session.resumeReads();
+                }
+                return n;
+            }
+            finally { lock.unlock(); }
+        }
+        public int available() {
+            lock.lock();
+            try { return available; } finally { lock.unlock(); }
+        }
+        public void close() {
+            lock.lock();
+            try {
+                eof = true;
+                chunks.clear();
+                available = 0;
+                arrived.signalAll();
+            }
+            finally { lock.unlock(); }
+        }
     }
     /**
-     * Этот метод выводит в заданный поток информацию о статусе сервера.Он может
-     * применяться для отладки и ниже в этом примере используется службой Control.
+     * Выходной поток сеанса для адаптера: записанные данные передаются циклу
+     * выборки. Если у клиента накопилось слишком много неотправленных данных,
+     * пишущий поток исполнения ждет, пока очередь не сократится.
      **/
-    public synchronized void displayStatus(PrintWriter out) {
-        // Отображаем список всех предоставляемых служб
-        Iterator keys = services.keySet().iterator();
-        while(keys.hasNext()) {
-            Integer port = (Integer) keys.next();
-            Listener listener = (Listener) services.get(port);
-            out.print("СЛУЖБА " + listener.service.getClass().getName()
-                    + " ПО ПОРТУ " + port + "\n");
-        }
-        // Отображаем текущее ограничение на число подключений
-        out.print("ЛИМИТ ПОДКЛЮЧЕНИЙ: " + maxConnections + "\n");
-        // Отображаем список всех текущих подключений
-        Iterator conns = connections.iterator();
-        while(conns.hasNext()) {
-            Connection c = (Connection)conns.next();
-            out.print("ПОДКЛЮЧЕНИЕ К " +
-                    c.client.getInetAddress().getHostAddress() +
-                    ":" + c.client.getPort() + " ПО ПОРТУ " +
-                    c.client.getLocalPort() + " ДЛЯ СЛУЖБЫ " +
-                    c.service.getClass().getName() + "\n");
-        }
-    }
-    /**
-     * Этот подкласс класса Thread обрабатывает индивидуальные подключения
-     * между клиентом и службой Service, предоставляемой настоящим сервером.
-     * Поскольку каждое такое подключение обладает собственным потоком
-     * исполнения, у каждой службы может иметься несколько подключений
-     * одновременно. Вне зависимости от всех других используемых потоков
-     * исполнения, именно это делает наш сервер многопоточным.
-     **/
-    public class Connection extends Thread {
-        Socket client;    // Объект Socket для общения с клиентом
-        Service service; // Служба, предоставляемая клиенту
-/**
- * Этот конструктор просто сохраняет некоторые параметры состояния
- * и вызывает конструктор родительского класса для создания потока
- * исполнения, обрабатывающего подключение. Объекты Connection
- * создаются потоками исполнения Listener. Эти потоки являются частью группы
- * потоков сервера, поэтому процессы Connection также входят в эту группу
- **/
-public Connection(Socket client, Service service) {
-    super("Server.Connection:" +
-            client.getInetAddress().getHostAddress() +
-            ":" + client.getPort());
-    this.client = client;
-    this.service = service;
-}
+    public static class SessionOutputStream extends OutputStream {
+        static final int HIGH_WATER = 65536; // Предел очереди на отправку
+        static final int FILE_SLICE = 1 << 20; // Часть файла в очереди
+        Session session;
+        public SessionOutputStream(Session session) { this.session = session; }
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+        public void write(byte[] b, int off, int len) throws IOException {
+            session.write(b, off, len);
+            session.awaitDrain(HIGH_WATER);
+        }
         /**
-         * Это тело любого и каждого потока исполнения Connection. Все, что оно дела
-         * ет, – это передает потоки ввода и вывода клиента методу serve() заданного
-         * объекта Service, который несет ответственность за чтение и запись
-         * в эти потоки для осуществления действительного обслуживания. Вспомним,
-         * что объект Service был передан методом Server.addService() объекту
-         * Listener, а затем через метод addConnection() этому объекту Connection,
-         * и теперь наконец используется для предоставления услуги. Обратите внимание
-         * на то, что непосредственно перед выходом этот поток исполнения всегда
-         * вызывает метод endConnection(), чтобы удалить себя из набора подключений.
+         * Отправляем часть файла без копирования (см. Session.sendFile()).
+         * Файл ставится в очередь частями по мегабайту, и метод возвращает
+         * управление, лишь когда отправлено все, так что затем канал файла
+         * можно закрыть.
          **/
-        public void run() {
-            try {
-                InputStream in = client.getInputStream();
-                OutputStream out = client.getOutputStream();
-                service.serve(in, out);
+        public void transferFrom(FileChannel file, long position, long count)
+                throws IOException {
+            while(count > 0) {
+                int n = (int) Math.min(count, FILE_SLICE);
+                session.sendFile(file, position, n);
+                session.awaitDrain(FILE_SLICE);
+                position += n;
+                count -= n;
             }
-            catch (IOException e) {log(e);}
-            finally { endConnection(this); }
+            session.awaitDrain(0);
         }
+        public void close() { session.close(); }
     }
     /**
-     * Здесь описан интерфейс Service, с которым мы так часто встречались.
-     * Он определяет только один метод, который вызывается для предоставления
-     * услуги. Методу serve() передаются поток ввода и поток вывода,
-     * связанные с клиентом. Он может делать с ними все, что угодно,
-     * только перед выходом должен закрыть их.
-     *
-     * Все соединения с этой службой по одному порту совместно используют один
-     * объект Service. Таким образом, любое локальное состояние индивидуального
-     * подключения должно храниться в локальных переменных метода serve().
-     * Состояние, характеризующее все подключения по данному порту, должно
-     * храниться в переменных экземпляра класса Service. Если одна служба Service
-     * запущена на нескольких портах, обычно будут иметься несколько экземпляров
-     * Service, по одному на каждый порт. Данные, относящиеся ко всем
-     * подключениям на всех портах, должны храниться в статических переменных.
-     *
-     * Обратите внимание на то, что если экземпляры этого интерфейса будут
-     * динамически создаваться методом main() класса Server, в их реализации
-     * должен быть включен конструктор без аргументов.
+     * Отправляем часть файла в поток вывода службы. Если это поток сеанса
+     * NIO без TLS, данные идут из файла прямо в сокет (sendfile); иначе
+     * (обычное подключение или TLS, где данные нужно шифровать) они
+     * копируются через буфер.
      **/
-    public interface Service {
-        public void serve(InputStream in, OutputStream out) throws IOException;
+    public static void sendFile(FileChannel file, long position, long count,
+                                OutputStream out) throws IOException {
+        if ((out instanceof SessionOutputStream) &&
+                !(((SessionOutputStream) out).session instanceof TlsSession)) {
+            ((SessionOutputStream) out).transferFrom(file, position, count);
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 65536));
+        while(count > 0) {
+            buffer.clear();
+            if (buffer.remaining() > count) buffer.limit((int) count);
+            int n = file.read(buffer, position);
+            if (n <= 0) throw new EOFException("Файл укоротился при отправке");
+            out.write(buffer.array(), 0, n);
+            position += n;
+            count -= n;
+        }
     }
     /**
      * Очень простая служба. Она сообщает клиенту текущее время на сервере
      * и закрывает подключение.
      **/
-    public static class Time implements Service {
+    public static class Time implements Service, NonBlockingService {
         public void serve(InputStream i, OutputStream o) throws IOException {
             PrintWriter out = new PrintWriter(o);
             out.print(new Date() + "\n");
             out.close();
             i.close();
         }
+        /** В режиме NIO отправляем время и сразу закрываем сеанс */
+        public void open(Session s) throws IOException {
+            s.write(ByteBuffer.wrap((new Date() + "\n").getBytes()));
+            s.close();
+        }
+        public void read(Session s, ByteBuffer data) {}
+        public void eof(Session s) { s.close(); }
+        public void close(Session s) {}
     }
     /**
      * Это еще один пример службы. Она считывает строки, введенные клиентом,
      * и возвращает их перевернутыми. Она также выводит приветствие
      * и инструкции и разрывает подключение, когда пользователь
-     * вводит строку, состоящую из точки «.».
+     * вводит строку, состоящую из точки «.». В режиме NIO недочитанная
+     * строка хранится во вложении сеанса, так что простаивающий клиент
+     * не занимает поток исполнения.
      **/
-    public static class Reverse implements Service {
+    public static class Reverse implements Service, NonBlockingService {
         public void serve(InputStream i, OutputStream o) throws IOException {
             BufferedReader in = new BufferedReader(new InputStreamReader(i));
             PrintWriter out =
@@ -368,24 +2471,50 @@ public Connection(Socket client, Service service) {
             out.close();
             in.close();
         }
+        public void open(Session s) throws IOException {
+            s.attachment = new ByteArrayOutputStream(); // Текущая строка
+            s.write(ByteBuffer.wrap(("Welcome to the line reversal server.\n" +
+                    "Enter lines. End with a '.' on a line by itself.\n> ").getBytes()));
+        }
+        /** Накапливаем байты до конца строки и отвечаем на каждую строку */
+        public void read(Session s, ByteBuffer data) throws IOException {
+            ByteArrayOutputStream line = (ByteArrayOutputStream) s.attachment;
+            while(data.hasRemaining()) {
+                byte b = data.get();
+                if (b != '\n') { line.write(b); continue; }
+                String text = line.toString();
+                line.reset();
+                if (text.endsWith("\r")) text = text.substring(0, text.length()-1);
+                if (text.equals(".")) { s.close(); return; }
+                StringBuffer reply = new StringBuffer(text.length() + 3);
+                for(int j = text.length()-1; j >= 0; j--)
+                    reply.append(text.charAt(j));
+                reply.append("\n> ");
+                s.write(ByteBuffer.wrap(reply.toString().getBytes()));
+            }
+        }
+        public void eof(Session s) { s.close(); }
+        public void close(Session s) {}
     }
     /**
      * Эта служба – просто “зеркало” HTTP, точно такое же, как класс HttpMirror,
-     * реализованный выше в этой главе. Она возвращает клиенту его HTTPзапросы.
+     * реализованный выше в этой главе. Она возвращает клиенту его HTTPзапросы.
+     * Как и HttpMirror, она держит подключение открытым для следующих
+     * запросов (в том числе посланных, не дожидаясь ответов) и возвращает
+     * также тела запросов.
      **/
     public static class HTTPMirror implements Service {
+        final int maxRequests;  // Запросов на одно подключение
+        public HTTPMirror() { this(1000); }
+        public HTTPMirror(int maxRequests) { this.maxRequests = maxRequests; }
         public void serve(InputStream i, OutputStream o) throws IOException {
-            BufferedReader in = new BufferedReader(new InputStreamReader(i));
-            PrintWriter out = new PrintWriter(o);
-            out.print("HTTP/1.0 200 \n");
-            out.print("ContentType: text/plain\n\n");
-            String line;
-            while((line = in.readLine()) != null) {
-                if (line.length() == 0) break;
-                out.print(line + "\n");
+            // Подключение обслуживает запросы, пока клиент не закроет его;
+            // паузу простоя ограничивают тайм-ауты сервера (аргумент timeout)
+            try { HttpMirror.mirror(i, o, maxRequests); }
+            finally {
+                o.close();
+                i.close();
             }
-            out.close();
-            in.close();
         }
     }
     /**
@@ -395,7 +2524,7 @@ public Connection(Socket client, Service service) {
      * подсчитывает число подключившихся к ней клиентов
      * и сообщает каждому клиенту его номер.
      **/
-    public static class UniqueID implements Service {
+    public static class UniqueID implements Service, NonBlockingService {
         public int id=0;
         public synchronized int nextId() { return id++; }
         public void serve(InputStream i, OutputStream o) throws IOException {
@@ -404,6 +2533,40 @@ public Connection(Socket client, Service service) {
             out.close();
             i.close();
         }
+        public void open(Session s) throws IOException {
+            s.write(ByteBuffer.wrap(("Ваш номер: " + nextId() + "\n").getBytes()));
+            s.close();
+        }
+        public void read(Session s, ByteBuffer data) {}
+        public void eof(Session s) { s.close(); }
+        public void close(Session s) {}
+    }
+    /**
+     * Эта служба отдает статистику сервера по HTTP в текстовом формате
+     * Prometheus, так что ее можно указать системе мониторинга как обычную
+     * цель опроса. Путь запроса не важен. Как и службе Control, ей нужен
+     * объект Server, поэтому у нее нет конструктора без аргументов.
+     **/
+    public static class Metrics implements Service {
+        Server server;
+        public Metrics(Server server) { this.server = server; }
+        public void serve(InputStream i, OutputStream o) throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(i));
+            // Пропускаем строку запроса и заголовки
+            String line;
+            while(((line = in.readLine()) != null) && (line.length() > 0));
+            StringWriter body = new StringWriter();
+            server.writeMetrics(new PrintWriter(body));
+            byte[] data = body.toString().getBytes("UTF-8");
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(o, "UTF-8"));
+            out.print("HTTP/1.0 200 OK\r\n");
+            out.print("Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n");
+            out.print("Content-Length: " + data.length + "\r\n\r\n");
+            out.flush();
+            o.write(data);
+            o.close();
+            in.close();
+        }
     }
     /**
      * Это нетривиальная служба. Она реализует командный протокол, дающий защищенные
@@ -413,10 +2576,23 @@ public Connection(Socket client, Service service) {
      * Распознаются следующие команды:
      *   password: сообщает пароль; авторизация обязательна для большинства команд
      *   add: динамически добавляет названную службу на заданном порте
+     *        (с необязательным числом потоков приема)
+     *   replace: заменяет службу на заданном порте, не закрывая его;
+     *        старые подключения дорабатывают до заданного срока
      *   remove: динамически удаляет службу, работающую на заданном порте
      *   max: изменяет лимит числа подключений.
+     *   threads: выбирает обычные или виртуальные потоки для новых подключений
+     *   pool: включает пул рабочих потоков с очередью подключений или выключает его
+     *   log: выбирает, терять записи журнала при переполнении или ждать места
+     *   ratelimit: ограничивает частоту подключений с одного адреса
+     *   iplimit: ограничивает число одновременных подключений с одного адреса
+     *   timeout: задает тайм-ауты простоя, чтения и длительности подключений
+     *   weight: изменяет вес внешнего сервера у распределяющей службы
+     *   sessions: отображает текущие сеансы службы, ведущей их учет
+     *   stats: отображает статистику подключений каждой службы
      *   status: отображает действующие службы, текущие соединения
-     и лимит числа подключений
+     и лимит числа подключений; подключения можно отобрать по порту или
+     *        службе и выводить страницами, а вместо текста – строки JSON
      *   help: отображает страницу помощи
      *   quit: отключение
      *
@@ -439,6 +2615,21 @@ public Connection(Socket client, Service service) {
             this.server = server;
             this.password = password;
         }
+        /**
+         * Динамически загружаем названный класс Service и создаем его экземпляр.
+         * Исключения обрабатываются в методе serve()
+         **/
+        Service newService(String serviceName) throws Exception {
+            Class serviceClass = Class.forName(serviceName);
+            try {
+                return (Service)serviceClass.newInstance();
+            }
+            catch (NoSuchMethodError e) {
+                throw new IllegalArgumentException(
+                        "У службы должен быть " +
+                                "конструктор без аргументов");
+            }
+        }
         /**
          * Это метод serve(), осуществляющий обслуживание. Он читает строку,
          * отправленную клиентом, и применяет java.util.StringTokenizer, чтобы
@@ -492,23 +2683,28 @@ public Connection(Socket client, Service service) {
                         else {
                             // Получаем название службы и пытаемся динамически загрузить ее
                             // и создать ее экземпляр. Исключения обрабатываются ниже
-                            String serviceName = t.nextToken();
-                            Class serviceClass = Class.forName(serviceName);
-                            Service service;
-                            try {
-                                service = (Service)serviceClass.newInstance();
-                            }
-                            catch (NoSuchMethodError e) {
-                                throw new IllegalArgumentException(
-                                        "У службы должен быть " +
-                                                "конструктор без аргументов");
-                            }
+                            Service service = newService(t.nextToken());
                             int port = Integer.parseInt(t.nextToken());
+                            // Необязательное число потоков приема
+                            int acceptors = t.hasMoreTokens() ?
+                                    Integer.parseInt(t.nextToken()) : server.acceptors;
                             // Если никаких исключений не произошло, добавляем службу
-                            server.addService(service, port);
+                            server.addService(service, port, acceptors);
                             out.print("СЛУЖБА ДОБАВЛЕНА\n"); // сообщаем об этом клиенту
                         }
                     }
+                    else if (command.equals("replace")) { // Замена службы на ходу
+                        if (!authorized) out.print("НЕОБХОДИМ ПАРОЛЬ\n");
+                        else {
+                            Service service = newService(t.nextToken());
+                            int port = Integer.parseInt(t.nextToken());
+                            // Необязательный срок завершения старых подключений
+                            long drain = t.hasMoreTokens() ?
+                                    Long.parseLong(t.nextToken()) : 30000;
+                            server.replaceService(service, port, drain);
+                            out.print("СЛУЖБА ЗАМЕНЕНА\n");
+                        }
+                    }
                     else if (command.equals("remove")) { // Команда удаления службы
                         if (!authorized) out.print("НЕОБХОДИМ ПАРОЛЬ\n");
                         else {
@@ -525,18 +2721,125 @@ public Connection(Socket client, Service service) {
                             out.print("ЛИМИТ ПОДКЛЮЧЕНИЙ ИЗМЕНЕН \n");
                         }
                     }
+                    else if (command.equals("threads")) { // Вид потоков исполнения
+                        if (!authorized) out.print("НЕОБХОДИМ ПАРОЛЬ\n");
+                        else {
+                            server.setThreadMode(t.nextToken());
+                            out.print("ВИД ПОТОКОВ ИЗМЕНЕН\n");
+                        }
+                    }
+                    else if (command.equals("pool")) { // Пул рабочих потоков
+                        if (!authorized) out.print("НЕОБХОДИМ ПАРОЛЬ\n");
+                        else {
+                            String arg = t.nextToken();
+                            if (arg.equals("off")) server.setExecutor(null);
+                            else server.useWorkerPool(Integer.parseInt(arg),
+                                    Long.parseLong(t.nextToken()));
+                            out.print("ИСПОЛНИТЕЛЬ ИЗМЕНЕН\n");
+                        }
+                    }
+                    else if (command.equals("log")) { // Переполнение журнала
+                        if (!authorized) out.print("НЕОБХОДИМ ПАРОЛЬ\n");
+                        else {
+                            String mode = t.nextToken();
+                            if (mode.equals("drop")) server.setLogBlocking(false);
+                            else if (mode.equals("block")) server.setLogBlocking(true);
+                            else throw new IllegalArgumentException(mode);
+                            out.print("РЕЖИМ ЖУРНАЛА ИЗМЕНЕН\n");
+                        }
+                    }
+                    else if (command.equals("ratelimit")) { // Частота с адреса
+                        if (!authorized) out.print("НЕОБХОДИМ ПАРОЛЬ\n");
+                        else {
+                            double rate = Double.parseDouble(t.nextToken());
+                            int burst = Integer.parseInt(t.nextToken());
+                            int port = t.hasMoreTokens() ?
+                                    Integer.parseInt(t.nextToken()) : 0;
+                            server.setClientRate(port, rate, burst);
+                            out.print("ОГРАНИЧЕНИЕ ЧАСТОТЫ ИЗМЕНЕНО\n");
+                        }
+                    }
+                    else if (command.equals("iplimit")) { // Подключений с адреса
+                        if (!authorized) out.print("НЕОБХОДИМ ПАРОЛЬ\n");
+                        else {
+                            int max = Integer.parseInt(t.nextToken());
+                            int port = t.hasMoreTokens() ?
+                                    Integer.parseInt(t.nextToken()) : 0;
+                            server.setClientConnections(port, max);
+                            out.print("ОГРАНИЧЕНИЕ ПОДКЛЮЧЕНИЙ С АДРЕСА ИЗМЕНЕНО\n");
+                        }
+                    }
+                    else if (command.equals("timeout")) { // Тайм-ауты подключений
+                        if (!authorized) out.print("НЕОБХОДИМ ПАРОЛЬ\n");
+                        else {
+                            long idle = Long.parseLong(t.nextToken());
+                            long read = Long.parseLong(t.nextToken());
+                            long session = Long.parseLong(t.nextToken());
+                            int port = t.hasMoreTokens() ?
+                                    Integer.parseInt(t.nextToken()) : 0;
+                            server.setTimeouts(port, idle, read, session);
+                            out.print("ТАЙМ-АУТЫ ИЗМЕНЕНЫ\n");
+                        }
+                    }
+                    else if (command.equals("weight")) { // Вес внешнего сервера
+                        if (!authorized) out.print("НЕОБХОДИМ ПАРОЛЬ\n");
+                        else {
+                            int port = Integer.parseInt(t.nextToken());
+                            String backend = t.nextToken();
+                            int weight = Integer.parseInt(t.nextToken());
+                            server.setBackendWeight(port, backend, weight);
+                            out.print("ВЕС ИЗМЕНЕН\n");
+                        }
+                    }
+                    else if (command.equals("sessions")) { // Сеансы службы
+                        if (!authorized) out.print("НЕОБХОДИМ ПАРОЛЬ\n");
+                        else server.displaySessions(out, Integer.parseInt(t.nextToken()));
+                    }
+                    else if (command.equals("stats")) { // Статистика служб
+                        if (!authorized) out.print("НЕОБХОДИМ ПАРОЛЬ\n");
+                        else server.displayStats(out);
+                    }
                     else if (command.equals("status")) { // Отображение состояния
                         if (!authorized) out.print("НЕОБХОДИМ ПАРОЛЬ\n");
-                        else server.displayStatus(out);
+                        else {
+                            // Необязательные фильтры, страница и формат
+                            int port = 0, from = 0, limit = 1000;
+                            String service = null;
+                            boolean json = false;
+                            while(t.hasMoreTokens()) {
+                                String option = t.nextToken().toLowerCase();
+                                if (option.equals("json")) json = true;
+                                else if (option.equals("port"))
+                                    port = Integer.parseInt(t.nextToken());
+                                else if (option.equals("service")) service = t.nextToken();
+                                else if (option.equals("from"))
+                                    from = Integer.parseInt(t.nextToken());
+                                else if (option.equals("limit"))
+                                    limit = Integer.parseInt(t.nextToken());
+                                else throw new IllegalArgumentException(option);
+                            }
+                            server.displayStatus(out, port, service, from, limit, json);
+                        }
                     }
                     else if (command.equals("help")) { // Команда Help
                         // Отображаем синтаксис команд. Пароль необязателен
                         out.print("КОМАНДЫ:\n" +
                                 "\tpassword <password>\n" +
-                                "\tadd <service> <port>\n" +
+                                "\tadd <service> <port> [acceptors]\n" +
+                                "\treplace <service> <port> [drainms]\n" +
                                 "\tremove <port>\n" +
                                 "\tmax <maxconnections>\n" +
-                                "\tstatus\n" +
+                                "\tthreads platform|virtual|all\n" +
+                                "\tpool <queuesize> <timeoutms> | pool off\n" +
+                                "\tlog drop|block\n" +
+                                "\tratelimit <persecond> <burst> [port]\n" +
+                                "\tiplimit <maxconnections> [port]\n" +
+                                "\ttimeout <idlems> <readms> <sessionms> [port]\n" +
+                                "\tweight <port> <host:port> <weight>\n" +
+                                "\tsessions <port>\n" +
+                                "\tstats\n" +
+                                "\tstatus [json] [port <port>] [service <name>] " +
+                                "[from <n>] [limit <n>]\n" +
                                 "\thelp\n" +
                                 "\tquit\n");
                     }
@@ -0,0 +1,554 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.function.*;
+import javax.net.ssl.*;
+/**
+ * Эта программа измеряет производительность объекта Server и его служб.
+ * Все измерения выполняются через интерфейс loopback.
+ *
+ * Режим churn измеряет, сколько подключений в секунду сервер способен принять,
+ * обслужить и закрыть: он запускает службу Time на нескольких портах, а затем
+ * несколько клиентских потоков исполнения в цикле подключаются к этим портам
+ * по кругу, читают ответ до EOF и отключаются. В конце печатается число
+ * подключений в секунду и распределение времени от подключения до EOF.
+ * Аргумент log направляет регистрационный журнал сервера в поток, который
+ * ничего не записывает, так что в измерение входит и стоимость регистрации.
+ *
+ * Кроме того, здесь подготавливаются измерения горячих путей сервера
+ * (объекты Fixture), которые выполняет модуль JMH в каталоге jmh: задержка
+ * от подключения до первого байта ответа (в классическом режиме и в режиме
+ * NIO), обработка запросов службами Reverse и HTTPMirror (в том числе по
+ * постоянному подключению с конвейером запросов), пропускная способность
+ * ProxyServer.Proxy при разных размерах буфера, копирование между
+ * подключениями прежним циклом и классом StreamCopier, рукопожатия TLS
+ * (полные и с возобновлением сеанса), отдача файлов службой FileService,
+ * UniqueID.nextId() при конкуренции потоков и стоимость Server.log().
+ * Все они идут через интерфейс loopback. Сборка и запуск:
+ *
+ *   mvn -B package
+ *   java -jar jmh/target/benchmarks.jar -rf json -rff results.json
+ *
+ * JMH сам отвечает за отдельные процессы (fork), прогрев и итерации,
+ * а файл JSON его формата можно сравнивать между запусками.
+ **/
+public class ServerBenchmark {
+    public static void main(String[] args) {
+        try {
+            if ((args.length >= 4) && args[0].equals("churn")) {
+                int ports = Integer.parseInt(args[1]);
+                int clients = Integer.parseInt(args[2]);
+                int seconds = Integer.parseInt(args[3]);
+                boolean log = (args.length > 4) && args[4].equals("log");
+                churn(ports, clients, seconds, log);
+            }
+            else throw new IllegalArgumentException("Неправильные аргументы");
+            System.exit(0);
+        }
+        catch (Exception e) {
+            System.err.println(e);
+            System.err.println("Формат: java ServerBenchmark churn " +
+                    "<ports> <clients> <seconds> [log]");
+            System.exit(1);
+        }
+    }
+    /** Поток (stream), который просто отбрасывает все, что в него пишут */
+    static class NullOutputStream extends OutputStream {
+        public void write(int b) {}
+        public void write(byte[] b, int off, int len) {}
+    }
+    /** Запускаем сервер и клиентов, ждем заданное время и печатаем итоги */
+    static void churn(int ports, int clients, int seconds, boolean log)
+            throws Exception {
+        final Server server = new Server(log ? new NullOutputStream() : null,
+                clients * 2);
+        final int[] portNumbers = new int[ports];
+        for(int i = 0; i < ports; i++) {
+            portNumbers[i] = freePort();
+            server.addService(new Server.Time(), portNumbers[i]);
+        }
+        Thread.sleep(200);   // Даем объектам Listener запуститься
+        final long end = System.currentTimeMillis() + seconds * 1000L;
+        final long[][] samples = new long[clients][];
+        final int[] counts = new int[clients];
+        final int[] errors = new int[clients];
+        Thread[] threads = new Thread[clients];
+        for(int c = 0; c < clients; c++) {
+            final int id = c;
+            threads[c] = new Thread("Client:" + c) {
+                public void run() {
+                    long[] lat = new long[1 << 16];
+                    int n = 0;
+                    byte[] buffer = new byte[256];
+                    while(System.currentTimeMillis() < end) {
+                        int port = portNumbers[(id + n) % portNumbers.length];
+                        long start = System.nanoTime();
+                        try {
+                            Socket s = new Socket("127.0.0.1", port);
+                            // Закрываем с RST, чтобы соединения не оставались
+                            // в TIME_WAIT и не исчерпывали локальные порты
+                            s.setSoLinger(true, 0);
+                            InputStream in = s.getInputStream();
+                            while(in.read(buffer) != -1);
+                            s.close();
+                        }
+                        catch (IOException e) { errors[id]++; continue; }
+                        if (n == lat.length) lat = Arrays.copyOf(lat, n * 2);
+                        lat[n++] = System.nanoTime() - start;
+                    }
+                    samples[id] = Arrays.copyOf(lat, n);
+                    counts[id] = n;
+                }
+            };
+            threads[c].start();
+        }
+        for(int c = 0; c < clients; c++) threads[c].join();
+        int total = 0, failed = 0;
+        for(int c = 0; c < clients; c++) { total += counts[c]; failed += errors[c]; }
+        long[] all = new long[total];
+        int pos = 0;
+        for(int c = 0; c < clients; c++) {
+            System.arraycopy(samples[c], 0, all, pos, counts[c]);
+            pos += counts[c];
+        }
+        Arrays.sort(all);
+        System.out.println("портов " + ports + ", клиентов " + clients +
+                ", журнал " + (log ? "включен" : "выключен"));
+        System.out.println("подключений/с: " + (total / seconds) +
+                " (ошибок " + failed + ")");
+        System.out.println("задержка, мкс: p50 " + percentile(all, 0.50) +
+                " p99 " + percentile(all, 0.99) +
+                " p99.9 " + percentile(all, 0.999));
+        server.close();
+    }
+
+    /**
+     * Подготовленное измерение: запущенная служба, подключение клиента
+     * и операция, которую модуль JMH (каталог jmh) вызывает в цикле.
+     * Операция возвращает число обработанных единиц – запросов, байтов или
+     * результат вызова, чтобы JMH не мог выбросить его как неиспользуемый.
+     * Метод close() останавливает службу и закрывает подключения.
+     *
+     * Классы сервера лежат в пакете по умолчанию, а классы JMH – нет, поэтому
+     * измерения создаются отражением, а в цикле вызываются через стандартный
+     * интерфейс LongSupplier.
+     **/
+    public static abstract class Fixture implements LongSupplier, Closeable {
+        abstract long run() throws Exception;
+        public final long getAsLong() {
+            try { return run(); }
+            catch (RuntimeException e) { throw e; }
+            catch (Exception e) { throw new IllegalStateException(e); }
+        }
+        public void close() throws IOException {}
+    }
+
+    /** Сервер без журнала, в классическом режиме или в режиме NIO */
+    static Server newServer(String engine) throws IOException {
+        Server server = new Server(null, 64);
+        if (engine.equals("nio")) server.enableNio(1);
+        return server;
+    }
+    /** Задержка от подключения до первого байта ответа службы Time */
+    public static Fixture accept(String engine) throws Exception {
+        final Server server = newServer(engine);
+        final int port = freePort();
+        server.addService(new Server.Time(), port);
+        Thread.sleep(200);
+        final byte[] buffer = new byte[256];
+        return new Fixture() {
+            long run() throws IOException {
+                Socket s = new Socket("127.0.0.1", port);
+                s.setSoLinger(true, 0);
+                InputStream in = s.getInputStream();
+                int first = in.read();           // Первый байт ответа
+                while(in.read(buffer) != -1);
+                s.close();
+                return first;
+            }
+            public void close() throws IOException { stop(server, port); }
+        };
+    }
+    /** Запрос-ответ службы Reverse по одному постоянному подключению */
+    public static Fixture reverse(String engine) throws Exception {
+        final Server server = newServer(engine);
+        final int port = freePort();
+        server.addService(new Server.Reverse(), port);
+        Thread.sleep(200);
+        final Socket s = new Socket("127.0.0.1", port);
+        s.setTcpNoDelay(true);
+        final InputStream in = s.getInputStream();
+        final OutputStream out = s.getOutputStream();
+        readPrompt(in);                          // Приветствие
+        final byte[] request = "The quick brown fox jumps over the lazy dog\n".getBytes();
+        return new Fixture() {
+            long run() throws IOException {
+                out.write(request);
+                out.flush();
+                readPrompt(in);
+                return 1;
+            }
+            public void close() throws IOException {
+                out.write(".\n".getBytes());
+                s.close();
+                stop(server, port);
+            }
+        };
+    }
+    /** Читаем ответ службы Reverse до очередной подсказки "> " */
+    static void readPrompt(InputStream in) throws IOException {
+        int previous = 0, c;
+        while((c = in.read()) != -1) {
+            if ((previous == '>') && (c == ' ')) return;
+            previous = c;
+        }
+        throw new EOFException();
+    }
+    /** Запрос к службе HTTPMirror: подключение, запрос, ответ до EOF */
+    public static Fixture httpMirror() throws Exception {
+        final Server server = newServer("classic");
+        final int port = freePort();
+        server.addService(new Server.HTTPMirror(), port);
+        Thread.sleep(200);
+        final byte[] request = ("GET /index.html HTTP/1.0\r\nHost: localhost\r\n" +
+                "User-Agent: ServerBenchmark\r\nAccept: */*\r\n\r\n").getBytes();
+        final byte[] buffer = new byte[4096];
+        return new Fixture() {
+            long run() throws IOException {
+                Socket s = new Socket("127.0.0.1", port);
+                s.setSoLinger(true, 0);
+                s.getOutputStream().write(request);
+                InputStream in = s.getInputStream();
+                long n = 0;
+                int k;
+                while((k = in.read(buffer)) != -1) n += k;
+                s.close();
+                return n;
+            }
+            public void close() throws IOException { stop(server, port); }
+        };
+    }
+    static TlsContext tlsContext;   // Самоподписанный сертификат для измерений tls
+    /**
+     * Рукопожатие TLS: клиент подключается к службе Time по порту с TLS,
+     * читает ответ до EOF и отключается. Если resume равно false, клиент
+     * после каждого подключения удаляет сеанс из своего кэша, и каждое
+     * рукопожатие полное; иначе сеанс возобновляется по билету сервера.
+     **/
+    public static Fixture tls(String engine, boolean resume) throws Exception {
+        if (tlsContext == null) {
+            File keystore = File.createTempFile("benchmark", ".p12");
+            keystore.delete();         // keytool создаст файл сам
+            keystore.deleteOnExit();
+            tlsContext = TlsContext.selfSigned(keystore, "benchmark", "localhost");
+        }
+        final Server server = newServer(engine);
+        final int port = freePort();
+        server.addService(new Server.Time(), port, tlsContext);
+        Thread.sleep(200);
+        // Клиент доверяет любому сертификату: нас интересует лишь стоимость
+        SSLContext client = SSLContext.getInstance("TLS");
+        client.init(null, new TrustManager[] { new X509TrustManager() {
+            public void checkClientTrusted(java.security.cert.X509Certificate[] c, String a) {}
+            public void checkServerTrusted(java.security.cert.X509Certificate[] c, String a) {}
+            public java.security.cert.X509Certificate[] getAcceptedIssuers() {
+                return new java.security.cert.X509Certificate[0];
+            }
+        } }, null);
+        final SSLSocketFactory factory = client.getSocketFactory();
+        final boolean keep = resume;
+        final byte[] buffer = new byte[256];
+        return new Fixture() {
+            long run() throws IOException {
+                Socket plain = new Socket("localhost", port);
+                plain.setTcpNoDelay(true);
+                SSLSocket s = (SSLSocket) factory.createSocket(plain, "localhost", port, true);
+                InputStream in = s.getInputStream();
+                long n = 0;
+                int k;
+                while((k = in.read(buffer)) != -1) n += k;
+                if (!keep) s.getSession().invalidate();
+                s.close();
+                return n;
+            }
+            public void close() throws IOException { stop(server, port); }
+        };
+    }
+    /**
+     * Запросы к службе HTTPMirror по одному постоянному подключению (HTTP/1.1
+     * keep-alive). Клиент посылает depth запросов сразу, не дожидаясь ответов,
+     * а затем читает depth ответов; операция – вся пачка.
+     **/
+    public static Fixture httpKeepAlive(String engine, final int depth)
+            throws Exception {
+        final Server server = newServer(engine);
+        final int port = freePort();
+        server.addService(new Server.HTTPMirror(Integer.MAX_VALUE), port);
+        Thread.sleep(200);
+        byte[] one = ("GET /index.html HTTP/1.1\r\nHost: localhost\r\n" +
+                "User-Agent: ServerBenchmark\r\nAccept: */*\r\n\r\n").getBytes();
+        final byte[] batch = new byte[one.length * depth];
+        for(int i = 0; i < depth; i++)
+            System.arraycopy(one, 0, batch, i * one.length, one.length);
+        final Socket s = new Socket("127.0.0.1", port);
+        s.setTcpNoDelay(true);
+        final OutputStream out = s.getOutputStream();
+        final HttpMirror.Input in = new HttpMirror.Input(s.getInputStream(), 65536);
+        final HttpMirror.Bytes line = new HttpMirror.Bytes(256);
+        final byte[] body = new byte[4096];
+        return new Fixture() {
+            long run() throws IOException {
+                out.write(batch);
+                out.flush();
+                long n = 0;
+                for(int i = 0; i < depth; i++) n += readResponse(in, line, body);
+                return n;
+            }
+            public void close() throws IOException {
+                s.close();
+                stop(server, port);
+            }
+        };
+    }
+    /**
+     * Читаем ответ HTTP: заголовки до пустой строки, затем тело по
+     * Content-Length. Возвращает длину тела.
+     **/
+    static long readResponse(HttpMirror.Input in, HttpMirror.Bytes line, byte[] body)
+            throws IOException {
+        long length = 0;
+        for(;;) {
+            line.reset();
+            if (!in.readLine(line)) throw new EOFException();
+            if (line.length == 0) break;
+            if ((line.length > 15) && line.equalsIgnoreCase(0, 15, "content-length:"))
+                length = Long.parseLong(line.toString(15, line.length).trim());
+        }
+        for(long left = length; left > 0; ) {
+            int n = in.read(body, 0, (int) Math.min(left, body.length));
+            if (n == -1) throw new EOFException();
+            left -= n;
+        }
+        return length;
+    }
+    static File documents;  // Каталог с файлами для измерений files
+    /**
+     * Отдача файла службой FileService по постоянному подключению:
+     * небольшого (4 КБ) из кэша или большого (16 МБ) мимо кэша. Операция
+     * возвращает длину тела. В режиме NIO большой файл передается в сокет
+     * без копирования (sendfile).
+     **/
+    public static Fixture files(String engine, boolean large) throws Exception {
+        if (documents == null) {
+            documents = File.createTempFile("benchmark", ".docs");
+            documents.delete();
+            documents.mkdir();
+            writeFile(new File(documents, "small.html"), 4096);
+            writeFile(new File(documents, "large.bin"), 16 << 20);
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    new File(documents, "small.html").delete();
+                    new File(documents, "large.bin").delete();
+                    documents.delete();
+                }
+            });
+        }
+        final Server server = newServer(engine);
+        final int port = freePort();
+        server.addService(new FileService(documents, 32 << 20, 64 << 10, Integer.MAX_VALUE),
+                port);
+        Thread.sleep(200);
+        final byte[] request = ("GET /" + (large ? "large.bin" : "small.html") +
+                " HTTP/1.1\r\nHost: localhost\r\nUser-Agent: ServerBenchmark\r\n" +
+                "Accept: */*\r\n\r\n").getBytes();
+        final Socket s = new Socket("127.0.0.1", port);
+        s.setTcpNoDelay(true);
+        final OutputStream out = s.getOutputStream();
+        final HttpMirror.Input in = new HttpMirror.Input(s.getInputStream(), 65536);
+        final HttpMirror.Bytes line = new HttpMirror.Bytes(256);
+        final byte[] body = new byte[65536];
+        return new Fixture() {
+            long run() throws IOException {
+                out.write(request);
+                out.flush();
+                return readResponse(in, line, body);
+            }
+            public void close() throws IOException {
+                s.close();
+                stop(server, port);
+            }
+        };
+    }
+    static void writeFile(File f, int length) throws IOException {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        OutputStream out = new FileOutputStream(f);
+        try { out.write(data); }
+        finally { out.close(); }
+    }
+    /**
+     * Пропускная способность ProxyServer.Proxy: источник по loopback
+     * непрерывно пишет данные, а клиент читает их через прокси. Операция –
+     * одно чтение клиента; она возвращает число прочитанных байтов.
+     **/
+    public static Fixture proxy(String engine, int bufferSize) throws Exception {
+        final ServerSocket origin = new ServerSocket(0);
+        Thread source = new Thread("Benchmark:origin") {
+            public void run() {
+                try {
+                    for(;;) {
+                        final Socket s = origin.accept();
+                        Thread t = new Thread("Benchmark:source") {
+                            public void run() {
+                                byte[] chunk = new byte[65536];
+                                try {
+                                    OutputStream out = s.getOutputStream();
+                                    for(;;) out.write(chunk);
+                                }
+                                catch (IOException e) {}
+                                try { s.close(); } catch (IOException e) {}
+                            }
+                        };
+                        t.setDaemon(true);
+                        t.start();
+                    }
+                }
+                catch (IOException e) {}
+            }
+        };
+        source.setDaemon(true);
+        source.start();
+        final Server server = newServer(engine);
+        final int port = freePort();
+        server.addService(new ProxyServer.Proxy("127.0.0.1", origin.getLocalPort(),
+                bufferSize), port);
+        Thread.sleep(200);
+        final Socket s = new Socket("127.0.0.1", port);
+        final InputStream in = s.getInputStream();
+        final byte[] buffer = new byte[65536];
+        return new Fixture() {
+            long run() throws IOException {
+                int n = in.read(buffer);
+                if (n < 0) throw new EOFException();
+                return n;
+            }
+            public void close() throws IOException {
+                s.close();
+                origin.close();
+                stop(server, port);
+            }
+        };
+    }
+    /**
+     * Копирование из одного подключения loopback в другое: источник пишет
+     * данные кусками заданного размера, копирующий поток перекладывает их,
+     * а измерение читает результат. Сравниваются прежний цикл копирования
+     * (массив 2 КБ и flush() после каждого чтения) и StreamCopier.
+     **/
+    public static Fixture copy(final String impl, final int chunk) throws Exception {
+        ServerSocket a = new ServerSocket(0), b = new ServerSocket(0);
+        final Socket source = new Socket("127.0.0.1", a.getLocalPort());
+        final Socket from = a.accept();
+        final Socket to = new Socket("127.0.0.1", b.getLocalPort());
+        final Socket sink = b.accept();
+        a.close();
+        b.close();
+        Thread writer = new Thread("Benchmark:source") {
+            public void run() {
+                byte[] data = new byte[chunk];
+                try {
+                    OutputStream out = source.getOutputStream();
+                    for(;;) out.write(data);
+                }
+                catch (IOException e) {}
+            }
+        };
+        Thread copier = new Thread("Benchmark:copy") {
+            public void run() {
+                try {
+                    InputStream in = from.getInputStream();
+                    OutputStream out = to.getOutputStream();
+                    if (impl.equals("copier")) StreamCopier.copy(in, out);
+                    else {
+                        byte[] buffer = new byte[2048];
+                        int bytes_read;
+                        while((bytes_read = in.read(buffer)) != -1) {
+                            out.write(buffer, 0, bytes_read);
+                            out.flush();
+                        }
+                    }
+                }
+                catch (IOException e) {}
+            }
+        };
+        writer.setDaemon(true);
+        copier.setDaemon(true);
+        writer.start();
+        copier.start();
+        final InputStream in = sink.getInputStream();
+        final byte[] buffer = new byte[65536];
+        return new Fixture() {
+            long run() throws IOException {
+                int n = in.read(buffer);
+                if (n < 0) throw new EOFException();
+                return n;
+            }
+            public void close() throws IOException {
+                source.close();
+                from.close();
+                to.close();
+                sink.close();
+            }
+        };
+    }
+    /**
+     * UniqueID.nextId(). Один объект измерения можно вызывать из нескольких
+     * потоков исполнения сразу (в JMH – с аргументом -t или @Threads).
+     **/
+    public static Fixture uniqueId() {
+        final Server.UniqueID service = new Server.UniqueID();
+        return new Fixture() {
+            long run() { return service.nextId(); }
+        };
+    }
+    /**
+     * Стоимость вызова Server.log(): с выключенным журналом и с журналом,
+     * который пишет в пустой поток. Во втором случае переполнение журнала
+     * заставляет ждать места, так что оценка учитывает и работу писателя.
+     **/
+    public static Fixture log(boolean enabled) {
+        final Server server = new Server(enabled ? new NullOutputStream() : null, 10);
+        server.setLogBlocking(true);
+        final String message = "Установлено подключение к 127.0.0.1:54321 " +
+                "по порту 4401 для службы Server$Time";
+        return new Fixture() {
+            long run() {
+                server.log(message);
+                return 1;
+            }
+            public void close() { server.close(); }
+        };
+    }
+    /**
+     * Останавливаем сервер измерения (его службы и поток журнала), чтобы
+     * следующее измерение шло без помех и потоки не копились от пробы к пробе
+     **/
+    static void stop(Server server, int port) {
+        server.close();
+        try { Thread.sleep(200); }
+        catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
+    /** Находим свободный порт, чтобы не зависеть от занятых */
+    static int freePort() throws IOException {
+        ServerSocket ss = new ServerSocket(0);
+        int port = ss.getLocalPort();
+        ss.close();
+        return port;
+    }
+    /** Значение заданного процентиля в микросекундах */
+    static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int i = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(i, 0)] / 1000;
+    }
+}
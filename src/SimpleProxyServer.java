@@ -1,5 +1,9 @@
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
 /**
  * Этот класс реализует простой однопоточный проксисервер.
  **/
@@ -28,97 +32,190 @@ public class SimpleProxyServer {
         }
     }
     /**
-     * Этот метод запускает однопоточный проксисервер для host:remoteport
+     * Этот метод запускает однопоточный проксисервер для host:remoteport
      * на заданном локальном порте. Он никогда не прекращает работу.
+     * Все подключения обслуживаются одним потоком исполнения: каналы
+     * переведены в неблокирующий режим, а объект Selector сообщает, какие
+     * из них готовы к приему подключений, чтению или записи. Так прокси
+     * обслуживает одновременно сколько угодно клиентов, не создавая для
+     * них ни потоков исполнения, ни их стеков.
      **/
     public static void runServer(String host, int remoteport, int localport)
             throws IOException {
-        // Создаем ServerSocket, ожидающий подключений к нему
-        ServerSocket ss = new ServerSocket(localport);
-        // Создаем буферы для передачи от клиента к серверу и от сервера к клиенту.
-        // Один из них объявлен как final, поэтому он может использоваться
-        // в приведенном ниже безымянном классе. Обратите внимание на предположения
-        // относительно объема передачи в каждом направлении.
-        final byte[] request = new byte[1024];
-        byte[] reply = new byte[4096];
+        // Создаем канал, ожидающий подключений, и регистрируем его в Selector
+        Selector selector = Selector.open();
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.socket().bind(new InetSocketAddress(localport));
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_ACCEPT);
+        // Разрешаем имя сервера заранее: запрос к DNS в цикле выборки
+        // задержал бы всех клиентов сразу. Дальше кэш Resolver обновляет
+        // его в фоне. Клиенты, пришедшие до ответа DNS, ждут его, не
+        // задерживая цикл: ответ ставит задачу в очередь tasks.
+        Resolver.getDefault().prefetch(host);
+        ConcurrentLinkedQueue tasks = new ConcurrentLinkedQueue();
         // Это сервер, который никогда не прекращает работу, так что входим
         // в бесконечный цикл.
         while(true) {
-            // Переменные, в которых будут храниться объекты Socket
-            // для соединения с клиентом и с сервером.
-            Socket client = null, server = null;
-            try {
-                // Ожидаем подключения к локальному порту,
-                client = ss.accept();
-                // Получаем потоки для связи с клиентом. Определяем их как final, так что
-                // ими можно будет пользоваться в приведенном ниже безымянном классе.
-                final InputStream from_client = client.getInputStream();
-                final OutputStream to_client = client.getOutputStream();
-                // Подключаемся к реальному серверу.
-                // Если подключиться не удается, посылаем клиенту сообщение об ошибке,
-                // отключаемся от него и продолжаем ожидать новых подключений.
-                try { server = new Socket(host, remoteport); }
-                catch (IOException e) {
-                    PrintWriter out = new PrintWriter(to_client);
-                    out.print("Проксисервер не смог соединиться с " + host + ":"+
-                            remoteport + ":\n" + e + "\n");
-                    out.flush();
-                    client.close();
-                    continue;
-                }
-                // Получаем потоки для общения с сервером.
-                final InputStream from_server = server.getInputStream();
-                final OutputStream to_server = server.getOutputStream();
-                // Создаем поток исполнения для чтения клиентских запросов и передачи их
-                // серверу. Нам приходится использовать отдельный процесс, так как
-                // запросы и ответы могут поступать асинхронно.
-                Thread t = new Thread() {
-                    public void run() {
-                        int bytes_read;
-                        try {
-                            while((bytes_read=from_client.read(request))!=-1) {
-                                to_server.write(request, 0, bytes_read);
-                                to_server.flush();
-                            }
-                        }
-                        catch (IOException e) {}
-                        // Клиент закрыл подключение к нам, так что закрываем
-                        // наше подключение к серверу. Это повлечет за собой также
-                        // выход из цикла от сервера к клиенту в главном потоке исполнения.
-                        try {to_server.close();} catch (IOException e) {}
+            // Ожидаем, пока хотя бы один канал не будет готов
+            selector.select();
+            Runnable task;
+            while((task = (Runnable) tasks.poll()) != null) task.run();
+            Iterator keys = selector.selectedKeys().iterator();
+            while(keys.hasNext()) {
+                SelectionKey key = (SelectionKey) keys.next();
+                keys.remove();
+                if (!key.isValid()) continue; // Пара уже закрыта
+                if (key.isAcceptable()) {
+                    // Новый клиент: подключаемся к реальному серверу, не
+                    // дожидаясь завершения подключения
+                    SocketChannel client = null;
+                    try {
+                        client = listener.accept();
+                        if (client == null) continue;
+                        new Pair(selector, tasks, client, host, remoteport);
                     }
-                };
-                // Запускаем поток исполнения запросов от клиента к серверу
-                t.start();
-                // В то же время в главном потоке исполнения считываем ответы сервера
-                // и передаем их клиенту. Это будет делаться параллельно с только что
-                // созданным потоком исполнения запросов от клиента к серверу.
-                int bytes_read;
-                try {
-                    while((bytes_read = from_server.read(reply)) != -1) {
-                        to_client.write(reply, 0, bytes_read);
-                        to_client.flush();
+                    catch (IOException e) {
+                        System.err.println(e);
+                        try { if (client != null) client.close(); }
+                        catch (IOException ex) {}
                     }
                 }
-                catch(IOException e) {}
-                // Сервер закрыл подключение к нам, так что и мы закрываем свое
-                // подключение к нашему клиенту. Это повлечет
-                // за собой завершение исполнения другого потока.
-                to_client.close();
-            }
-            catch (IOException e) { System.err.println(e); }
-            finally { // Как бы то ни было, закрываем соединения.
-                try {
-                    if (server != null) server.close();
-                    if (client != null) client.close();
-                }
-                catch(IOException e) {}
+                else ((Pair) key.attachment()).ready(key);
             }
         }
     }
-}
-
 
+    /** Размер буфера для каждого направления каждого подключения */
+    static final int BUFFER_SIZE = 8192;
 
+    /**
+     * Одно направление передачи: из какого-то канала в его пару. Данные,
+     * прочитанные, но еще не записанные, ждут в собственном буфере этого
+     * направления; пока буфер полон, из источника больше не читаем.
+     **/
+    static class Half {
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        boolean eof;   // Источник закрыл свою сторону подключения
+        boolean shut;  // Все передано, и приемнику передан конец данных
+        /** Читаем из источника столько, сколько поместится в буфер */
+        void read(SocketChannel from) throws IOException {
+            if (from.read(buffer) < 0) eof = true;
+        }
+        /** Пишем приемнику сколько получится; по окончании данных закрываем его вывод */
+        void flush(SocketChannel to) throws IOException {
+            if (buffer.position() > 0) {
+                buffer.flip();
+                to.write(buffer);
+                buffer.compact();
+            }
+            if (eof && !shut && (buffer.position() == 0)) {
+                to.socket().shutdownOutput();
+                shut = true;
+            }
+        }
+        boolean canRead() { return !eof && buffer.hasRemaining(); }
+        boolean pending() { return buffer.position() > 0; }
+    }
 
+    /**
+     * Пара подключений: клиент и реальный сервер. Оба ключа Selector
+     * ссылаются на этот объект, и при любой готовности одного из каналов
+     * пара читает, что может, пишет, что может, и заново выставляет
+     * интересующие ее события. Пара закрывается, когда обе стороны
+     * передали все данные, или при первой ошибке.
+     **/
+    static class Pair {
+        final SocketChannel client, server;
+        final SelectionKey clientKey, serverKey;
+        final Half up = new Half();    // От клиента к серверу
+        final Half down = new Half();  // От сервера к клиенту
+        final String host;
+        final int port;
+        boolean connected;
 
+        Pair(final Selector selector, final Queue tasks, SocketChannel client,
+             String host, int port) throws IOException {
+            this.client = client;
+            this.host = host;
+            this.port = port;
+            client.configureBlocking(false);
+            server = SocketChannel.open();
+            server.configureBlocking(false);
+            clientKey = client.register(selector, 0, this);
+            serverKey = server.register(selector, 0, this);
+            // Если имя сервера еще не разрешено, подключимся, когда придет
+            // ответ DNS: он ставит задачу в очередь цикла и будит его
+            InetSocketAddress address;
+            try {
+                address = Resolver.getDefault().resolveLater(host, port, new Runnable() {
+                    public void run() {
+                        tasks.add(new Runnable() {
+                            public void run() { resolved(); }
+                        });
+                        selector.wakeup();
+                    }
+                });
+            }
+            catch (IOException e) { refuse(e); return; }
+            if (address != null) connect(address);
+        }
+        /** Начинаем подключение к серверу по известному адресу */
+        void connect(InetSocketAddress address) {
+            try {
+                connected = server.connect(address);
+                pump();
+            }
+            catch (IOException e) { refuse(e); }
+        }
+        /** Пришел ответ DNS: теперь адрес есть в кэше */
+        void resolved() {
+            if (!client.isOpen()) return;
+            try { connect(Resolver.getDefault().address(host, port)); }
+            catch (IOException e) { refuse(e); }
+        }
+        /** Обрабатываем готовность одного из двух каналов */
+        void ready(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    try { connected = server.finishConnect(); }
+                    catch (IOException e) { refuse(e); return; }
+                }
+                if (key.isReadable()) {
+                    if (key == clientKey) up.read(client);
+                    else down.read(server);
+                }
+                pump();
+            }
+            catch (IOException e) { close(); }
+        }
+        /** Передаем накопленное в обе стороны и выставляем интересующие события */
+        void pump() throws IOException {
+            if (connected) up.flush(server);
+            down.flush(client);
+            if (up.shut && down.shut) { close(); return; }
+            clientKey.interestOps((up.canRead() ? SelectionKey.OP_READ : 0) |
+                    (down.pending() ? SelectionKey.OP_WRITE : 0));
+            if (!connected) serverKey.interestOps(SelectionKey.OP_CONNECT);
+            else serverKey.interestOps((down.canRead() ? SelectionKey.OP_READ : 0) |
+                    (up.pending() ? SelectionKey.OP_WRITE : 0));
+        }
+        /**
+         * Подключиться к серверу не удалось: посылаем клиенту сообщение
+         * об ошибке и отключаемся от него. Сообщение короткое и уходит
+         * в пустой буфер сокета, поэтому пишется одним вызовом.
+         **/
+        void refuse(IOException e) {
+            String msg = "Проксисервер не смог соединиться с " + host + ":" +
+                    port + ":\n" + e + "\n";
+            try { client.write(ByteBuffer.wrap(msg.getBytes())); }
+            catch (IOException ex) {}
+            close();
+        }
+        /** Как бы то ни было, закрываем оба соединения */
+        void close() {
+            try { server.close(); } catch (IOException e) {}
+            try { client.close(); } catch (IOException e) {}
+        }
+    }
+}
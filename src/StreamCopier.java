@@ -0,0 +1,157 @@
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+/**
+ * Этот класс копирует данные из потока ввода в поток вывода до EOF и
+ * заменяет обычный цикл «прочитать в массив – записать – протолкнуть».
+ * От такого цикла он отличается в трех отношениях.
+ *
+ * Во-первых, массивы для копирования берутся из общего пула, разбитого
+ * на классы размеров (степени двойки от 1 до 64 КБ), и возвращаются в него
+ * по окончании, так что подключения не создают мусора на каждый запуск.
+ *
+ * Во-вторых, размер массива подстраивается под трафик: если чтения раз
+ * за разом заполняют массив целиком, идет поток данных, и массив заменяется
+ * вдвое большим; если чтения раз за разом приносят лишь несколько байтов,
+ * это интерактивный обмен, и массив заменяется вдвое меньшим.
+ *
+ * В-третьих, запись и проталкивание объединяются: если после чтения во
+ * входном потоке уже есть данные (available() больше нуля), они дочитываются
+ * в тот же массив, и только потом все пишется одним вызовом, а flush()
+ * вызывается лишь тогда, когда новых данных пока нет. Интерактивный обмен
+ * от этого не задерживается, а поток данных идет меньшим числом системных
+ * вызовов.
+ **/
+public class StreamCopier {
+    static final int MIN_SHIFT = 10, MAX_SHIFT = 16; // Классы от 1 до 64 КБ
+    public static final int MIN_SIZE = 1 << MIN_SHIFT;
+    public static final int MAX_SIZE = 1 << MAX_SHIFT;
+    static final int POOL_BYTES = 4 << 20;   // Не больше 4 МБ на класс размеров
+    static final int GROW_AFTER = 2;          // Полных чтений подряд для роста
+    static final int SHRINK_AFTER = 8;        // Малых чтений подряд для сжатия
+
+    // Общий пул: очередь свободных массивов и их число для каждого класса
+    static final ConcurrentLinkedQueue[] free =
+            new ConcurrentLinkedQueue[MAX_SHIFT - MIN_SHIFT + 1];
+    static final AtomicInteger[] pooled = new AtomicInteger[free.length];
+    static {
+        for(int i = 0; i < free.length; i++) {
+            free[i] = new ConcurrentLinkedQueue();
+            pooled[i] = new AtomicInteger();
+        }
+    }
+
+    /** Класс размеров, вмещающий заданное число байтов */
+    static int sizeClass(int size) {
+        if (size <= MIN_SIZE) return 0;
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return Math.min(shift, MAX_SHIFT) - MIN_SHIFT;
+    }
+    /** Берем из пула массив не меньше заданного размера (но не больше 64 КБ) */
+    public static byte[] getBuffer(int size) {
+        int c = sizeClass(size);
+        byte[] b = (byte[]) free[c].poll();
+        if (b == null) return new byte[MIN_SIZE << c];
+        pooled[c].decrementAndGet();
+        return b;
+    }
+    /** Возвращаем массив в пул; после этого пользоваться им нельзя */
+    public static void returnBuffer(byte[] b) {
+        if ((b == null) || (b.length < MIN_SIZE) || (b.length > MAX_SIZE) ||
+                (Integer.bitCount(b.length) != 1)) return;
+        int c = sizeClass(b.length);
+        if (pooled[c].incrementAndGet() > (POOL_BYTES >> (MIN_SHIFT + c))) {
+            pooled[c].decrementAndGet();
+            return;
+        }
+        free[c].add(b);
+    }
+    /** Копируем до EOF с подстройкой размера массива; возвращаем число байтов */
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        return new StreamCopier(in, out).copy();
+    }
+
+    final InputStream in;
+    final OutputStream out;
+    final int minSize, maxSize;   // Пределы размера массива
+    int size;                     // Текущий размер массива
+    volatile long bytes;          // Скопировано байтов (пишет только copy())
+    volatile long firstWrite;     // Когда записаны первые данные (System.nanoTime())
+
+    /** Копировщик с размером массива, подстраиваемым от 1 до 64 КБ */
+    public StreamCopier(InputStream in, OutputStream out) {
+        this(in, out, 4 * MIN_SIZE, MIN_SIZE, MAX_SIZE);
+    }
+    /** Копировщик с массивом постоянного размера */
+    public StreamCopier(InputStream in, OutputStream out, int size) {
+        this(in, out, size, size, size);
+    }
+    public StreamCopier(InputStream in, OutputStream out,
+                        int initial, int minSize, int maxSize) {
+        this.in = in;
+        this.out = out;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.size = initial;
+    }
+    /**
+     * Копируем до EOF во входном потоке. Выходной поток проталкивается,
+     * но не закрывается. Массив возвращается в пул, даже если копирование
+     * прервано исключением.
+     **/
+    public long copy() throws IOException {
+        byte[] buffer = getBuffer(size);
+        int full = 0, small = 0;       // Полных и малых чтений подряд
+        try {
+            for(;;) {
+                int n = in.read(buffer);
+                if (n < 0) break;
+                int filled = n;
+                // Дочитываем то, что уже пришло, чтобы записать все разом
+                while((filled < buffer.length) && (available() > 0)) {
+                    n = in.read(buffer, filled, buffer.length - filled);
+                    if (n <= 0) break;
+                    filled += n;
+                }
+                out.write(buffer, 0, filled);
+                if (bytes == 0) firstWrite = System.nanoTime();
+                bytes += filled;
+                if (available() == 0) out.flush();
+                // Подстраиваем размер массива под трафик
+                if (filled == buffer.length) { full++; small = 0; }
+                else if (filled < buffer.length / 8) { small++; full = 0; }
+                else full = small = 0;
+                if ((full >= GROW_AFTER) && (buffer.length < maxSize)) {
+                    returnBuffer(buffer);
+                    buffer = getBuffer(buffer.length * 2);
+                    full = 0;
+                }
+                else if ((small >= SHRINK_AFTER) && (buffer.length > minSize)) {
+                    returnBuffer(buffer);
+                    buffer = getBuffer(buffer.length / 2);
+                    small = 0;
+                }
+                if (n < 0) break;
+            }
+            out.flush();
+        }
+        finally {
+            size = buffer.length;
+            returnBuffer(buffer);
+        }
+        return bytes;
+    }
+    /** Сколько байтов можно прочитать без блокировки (0, если неизвестно) */
+    int available() {
+        try { return in.available(); }
+        catch (IOException e) { return 0; }
+    }
+    /**
+     * Сколько байтов скопировано. Счетчик пополняет только поток исполнения,
+     * вызвавший copy(), а читать его можно из любого потока прямо во время
+     * копирования.
+     **/
+    public long bytes() { return bytes; }
+    /** Когда записаны первые данные (по System.nanoTime()), или 0 */
+    public long firstWrite() { return firstWrite; }
+}
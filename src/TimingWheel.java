@@ -0,0 +1,166 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+/**
+ * Этот класс реализует «колесо времени» (hashed timing wheel) – таймер,
+ * способный следить за сотнями тысяч сроков одновременно. Колесо состоит из
+ * кольца ячеек, каждая из которых соответствует одному такту времени; срок
+ * помещается в ячейку, до которой колесо дойдет к его наступлению, вместе
+ * с числом полных оборотов, которые надо переждать. Постановка и отмена срока
+ * стоят O(1) независимо от числа сроков, а точность ограничена длиной такта,
+ * чего вполне достаточно для тайм-аутов подключений.
+ *
+ * Всю работу с ячейками выполняет единственный поток исполнения колеса.
+ * Другие потоки лишь помещают новые и отмененные сроки в неблокирующие
+ * очереди, которые колесо разбирает на каждом такте. Задачи сроков
+ * выполняются в потоке колеса, поэтому они должны быть короткими.
+ * Исключения задач учитываются и записываются в журнал колеса (log), если
+ * он задан, иначе в System.err.
+ **/
+public class TimingWheel {
+    final long tickNanos;          // Длина такта
+    final int mask;                // Число ячеек - 1
+    final Timeout[] slots;         // Головы двусвязных списков ячеек
+    final ConcurrentLinkedQueue pending = new ConcurrentLinkedQueue();   // Новые сроки
+    final ConcurrentLinkedQueue cancelled = new ConcurrentLinkedQueue(); // Отмененные
+    final long start = System.nanoTime(); // Начало отсчета тактов
+    long tick;                     // Номер текущего такта (только поток колеса)
+    final AtomicLong scheduled = new AtomicLong(); // Сроков ожидает
+    final Thread thread;           // Поток исполнения колеса
+    final AtomicLong failures = new AtomicLong();  // Задач, завершившихся исключением
+    volatile AsyncLog log;         // Журнал ошибок задач (или null)
+
+    static final int WAITING = 0, CANCELLED = 1, EXPIRED = 2;
+    static final AtomicIntegerFieldUpdater STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+    /**
+     * Один срок колеса. Его можно отменить из любого потока исполнения;
+     * отмененный срок удаляется из своей ячейки на ближайшем такте.
+     **/
+    public static class Timeout {
+        final TimingWheel wheel;
+        final Runnable task;       // Что выполнить по наступлении срока
+        final long deadline;       // Срок, в единицах System.nanoTime()
+        volatile int state;        // WAITING, CANCELLED или EXPIRED
+        long rounds;               // Оборотов колеса до наступления срока
+        int slot = -1;             // Ячейка (-1 – еще в очереди новых сроков)
+        Timeout prev, next;        // Соседи по ячейке
+        Timeout(TimingWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+        /** Отменяем срок; false, если он уже наступил или отменен */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, WAITING, CANCELLED)) return false;
+            wheel.cancelled.add(this);
+            return true;
+        }
+        public boolean isExpired() { return state == EXPIRED; }
+    }
+
+    /**
+     * Создаем колесо с заданной длиной такта и числом ячеек (округляется
+     * вверх до степени двойки) и запускаем его поток исполнения.
+     **/
+    public TimingWheel(long tickMillis, int size, ThreadGroup group, String name) {
+        int n = 1;
+        while(n < size) n <<= 1;
+        mask = n - 1;
+        slots = new Timeout[n];
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        thread = new Thread(group, new Runnable() {
+            public void run() { turn(); }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    /** Выполнить задачу через заданное число миллисекунд */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout t = new Timeout(this, task,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        scheduled.incrementAndGet();
+        pending.add(t);
+        return t;
+    }
+    /** Число ожидающих сроков */
+    public long size() { return scheduled.get(); }
+
+    /** Тело потока колеса: такт за тактом */
+    void turn() {
+        for(;;) {
+            long next = start + (tick + 1) * tickNanos;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                try { TimeUnit.NANOSECONDS.sleep(sleep); }
+                catch (InterruptedException e) { return; }
+            }
+            removeCancelled();
+            placePending();
+            expire(slots[(int) tick & mask]);
+            tick++;
+        }
+    }
+    /** Удаляем отмененные сроки из их ячеек */
+    void removeCancelled() {
+        Timeout t;
+        while((t = (Timeout) cancelled.poll()) != null) {
+            if (t.slot >= 0) unlink(t);
+            else t.slot = -2;      // Еще не размещен: placePending() его пропустит
+            scheduled.decrementAndGet();
+        }
+    }
+    /** Размещаем новые сроки по ячейкам */
+    void placePending() {
+        // Не больше 100000 за такт, чтобы поток колеса не отставал
+        for(int i = 0; i < 100000; i++) {
+            Timeout t = (Timeout) pending.poll();
+            if (t == null) break;
+            if ((t.state != WAITING) || (t.slot == -2)) continue;
+            long ticks = (t.deadline - start + tickNanos - 1) / tickNanos;
+            if (ticks < tick) ticks = tick;   // Срок уже прошел: в текущую ячейку
+            t.rounds = (ticks - tick) / slots.length;
+            link(t, (int) ticks & mask);
+        }
+    }
+    /** Обходим ячейку: выполняем наступившие сроки, остальным уменьшаем обороты */
+    void expire(Timeout t) {
+        while(t != null) {
+            Timeout next = t.next;
+            if (t.rounds <= 0) {
+                unlink(t);
+                if (STATE.compareAndSet(t, WAITING, EXPIRED)) {
+                    scheduled.decrementAndGet();
+                    try { t.task.run(); }
+                    catch (Throwable e) { failed(e); }
+                }
+            }
+            else t.rounds--;
+            t = next;
+        }
+    }
+    /** Учитываем исключение задачи срока и записываем его в журнал */
+    void failed(Throwable e) {
+        failures.incrementAndGet();
+        AsyncLog l = log;
+        String message = thread.getName() + ": задача срока завершилась исключением " + e;
+        if (l != null) l.log(message);
+        else System.err.println(message);
+    }
+    /** Число задач сроков, завершившихся исключением */
+    public long failures() { return failures.get(); }
+    void link(Timeout t, int slot) {
+        t.slot = slot;
+        t.prev = null;
+        t.next = slots[slot];
+        if (t.next != null) t.next.prev = t;
+        slots[slot] = t;
+    }
+    void unlink(Timeout t) {
+        if (t.prev != null) t.prev.next = t.next;
+        else if (slots[t.slot] == t) slots[t.slot] = t.next;
+        if (t.next != null) t.next.prev = t.prev;
+        t.prev = t.next = null;
+        t.slot = -3;               // Больше ни в какой ячейке
+    }
+}
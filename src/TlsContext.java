@@ -0,0 +1,130 @@
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.util.concurrent.atomic.*;
+import javax.net.ssl.*;
+/**
+ * Этот класс хранит настройки TLS для портов сервера: объект SSLContext
+ * с ключом и сертификатом сервера, а также кэш сеансов TLS. Обычное
+ * подключение сервер оборачивает в SSLSocket (метод wrap()), а сеанс движка
+ * NIO получает собственный объект SSLEngine (метод newEngine()).
+ *
+ * Полное рукопожатие TLS требует операций с открытым ключом и двух
+ * обменов с клиентом, поэтому повторные подключения клиента по возможности
+ * возобновляют прежний сеанс. Сервер хранит до cacheSize сеансов в течение
+ * cacheSeconds секунд; кроме того, включено расширение session ticket
+ * (RFC 5077, а в TLS 1.3 – билеты PSK): состояние сеанса шифруется
+ * ключом сервера и хранится у клиента, так что возобновить сеанс можно
+ * и после того, как он вытеснен из кэша.
+ *
+ * Числа полных и возобновленных рукопожатий и неудач отображаются методом
+ * status().
+ **/
+public class TlsContext {
+    static {
+        // Билеты сеансов на стороне сервера; свойство читается при первом
+        // обращении к JSSE, поэтому задаем его заранее, если оно не задано
+        if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null)
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+    }
+
+    final SSLContext context;
+    final LongAdder full = new LongAdder();      // Полных рукопожатий
+    final LongAdder resumed = new LongAdder();   // Возобновленных сеансов
+    final LongAdder failures = new LongAdder();  // Неудачных рукопожатий
+
+    /** Используем готовый SSLContext с заданными параметрами кэша сеансов */
+    public TlsContext(SSLContext context, int cacheSize, int cacheSeconds) {
+        this.context = context;
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(cacheSize);
+        sessions.setSessionTimeout(cacheSeconds);
+    }
+    /** Загружаем ключ и сертификат из хранилища PKCS12 (или JKS) */
+    public static TlsContext load(File keystore, String password)
+            throws IOException, GeneralSecurityException
+    {
+        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        InputStream in = new FileInputStream(keystore);
+        try { ks.load(in, password.toCharArray()); }
+        finally { in.close(); }
+        KeyManagerFactory kmf =
+                KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, password.toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        return new TlsContext(context, 20000, 3600);
+    }
+    /**
+     * Создаем хранилище с самоподписанным сертификатом для заданного имени
+     * узла, если файла еще нет, и загружаем его. Сертификат создает утилита
+     * keytool из того же JDK. Годится для проверки и измерений, но не для
+     * настоящих клиентов, которые такому сертификату не доверяют.
+     **/
+    public static TlsContext selfSigned(File keystore, String password, String host)
+            throws IOException, GeneralSecurityException
+    {
+        if (!keystore.exists()) {
+            String keytool = System.getProperty("java.home") + File.separator +
+                    "bin" + File.separator + "keytool";
+            Process p = new ProcessBuilder(new String[] {
+                    keytool, "-genkeypair", "-keystore", keystore.getPath(),
+                    "-storetype", "PKCS12", "-storepass", password,
+                    "-alias", "server", "-keyalg", "EC", "-groupname", "secp256r1",
+                    "-validity", "365", "-dname", "CN=" + host,
+                    "-ext", "SAN=dns:" + host }).redirectErrorStream(true).start();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            InputStream in = p.getInputStream();
+            byte[] buffer = new byte[1024];
+            int n;
+            while((n = in.read(buffer)) != -1) output.write(buffer, 0, n);
+            try {
+                if (p.waitFor() != 0)
+                    throw new IOException("keytool: " + output.toString().trim());
+            }
+            catch (InterruptedException e) { throw new InterruptedIOException(); }
+        }
+        return load(keystore, password);
+    }
+    /** SSLEngine в режиме сервера для сеанса движка NIO */
+    public SSLEngine newEngine() {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+    /**
+     * Оборачиваем принятое подключение в SSLSocket в режиме сервера.
+     * Рукопожатие выполнится при первом чтении или записи, то есть в потоке
+     * исполнения подключения, а не в потоке, принимающем подключения.
+     **/
+    public SSLSocket wrap(Socket s) throws IOException {
+        SSLSocket ssl = (SSLSocket) context.getSocketFactory().createSocket(s,
+                null, s.getPort(), true);
+        ssl.setUseClientMode(false);
+        final long started = System.currentTimeMillis();
+        ssl.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+            public void handshakeCompleted(HandshakeCompletedEvent e) {
+                completed(e.getSession(), started);
+            }
+        });
+        return ssl;
+    }
+    /**
+     * Учитываем завершенное рукопожатие. Сеанс, созданный раньше начала
+     * рукопожатия, был возобновлен.
+     **/
+    void completed(SSLSession session, long started) {
+        if (session.getCreationTime() < started) resumed.increment();
+        else full.increment();
+    }
+    /** Учитываем неудачное рукопожатие */
+    void failed() { failures.increment(); }
+    /** Сводка для отображения состояния сервера */
+    public String status() {
+        SSLSessionContext sessions = context.getServerSessionContext();
+        return "TLS: ПОЛНЫХ РУКОПОЖАТИЙ " + full.sum() +
+                ", ВОЗОБНОВЛЕНО " + resumed.sum() + ", НЕУДАЧ " + failures.sum() +
+                "; КЭШ СЕАНСОВ " + sessions.getSessionCacheSize() + " НА " +
+                sessions.getSessionTimeout() + " С";
+    }
+}
@@ -0,0 +1,249 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+/**
+ * Этот класс записывает трафик проксируемых сеансов в файлы, отображаемые
+ * в память (memory-mapped). Каждая запись – это порция данных одного сеанса
+ * с временем и направлением, а также открытие и закрытие сеансов. Записи
+ * пишутся в сегменты заданного размера: когда очередная запись не помещается,
+ * начинается новый сегмент, а если сегментов больше maxSegments, самый
+ * старый удаляется, так что запись занимает на диске ограниченное место.
+ *
+ * Копирующие потоки исполнения и циклы выборки сами на диск не пишут: они
+ * лишь копируют порцию данных и ставят ее в очередь, а в сегменты ее пишет
+ * отдельный поток. Очередь ограничена и по числу записей, и по объему; если
+ * писатель не успевает, новые записи теряются (и учитываются), а не
+ * задерживают передачу данных.
+ *
+ * Формат сегмента: заголовок из 8 байтов "PXCAP1\0\0" и времени начала
+ * записи (long, мс от 1970 г.), затем записи: время от начала записи (long,
+ * нс), номер сеанса (long), вид записи (byte), длина данных (int) и сами
+ * данные. Вид 0 означает конец сегмента (остаток файла заполнен нулями).
+ * Читает такие файлы класс Replay.
+ **/
+public class TrafficCapture {
+    // Виды записей
+    public static final byte END = 0, OPEN = 1, CLIENT = 2, SERVER = 3, CLOSE = 4;
+    static final byte[] MAGIC = { 'P', 'X', 'C', 'A', 'P', '1', 0, 0 };
+    static final int HEADER = 16;               // Заголовок сегмента
+    static final int RECORD_HEADER = 8 + 8 + 1 + 4; // Заголовок записи
+
+    final File dir;                 // Каталог сегментов
+    final int segmentSize;          // Размер одного сегмента, байт
+    final int maxSegments;          // Сколько сегментов хранить
+    final long maxQueued;           // Сколько байтов данных может ждать записи
+    final long start = System.nanoTime();
+    final long startMillis = System.currentTimeMillis();
+    final ArrayBlockingQueue queue;  // Записи, ожидающие писателя
+    final AtomicLong queued = new AtomicLong();   // Их объем, байт
+    final LongAdder records = new LongAdder();    // Записано записей
+    final LongAdder bytes = new LongAdder();      // Записано байтов данных
+    final LongAdder dropped = new LongAdder();    // Потеряно записей
+    final LinkedList segments = new LinkedList(); // Файлы сегментов (писатель)
+    int segmentNumber;              // Номер следующего сегмента (писатель)
+    FileChannel channel;            // Текущий сегмент (писатель)
+    MappedByteBuffer map;           // Его отображение в память (писатель)
+    final Thread writer;
+    final Thread exitHook;          // Дописывает очередь при завершении JVM
+    volatile boolean closed;
+
+    /** Одна запись в очереди к писателю */
+    static class Record {
+        final long time, session;
+        final byte type;
+        final byte[] data;
+        Record(long time, long session, byte type, byte[] data) {
+            this.time = time;
+            this.session = session;
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Начинаем запись в заданный каталог: сегменты по segmentSize байтов,
+     * не больше maxSegments файлов, не больше maxQueued байтов в очереди.
+     **/
+    public TrafficCapture(File dir, int segmentSize, int maxSegments, long maxQueued)
+            throws IOException {
+        if (segmentSize < HEADER + RECORD_HEADER + 1024)
+            throw new IllegalArgumentException("Слишком малый сегмент: " + segmentSize);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Не удалось создать каталог " + dir);
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(maxSegments, 1);
+        this.maxQueued = maxQueued;
+        queue = new ArrayBlockingQueue(65536);
+        nextSegment();
+        writer = new Thread("TrafficCapture") {
+            public void run() { writeLoop(); }
+        };
+        writer.setDaemon(true);
+        writer.start();
+        // При завершении программы дописываем очередь и обрезаем сегмент
+        exitHook = new Thread("TrafficCapture.Exit") {
+            public void run() { TrafficCapture.this.stop(); }
+        };
+        Runtime.getRuntime().addShutdownHook(exitHook);
+    }
+    /** Сеанс открыт; в данных записывается описание (например, имя сервера) */
+    public void open(long session, String description) {
+        add(session, OPEN, description.getBytes());
+    }
+    /** Сеанс закрыт */
+    public void close(long session) { add(session, CLOSE, new byte[0]); }
+    /** Порция данных сеанса от клиента (CLIENT) или от сервера (SERVER) */
+    public void data(long session, byte type, byte[] b, int off, int len) {
+        if (len <= 0) return;
+        if (!reserve(len)) return;
+        byte[] copy = new byte[len];
+        System.arraycopy(b, off, copy, 0, len);
+        enqueue(new Record(System.nanoTime() - start, session, type, copy));
+    }
+    /** То же для содержимого буфера; позиция буфера не меняется */
+    public void data(long session, byte type, ByteBuffer b) {
+        int len = b.remaining();
+        if (len <= 0) return;
+        if (!reserve(len)) return;
+        byte[] copy = new byte[len];
+        b.duplicate().get(copy);
+        enqueue(new Record(System.nanoTime() - start, session, type, copy));
+    }
+    void add(long session, byte type, byte[] data) {
+        if (!reserve(data.length)) return;
+        enqueue(new Record(System.nanoTime() - start, session, type, data));
+    }
+    /** Учитываем объем записи в очереди; при переполнении теряем ее */
+    boolean reserve(int len) {
+        if (closed || (queued.addAndGet(len) > maxQueued)) {
+            queued.addAndGet(-len);
+            dropped.increment();
+            return false;
+        }
+        return true;
+    }
+    void enqueue(Record r) {
+        if (!queue.offer(r)) {
+            queued.addAndGet(-r.data.length);
+            dropped.increment();
+        }
+    }
+    /** Поток писателя: разбираем очередь и пишем записи в сегменты */
+    void writeLoop() {
+        try {
+            for(;;) {
+                Record r = (Record) queue.poll(100, TimeUnit.MILLISECONDS);
+                if (r == null) {
+                    if (closed) break;
+                    continue;
+                }
+                queued.addAndGet(-r.data.length);
+                write(r);
+            }
+        }
+        catch (InterruptedException e) {}
+        catch (IOException e) { System.err.println("TrafficCapture: " + e); }
+        finally { finishSegment(); }
+    }
+    void write(Record r) throws IOException {
+        // Слишком большие порции режем на части, помещающиеся в сегмент
+        int max = segmentSize - HEADER - RECORD_HEADER;
+        for(int off = 0; (off < r.data.length) || (off == 0); off += max) {
+            int len = Math.min(r.data.length - off, max);
+            if (map.remaining() < RECORD_HEADER + len) nextSegment();
+            map.putLong(r.time);
+            map.putLong(r.session);
+            map.put(r.type);
+            map.putInt(len);
+            map.put(r.data, off, len);
+            records.increment();
+            bytes.add(len);
+            if (len == 0) break;
+        }
+    }
+    /** Закрываем текущий сегмент и начинаем следующий, удаляя лишние старые */
+    void nextSegment() throws IOException {
+        finishSegment();
+        File f = new File(dir, "capture-" + startMillis + "-" +
+                String.format("%05d", segmentNumber++) + ".seg");
+        channel = new RandomAccessFile(f, "rw").getChannel();
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        map.put(MAGIC);
+        map.putLong(startMillis);
+        segments.addLast(f);
+        while(segments.size() > maxSegments) ((File) segments.removeFirst()).delete();
+    }
+    /** Сбрасываем отображение на диск и обрезаем файл до записанного */
+    void finishSegment() {
+        if (channel == null) return;
+        try {
+            if (map.position() < segmentSize) map.put(END);
+            map.force();
+            channel.truncate(map.position());
+            channel.close();
+        }
+        catch (IOException e) { System.err.println("TrafficCapture: " + e); }
+        channel = null;
+        map = null;
+    }
+    /**
+     * Прекращаем запись; записи, уже стоящие в очереди, дописываются.
+     * Остановленной записи обработчик завершения JVM больше не нужен.
+     **/
+    public void stop() {
+        closed = true;
+        try { writer.join(5000); } catch (InterruptedException e) {}
+        if (Thread.currentThread() != exitHook) {
+            try { Runtime.getRuntime().removeShutdownHook(exitHook); }
+            catch (IllegalStateException e) {}   // JVM уже завершается
+        }
+    }
+    /** Файлы сегментов каталога в порядке записи */
+    public static File[] segments(File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.startsWith("capture-") && name.endsWith(".seg");
+            }
+        });
+        if (files == null) return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+    /** Сводка о записи для состояния сервера */
+    public String status() {
+        return "ЗАПИСЬ ТРАФИКА В " + dir + ": ЗАПИСЕЙ " + records.sum() + ", БАЙТ " +
+                bytes.sum() + ", В ОЧЕРЕДИ " + queued.get() + " БАЙТ, ПОТЕРЯНО " +
+                dropped.sum();
+    }
+
+    /**
+     * Поток ввода, который записывает все прочитанное из него как данные
+     * заданного сеанса и направления.
+     **/
+    public static class CapturingInputStream extends FilterInputStream {
+        final TrafficCapture capture;
+        final long session;
+        final byte type;
+        public CapturingInputStream(InputStream in, TrafficCapture capture,
+                                    long session, byte type) {
+            super(in);
+            this.capture = capture;
+            this.session = session;
+            this.type = type;
+        }
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) capture.data(session, type, new byte[] { (byte) b }, 0, 1);
+            return b;
+        }
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) capture.data(session, type, b, off, n);
+            return n;
+        }
+    }
+}
@@ -25,9 +25,11 @@ public class UDPReceive {
             for(;;) {
                 // Ждем прибытия дейтаграммы
                 dsocket.receive(packet);
-                // Преобразуем ее содержимое в объект String и отображаем его
+                // Преобразуем ее содержимое в объект String и отображаем его.
+                // Имя отправителя берем из кэша Resolver, который не ждет DNS:
+                // пока имя не найдено, отображается адрес.
                 String msg = new String(buffer, 0, packet.getLength());
-                System.out.println(packet.getAddress().getHostName() +
+                System.out.println(Resolver.getDefault().hostName(packet.getAddress()) +
                         ": " + msg);
                 // Перед следующим использованием пакета packet восстанавливаем его длину.
                 // До появления Java 1.1 нам пришлось бы каждый раз создавать новый пакет.
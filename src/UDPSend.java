@@ -37,8 +37,8 @@ public class UDPSend {
                 for (int i = 3; i < args.length; i++) msg += " " + args[i];
                 message = msg.getBytes();
             }
-            // Получаем адрес заданного узла в Интернете
-            InetAddress address = InetAddress.getByName(host);
+            // Получаем адрес заданного узла в Интернете (через общий кэш DNS)
+            InetAddress address = Resolver.getDefault().resolve(host);
             // Инициализируем пакет дейтаграммы данными и адресом
             DatagramPacket packet = new DatagramPacket(message, message.length,
                     address, port);